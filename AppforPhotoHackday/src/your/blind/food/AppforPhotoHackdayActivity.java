@@ -1,14 +1,32 @@
 package your.blind.food;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.hardware.Camera;
 import android.os.Bundle;
+import android.util.Log;
 import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.TextView;
 
+import com.iqengines.sdk.ContinuousSearch;
+import com.iqengines.sdk.IQE;
+import com.iqengines.sdk.IQLocal;
+
 public class AppforPhotoHackdayActivity extends Activity {
 
+	private static final String TAG = "Hack::Activity";
+
+	/* IQ Engines credentials (IQ Engines.com->developer center->settings), remote search is disabled without them */
+	private static final String IQE_KEY = "";
+	private static final String IQE_SECRET = "";
+
+	/* Search Variables */
+	private IQE iqe;
+	private ContinuousSearch continuousSearch;
+
 	/* CameraActivity Variables */
 	private Camera mCamera;
 	private Preview mPreview;
@@ -43,6 +61,79 @@ public class AppforPhotoHackdayActivity extends Activity {
 		        mOverlay = new Overlay(this);
 		        preview.addView(mOverlay);
 		        mPreview.setOverlay(mOverlay);
+		        
+		        textAns = (TextView) findViewById(R.id.answer);
+		        initSearch();
+	}
+
+	/**
+	 * Searches preview frames continuously, in the local catalog if the app bundles one
+	 * and on IQ Engines server if credentials are set.
+	 */
+	private void initSearch() {
+		boolean remoteSearch = IQE_KEY.length() > 0 && IQE_SECRET.length() > 0;
+		boolean localSearch = hasLocalCatalog();
+		if (!remoteSearch && !localSearch) {
+			Log.w(TAG, "Neither a local catalog nor IQ Engines credentials, frames are not searched");
+			return;
+		}
+		iqe = new IQE(this, remoteSearch, localSearch, IQE_KEY, IQE_SECRET);
+		continuousSearch = new ContinuousSearch(iqe, new IQE.OnResultCallback() {
+			@Override
+			public void onQueryIdAssigned(String queryId, File imgFile) {
+			}
+
+			@Override
+			public void onResult(String queryId, String objId, final String objName, String objMeta,
+					boolean remoteMatch, Exception e) {
+				if (e != null || objName == null) {
+					return;
+				}
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						textAns.setText(objName);
+					}
+				});
+			}
+		});
+		mPreview.setContinuousSearch(continuousSearch);
+	}
+
+	private boolean hasLocalCatalog() {
+		try {
+			String[] files = getAssets().list(IQLocal.DEFAULT_ASSET_PATH);
+			return files != null && files.length > 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		if (iqe != null) {
+			iqe.resume();
+			continuousSearch.start();
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		if (iqe != null) {
+			continuousSearch.stop();
+			iqe.pause();
+		}
+		super.onPause();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (iqe != null) {
+			iqe.destroy();
+			iqe = null;
+		}
+		super.onDestroy();
 	}
 
 	public void onPause(Bundle savedInstanceState) {
@@ -4,15 +4,23 @@ import java.io.IOException;
 import java.util.List;
 
 import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.YuvImage;
 import android.hardware.Camera;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
-public class Preview extends SurfaceView implements SurfaceHolder.Callback {
+import com.iqengines.sdk.ContinuousSearch;
+
+public class Preview extends SurfaceView implements SurfaceHolder.Callback, Camera.PreviewCallback,
+		ContinuousSearch.OnFrameReleasedListener {
 	private static final String TAG             = "Hack::Preview";
+	/** Preview buffers cycled between the camera and the search, allocated once per preview size */
+	private static final int PREVIEW_BUFFERS = 4;
 	public SurfaceHolder 	holder;
 	public Camera 			camera;
 	public Overlay 			overlay;
+	private ContinuousSearch	continuousSearch;
 	private int 			frameWidth, frameHeight;
 
 	public Preview(Context context, Camera camera) {
@@ -34,6 +42,18 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
     	return this.overlay;
     }
     
+    /**
+     * Sets the search fed with preview frames. Frames arriving while a search
+     * is running replace each other, only the latest one gets searched.
+     * Frame buffers go back to the camera once the search releases them.
+     */
+    public void setContinuousSearch(ContinuousSearch continuousSearch) {
+    	this.continuousSearch = continuousSearch;
+    	if (continuousSearch != null) {
+    		continuousSearch.setOnFrameReleasedListener(this);
+    	}
+    }
+    
     public int getFrameWidth() {
     	return frameWidth;
     }
@@ -63,7 +83,14 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
             }
 
             params.setPreviewSize(frameWidth, frameHeight);
+            params.setPreviewFormat(ImageFormat.NV21);
             camera.setParameters(params);
+            // frames are written to a few reused buffers instead of a new one per frame
+            int bufferSize = frameWidth * frameHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            camera.setPreviewCallbackWithBuffer(this);
+            for (int i = 0; i < PREVIEW_BUFFERS; ++i) {
+            	camera.addCallbackBuffer(new byte[bufferSize]);
+            }
             try {
 				camera.setPreviewDisplay(holder);
 			} catch (IOException e) {
@@ -89,8 +116,28 @@ public class Preview extends SurfaceView implements SurfaceHolder.Callback {
 
 	@Override
 	public void surfaceDestroyed(SurfaceHolder arg0) {
+		camera.setPreviewCallbackWithBuffer(null);
 		camera.stopPreview();
     	camera.release();
     	camera = null;
 	}
+
+	@Override
+	public void onPreviewFrame(byte[] data, Camera camera) {
+		if (continuousSearch != null) {
+			// the buffer goes back to the camera in onFrameReleased
+			continuousSearch.submitFrame(new YuvImage(data, ImageFormat.NV21, frameWidth, frameHeight, null));
+		} else {
+			camera.addCallbackBuffer(data);
+		}
+	}
+
+	@Override
+	public void onFrameReleased(YuvImage frame) {
+		Camera c = camera;
+		// buffers of an earlier preview size are dropped rather than handed back
+		if (c != null && frame.getWidth() == frameWidth && frame.getHeight() == frameHeight) {
+			c.addCallbackBuffer(frame.getYuvData());
+		}
+	}
 }
@@ -0,0 +1,114 @@
+package com.iqengines.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.features2d.DMatch;
+import org.opencv.features2d.KeyPoint;
+import org.opencv.utils.Converters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copies between Java lists and Mats done by the OpenCV bindings for key points, matches and points.
+ * Mats are the Java-array stand-ins of src/standin, so figures leave out the JNI transitions
+ * and measure the boxing and element copies done in Java.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertersBenchmark {
+
+    /** Elements per list, from a few matches to the key points of a query image */
+    @Param({ "16", "256", "2048" })
+    public int count;
+
+    private List<KeyPoint> keyPoints;
+
+    private List<DMatch> matches;
+
+    private List<Point> points;
+
+    private Mat keyPointMat;
+
+    private Mat matchMat;
+
+    private Mat pointMat;
+
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        keyPoints = new ArrayList<KeyPoint>(count);
+        matches = new ArrayList<DMatch>(count);
+        points = new ArrayList<Point>(count);
+        for (int i = 0; i < count; ++i) {
+            float x = random.nextFloat() * 480;
+            float y = random.nextFloat() * 480;
+            keyPoints.add(new KeyPoint(x, y, 31, random.nextFloat() * 360, random.nextFloat(), 0, -1));
+            matches.add(new DMatch(i, random.nextInt(count), random.nextFloat() * 100));
+            points.add(new Point(x, y));
+        }
+        keyPointMat = Converters.vector_KeyPoint_to_Mat(keyPoints);
+        matchMat = Converters.vector_DMatch_to_Mat(matches);
+        pointMat = Converters.vector_Point_to_Mat(points);
+    }
+
+
+    @Benchmark
+    public Mat keyPointsToMat() {
+        return Converters.vector_KeyPoint_to_Mat(keyPoints);
+    }
+
+
+    @Benchmark
+    public List<KeyPoint> matToKeyPoints() {
+        List<KeyPoint> kps = new ArrayList<KeyPoint>(count);
+        Converters.Mat_to_vector_KeyPoint(keyPointMat, kps);
+        return kps;
+    }
+
+
+    @Benchmark
+    public Mat matchesToMat() {
+        return Converters.vector_DMatch_to_Mat(matches);
+    }
+
+
+    @Benchmark
+    public List<DMatch> matToMatches() {
+        List<DMatch> dms = new ArrayList<DMatch>(count);
+        Converters.Mat_to_vector_DMatch(matchMat, dms);
+        return dms;
+    }
+
+
+    @Benchmark
+    public Mat pointsToMat() {
+        return Converters.vector_Point_to_Mat(points);
+    }
+
+
+    @Benchmark
+    public List<Point> matToPoints() {
+        List<Point> pts = new ArrayList<Point>(count);
+        Converters.Mat_to_vector_Point(pointMat, pts);
+        return pts;
+    }
+}
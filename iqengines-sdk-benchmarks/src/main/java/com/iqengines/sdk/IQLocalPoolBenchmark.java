@@ -0,0 +1,102 @@
+package com.iqengines.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Images matched per second by IQLocalPool against its number of workers, for a batch of frames
+ * and for as many concurrent searches as workers, as the search threads of IQE run them.
+ * Workers are the IQLocal stand-in, matching on the JVM: the scaling of the pool is measured,
+ * contention inside the native library is not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IQLocalPoolBenchmark {
+
+    /** Number of images matched per invocation */
+    private static final int BATCH = 32;
+
+    /** Descriptors of a query image */
+    private static final int QUERY_DESCRIPTORS = 64;
+
+    @Param({ "1", "2", "4", "8" })
+    public int poolSize;
+
+    private IQLocalPool pool;
+
+    private Mat[] batch;
+
+    private ExecutorService searchThreads;
+
+
+    @Setup
+    public void setUp() {
+        pool = new IQLocalPool(poolSize);
+        pool.init(null, null);
+        batch = new Mat[BATCH];
+        for (int i = 0; i < BATCH; ++i) {
+            batch[i] = new Mat(IQLocal.descriptors(QUERY_DESCRIPTORS, i));
+        }
+        searchThreads = Executors.newFixedThreadPool(poolSize);
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        searchThreads.shutdownNow();
+        pool.destroy();
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int[] matchBatch() {
+        return pool.match(batch);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int concurrentSearches() throws InterruptedException, ExecutionException {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(BATCH);
+        for (final Mat img : batch) {
+            results.add(searchThreads.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return pool.match(img);
+                }
+            }));
+        }
+        int matched = 0;
+        for (Future<Integer> result : results) {
+            if (result.get() >= 0) {
+                ++matched;
+            }
+        }
+        return matched;
+    }
+}
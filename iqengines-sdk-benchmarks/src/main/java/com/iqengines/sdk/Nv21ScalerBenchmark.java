@@ -0,0 +1,64 @@
+package com.iqengines.sdk;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Crop and downscale of camera preview frames before JPEG compression,
+ * as Utils.cropYuv does for uploads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Nv21ScalerBenchmark {
+
+    /** Common preview sizes */
+    @Param({ "640x480", "1280x720", "1920x1080" })
+    public String preview;
+
+    /** Size of the uploaded picture, 480 keeps the crop as is */
+    @Param({ "480", "320" })
+    public int outSize;
+
+    @Param({ "0", "90" })
+    public int rotation;
+
+    private byte[] frame;
+
+    private int width;
+
+    private int height;
+
+    private final Nv21Scaler scaler = new Nv21Scaler();
+
+
+    @Setup
+    public void setUp() {
+        int x = preview.indexOf('x');
+        width = Integer.parseInt(preview.substring(0, x));
+        height = Integer.parseInt(preview.substring(x + 1));
+        frame = new byte[width * height * 3 / 2];
+        new Random(42).nextBytes(frame);
+    }
+
+
+    @Benchmark
+    public byte[] cropScale() {
+        return scaler.cropScale(frame, width, height, 480, outSize, rotation);
+    }
+}
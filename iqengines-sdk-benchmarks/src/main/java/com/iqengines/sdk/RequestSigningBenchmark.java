@@ -0,0 +1,72 @@
+package com.iqengines.sdk;
+
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time stamp and HMAC signature computed for every request sent to IQ Engines server.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSigningBenchmark {
+
+    private IQRemote remote;
+
+    /** Fields of a query request, as IQRemote.query sends them */
+    private TreeMap<String, String> queryFields;
+
+    /** Fields of an update request */
+    private TreeMap<String, String> updateFields;
+
+
+    @Setup
+    public void setUp() {
+        remote = new IQRemote("0123456789abcdef0123456789abcdef", "fedcba9876543210fedcba9876543210");
+
+        queryFields = new TreeMap<String, String>();
+        queryFields.put("api_key", "0123456789abcdef0123456789abcdef");
+        queryFields.put("device_id", "358239051234567");
+        queryFields.put("img", "iqe1350556800000.jpg");
+        queryFields.put("json", "1");
+        queryFields.put("time_stamp", remote.now());
+
+        updateFields = new TreeMap<String, String>();
+        updateFields.put("api_key", "0123456789abcdef0123456789abcdef");
+        updateFields.put("device_id", "358239051234567");
+        updateFields.put("json", "1");
+        updateFields.put("time_stamp", remote.now());
+    }
+
+
+    @Benchmark
+    public String now() {
+        return remote.now();
+    }
+
+
+    @Benchmark
+    public String signQuery() {
+        return remote.buildSignature(queryFields);
+    }
+
+
+    @Benchmark
+    public String signUpdate() {
+        return remote.buildSignature(updateFields);
+    }
+}
@@ -0,0 +1,92 @@
+package com.iqengines.sdk;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of update-API responses, as the result update thread does after every long poll.
+ * Responses are read from a String and, like IQRemote does, decoded from the bytes received.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateParserBenchmark {
+
+    /** Results per response, one in four without a match */
+    @Param({ "1", "10", "100" })
+    public int results;
+
+    private String response;
+
+    private byte[] responseBytes;
+
+    private UpdateParser.Sink sink;
+
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder("{\"data\": {\"error\": 0, \"results\": [");
+        for (int i = 0; i < results; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("{\"qid\": \"").append(String.format("%040x", i)).append("\", \"qid_data\": {");
+            if (i % 4 != 3) {
+                sb.append("\"labels\": \"Coca-Cola 12oz can ").append(i).append("\", ");
+                sb.append("\"meta\": \"{\\\"url\\\": \\\"http://example.com/products/").append(i).append("\\\"}\", ");
+                sb.append("\"color\": \"Red\", \"sku\": \"049000028911\"");
+            }
+            sb.append("}}");
+        }
+        response = sb.append("]}}").toString();
+        try {
+            responseBytes = response.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    @Setup
+    public void setUpSink(final Blackhole bh) {
+        sink = new UpdateParser.Sink() {
+            @Override
+            public void onResult(String qid, String labels, String meta) {
+                bh.consume(qid);
+                bh.consume(labels);
+                bh.consume(meta);
+            }
+        };
+    }
+
+
+    @Benchmark
+    public int parse() throws JSONException {
+        return UpdateParser.parse(response, sink);
+    }
+
+
+    @Benchmark
+    public int parseStream() throws IOException, JSONException {
+        return UpdateParser.parse(new InputStreamReader(new ByteArrayInputStream(responseBytes), "UTF-8"), sink);
+    }
+}
@@ -0,0 +1,7 @@
+package android.content.res;
+
+/**
+ * Stand-in for the Android Resources, which only appear in signatures of the SDK classes benchmarked.
+ */
+public class Resources {
+}
@@ -0,0 +1,17 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+
+/**
+ * Stand-in for IQE, which needs Android, holding only the callback interface
+ * the query journal keeps for the searches it replays.
+ */
+public class IQE {
+
+    public interface OnResultCallback {
+        public void onQueryIdAssigned(String queryId, File imgFile);
+
+        public void onResult(String queryId, String objId, String objName, String objMeta,
+                boolean remoteMatch, Exception e);
+    }
+}
@@ -0,0 +1,188 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import android.content.res.Resources;
+
+/**
+ * Stand-in for IQLocal, whose native index needs Android, so that IQLocalPool runs on a plain JVM.
+ * Each instance holds its own copy of the reference descriptors, as each trained index does,
+ * and matches a query by brute force: every query descriptor votes for the object of its nearest
+ * reference in Hamming distance. The cost of a match grows with the catalog like the native one,
+ * it is CPU bound and does not share state between instances.
+ */
+public class IQLocal {
+
+    public static final String DEFAULT_ASSET_PATH = "iqedata";
+
+    /** Number of objects of the catalog */
+    static final int OBJECTS = 200;
+
+    /** Number of descriptors per object, from all its reference images */
+    static final int DESCRIPTORS_PER_OBJECT = 40;
+
+    /** Longs per 256-bit descriptor */
+    static final int DESCRIPTOR_LONGS = 4;
+
+    public interface OnReady {
+        public void onReady(int resultCode);
+    }
+
+    private final String assetPath;
+
+    private long[] references = new long[0];
+
+    private volatile ObjectTable objects = ObjectTable.EMPTY;
+
+
+    public IQLocal(String assetPath) {
+        this.assetPath = assetPath;
+    }
+
+
+    /**
+     * @return random descriptors, the same for the same seed.
+     */
+    static long[] descriptors(int count, long seed) {
+        Random random = new Random(seed);
+        long[] descriptors = new long[count * DESCRIPTOR_LONGS];
+        for (int i = 0; i < descriptors.length; ++i) {
+            descriptors[i] = random.nextLong();
+        }
+        return descriptors;
+    }
+
+
+    public void init(Resources res, File appDataDir) {
+        initUnpacked(new File(appDataDir, assetPath));
+    }
+
+
+    void initUnpacked(File dataPath) {
+        train();
+    }
+
+
+    public int train() {
+        references = descriptors(OBJECTS * DESCRIPTORS_PER_OBJECT, 42);
+        String[] ids = new String[OBJECTS];
+        for (int i = 0; i < OBJECTS; ++i) {
+            ids[i] = "obj" + i;
+        }
+        objects = new ObjectTable(ids, ids.clone(), new String[OBJECTS], OBJECTS);
+        return 0;
+    }
+
+
+    public int load(String indexPath, String imagesPath) {
+        return train();
+    }
+
+
+    public int compute(Mat img, String arg1, String arg2) {
+        return 0;
+    }
+
+
+    public int match(Mat img) {
+        long[] query = img.descriptors;
+        long[] refs = references;
+        int[] votes = new int[objects.size()];
+        for (int q = 0; q < query.length; q += DESCRIPTOR_LONGS) {
+            int best = -1;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int r = 0; r < refs.length; r += DESCRIPTOR_LONGS) {
+                int distance = Long.bitCount(query[q] ^ refs[r])
+                        + Long.bitCount(query[q + 1] ^ refs[r + 1])
+                        + Long.bitCount(query[q + 2] ^ refs[r + 2])
+                        + Long.bitCount(query[q + 3] ^ refs[r + 3]);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = r;
+                }
+            }
+            if (best >= 0) {
+                ++votes[best / (DESCRIPTOR_LONGS * DESCRIPTORS_PER_OBJECT)];
+            }
+        }
+        int objIdx = MatchResult.NO_MATCH;
+        for (int i = 0; i < votes.length; ++i) {
+            if (votes[i] > 0 && (objIdx < 0 || votes[i] > votes[objIdx])) {
+                objIdx = i;
+            }
+        }
+        return objIdx;
+    }
+
+
+    public int[] match(Mat[] imgs) {
+        int[] results = new int[imgs.length];
+        for (int i = 0; i < imgs.length; ++i) {
+            results[i] = match(imgs[i]);
+        }
+        return results;
+    }
+
+
+    public void match(Mat img, MatchResult result) {
+        result.clear();
+        result.setObjects(objects);
+        result.info[0] = match(img);
+    }
+
+
+    ObjectTable getObjects() {
+        return objects;
+    }
+
+
+    public int getObjCount() {
+        return objects.size();
+    }
+
+
+    public String getObjId(int objIdx) {
+        return objects.getId(objIdx);
+    }
+
+
+    public List<String> getObjIds() {
+        return objects.getIds();
+    }
+
+
+    public String getObjName(String objId) {
+        return objects.getName(objId);
+    }
+
+
+    public String getObjMeta(String objId) {
+        return objects.getMeta(objId);
+    }
+
+
+    public int addObject(String objId, String objName, String objMeta, List<File> images) {
+        objects = objects.append(new String[] { objId }, new String[] { objName }, new String[] { objMeta }, 1);
+        return 0;
+    }
+
+
+    public boolean removeObject(String objId) {
+        return false;
+    }
+
+
+    public File getDataPath() {
+        return new File(assetPath);
+    }
+
+
+    public void setAssetsVersion(long assetsVersion) {
+    }
+
+
+    public void destroy() {
+    }
+}
@@ -0,0 +1,14 @@
+package com.iqengines.sdk;
+
+/**
+ * Stand-in for the native-backed Mat, holding the binary descriptors of a query image
+ * as the stand-in IQLocal matches them: 32 bytes, four longs, per feature.
+ */
+public class Mat {
+
+    final long[] descriptors;
+
+    public Mat(long[] descriptors) {
+        this.descriptors = descriptors;
+    }
+}
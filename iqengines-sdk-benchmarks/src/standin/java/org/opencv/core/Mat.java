@@ -0,0 +1,152 @@
+package org.opencv.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the native OpenCV Mat, holding its elements in a Java array so that
+ * Converters runs on a plain JVM. Only what Converters uses is implemented.
+ * Element copies cost about what the JNI copies of the real Mat do, without the JNI transitions.
+ * Addresses are only identifiers: a Mat rebuilt from an address is empty.
+ */
+public class Mat {
+
+    private static final AtomicLong NEXT_ADDR = new AtomicLong(1);
+
+    public final long nativeObj;
+
+    private final int rows;
+
+    private final int cols;
+
+    private final int type;
+
+    private final Object data;
+
+    public Mat(long addr) {
+        if (addr == 0)
+            throw new java.lang.UnsupportedOperationException("Native object address is NULL");
+        nativeObj = addr;
+        rows = 0;
+        cols = 0;
+        type = CvType.CV_8UC1;
+        data = new byte[0];
+    }
+
+    public Mat() {
+        this(0, 0, CvType.CV_8UC1);
+    }
+
+    public Mat(int rows, int cols, int type) {
+        nativeObj = NEXT_ADDR.getAndIncrement();
+        this.rows = rows;
+        this.cols = cols;
+        this.type = type;
+        int length = rows * cols * CvType.channels(type);
+        switch (CvType.depth(type)) {
+        case CvType.CV_8U:
+        case CvType.CV_8S:
+            data = new byte[length];
+            break;
+        case CvType.CV_16U:
+        case CvType.CV_16S:
+            data = new short[length];
+            break;
+        case CvType.CV_32S:
+            data = new int[length];
+            break;
+        case CvType.CV_32F:
+            data = new float[length];
+            break;
+        default:
+            data = new double[length];
+            break;
+        }
+    }
+
+    public void release() {
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    public boolean empty() {
+        return rows == 0 || cols == 0;
+    }
+
+    public Size size() {
+        return new Size(cols, rows);
+    }
+
+    public int put(int row, int col, double... src) {
+        return copy(src, src.length, row, col, true);
+    }
+
+    public int put(int row, int col, float[] src) {
+        return copy(src, src.length, row, col, true);
+    }
+
+    public int put(int row, int col, int[] src) {
+        return copy(src, src.length, row, col, true);
+    }
+
+    public int put(int row, int col, short[] src) {
+        return copy(src, src.length, row, col, true);
+    }
+
+    public int put(int row, int col, byte[] src) {
+        return copy(src, src.length, row, col, true);
+    }
+
+    public int get(int row, int col, double[] dst) {
+        return copy(dst, dst.length, row, col, false);
+    }
+
+    public int get(int row, int col, float[] dst) {
+        return copy(dst, dst.length, row, col, false);
+    }
+
+    public int get(int row, int col, int[] dst) {
+        return copy(dst, dst.length, row, col, false);
+    }
+
+    public int get(int row, int col, short[] dst) {
+        return copy(dst, dst.length, row, col, false);
+    }
+
+    public int get(int row, int col, byte[] dst) {
+        return copy(dst, dst.length, row, col, false);
+    }
+
+    /**
+     * Copies elements from or to the array, which must match the depth of the Mat.
+     *
+     * @return the number of bytes copied.
+     */
+    private int copy(Object array, int length, int row, int col, boolean put) {
+        if (array.getClass() != data.getClass())
+            throw new java.lang.UnsupportedOperationException("Mat data type is not compatible: " + type);
+        int offset = (row * cols + col) * CvType.channels(type);
+        int count = Math.min(length, java.lang.reflect.Array.getLength(data) - offset);
+        if (count <= 0)
+            return 0;
+        if (put)
+            System.arraycopy(array, 0, data, offset, count);
+        else
+            System.arraycopy(data, offset, array, 0, count);
+        return count * CvType.ELEM_SIZE(type) / CvType.channels(type);
+    }
+
+    @Override
+    public String toString() {
+        return "Mat [ " + rows + "*" + cols + "*" + CvType.typeToString(type) + " ]";
+    }
+}
@@ -0,0 +1,341 @@
+package com.iqengines.sdk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.iqengines.sdk.IQE.OnResultCallback;
+
+/**
+ * Queries saved, replayed and read back after a crash from a journal cut or damaged on disk.
+ */
+public class QueryJournalTest {
+
+    /** Record types, as written by the journal */
+    private static final byte BEGIN = 2;
+
+    private static final byte FAIL = 3;
+
+    /** Length of an ADD record of device id "dev" */
+    private static final int ADD_LENGTH = 1 + 8 + 2 + (8 + 2 + 3) + 4;
+
+    /** Length of a record without payload */
+    private static final int EMPTY_LENGTH = 1 + 8 + 2 + 4;
+
+    private static final long TIMEOUT = 10000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    private File image;
+
+    private final List<QueryJournal> journals = new ArrayList<QueryJournal>();
+
+
+    /**
+     * Uploads answering with a query id, or failing with the exception given.
+     */
+    private static final class TestUploader implements QueryJournal.Uploader {
+        final List<String> uploads = Collections.synchronizedList(new ArrayList<String>());
+        final IOException failure;
+
+        TestUploader(IOException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public String upload(File image, String deviceId, OnResultCallback callback) throws IOException {
+            assertTrue(image.isFile());
+            uploads.add(image.getName());
+            if (failure != null) {
+                throw failure;
+            }
+            return "qid-" + image.getName();
+        }
+    }
+
+
+    @Before
+    public void setUp() throws IOException {
+        dir = new File(folder.getRoot(), "queries");
+        image = folder.newFile("query.jpg");
+        FileOutputStream os = new FileOutputStream(image);
+        try {
+            os.write(new byte[] { (byte) 0xff, (byte) 0xd8, 1, 2, 3, (byte) 0xff, (byte) 0xd9 });
+        } finally {
+            os.close();
+        }
+    }
+
+
+    @After
+    public void tearDown() {
+        for (QueryJournal journal : journals) {
+            journal.close();
+        }
+    }
+
+
+    private QueryJournal open(QueryJournal.Uploader uploader) throws IOException {
+        QueryJournal journal = new QueryJournal(dir, uploader);
+        journals.add(journal);
+        return journal;
+    }
+
+
+    /**
+     * Saves queries 1 to n and closes the journal.
+     */
+    private void save(int n) throws IOException {
+        QueryJournal journal = open(new TestUploader(null));
+        for (int i = 0; i < n; ++i) {
+            journal.add(image, "dev", null);
+        }
+        journal.close();
+        assertEquals(n * ADD_LENGTH, journalFile().length());
+    }
+
+
+    @Test
+    public void savedQueriesAreReadBack() throws IOException {
+        save(3);
+        QueryJournal journal = open(new TestUploader(null));
+
+        assertEquals(3, journal.size());
+        assertImages(1, 2, 3);
+        journal.add(image, "dev", null);
+        assertEquals(4, journal.size());
+        // sequence numbers go on after the ones read back
+        assertImages(1, 2, 3, 4);
+    }
+
+
+    @Test
+    public void tornRecordIsCutOff() throws IOException {
+        save(3);
+        truncate(journalFile(), 3 * ADD_LENGTH - 5);
+        QueryJournal journal = open(new TestUploader(null));
+
+        assertEquals(2, journal.size());
+        assertImages(1, 2);
+        assertEquals(2 * ADD_LENGTH, journalFile().length());
+    }
+
+
+    @Test
+    public void tornHeaderIsCutOff() throws IOException {
+        save(2);
+        RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(BEGIN);
+            raf.write(new byte[] { 0, 0, 0 });
+        } finally {
+            raf.close();
+        }
+        QueryJournal journal = open(new TestUploader(null));
+
+        assertEquals(2, journal.size());
+        assertImages(1, 2);
+    }
+
+
+    @Test
+    public void readingStopsAtDamagedRecord() throws IOException {
+        save(3);
+        // a byte of the device id of query 2
+        flip(journalFile(), ADD_LENGTH + 1 + 8 + 2 + 8 + 2);
+        QueryJournal journal = open(new TestUploader(null));
+
+        assertEquals(1, journal.size());
+        assertImages(1);
+        assertEquals(ADD_LENGTH, journalFile().length());
+    }
+
+
+    @Test
+    public void damagedChecksumStopsReading() throws IOException {
+        save(2);
+        flip(journalFile(), 2 * ADD_LENGTH - 1);
+        QueryJournal journal = open(new TestUploader(null));
+
+        assertEquals(1, journal.size());
+        assertImages(1);
+    }
+
+
+    @Test
+    public void interruptedUploadIsDropped() throws IOException {
+        save(3);
+        append(journalFile(), record(BEGIN, 2), record(BEGIN, 3), record(FAIL, 3));
+        QueryJournal journal = open(new TestUploader(null));
+
+        // query 2 may have reached the server, query 3 is known not to
+        assertEquals(2, journal.size());
+        assertImages(1, 3);
+    }
+
+
+    @Test
+    public void sentQueryIsRemoved() throws Exception {
+        save(2);
+        TestUploader uploader = new TestUploader(null);
+        QueryJournal journal = open(uploader);
+        journal.replay();
+
+        waitFor(journal, 0, 0);
+        assertEquals(2, uploader.uploads.size());
+        assertImages();
+        journal.close();
+        assertEquals(0, open(new TestUploader(null)).size());
+    }
+
+
+    @Test
+    public void queryIsKeptWhenServerCantBeReached() throws Exception {
+        save(1);
+        TestUploader uploader = new TestUploader(new ConnectException("offline"));
+        QueryJournal journal = open(uploader);
+        journal.replay();
+
+        waitFor(journal, 1, ADD_LENGTH + 2 * EMPTY_LENGTH);
+        assertEquals(Collections.singletonList("1.jpg"), uploader.uploads);
+        journal.close();
+        assertEquals(1, open(new TestUploader(null)).size());
+        assertImages(1);
+    }
+
+
+    @Test
+    public void queryIsDroppedWhenServerMayHaveIt() throws Exception {
+        save(1);
+        TestUploader uploader = new TestUploader(new IOException("connection reset"));
+        QueryJournal journal = open(uploader);
+        journal.replay();
+
+        waitFor(journal, 0, 0);
+        assertImages();
+        journal.close();
+        assertEquals(0, open(new TestUploader(null)).size());
+    }
+
+
+    @Test
+    public void closedJournalRefusesQueries() throws IOException {
+        QueryJournal journal = open(new TestUploader(null));
+        journal.close();
+        try {
+            journal.add(image, "dev", null);
+            fail("added to a closed journal");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    private File journalFile() {
+        return new File(dir, QueryJournal.JOURNAL_NAME);
+    }
+
+
+    /**
+     * Checks the saved images are those of the sequence numbers given, and nothing else is left.
+     */
+    private void assertImages(long... seqs) {
+        String[] expected = new String[seqs.length + 1];
+        expected[0] = QueryJournal.JOURNAL_NAME;
+        for (int i = 0; i < seqs.length; ++i) {
+            expected[i + 1] = seqs[i] + ".jpg";
+        }
+        String[] names = dir.list();
+        Arrays.sort(expected);
+        Arrays.sort(names);
+        assertArrayEquals(expected, names);
+    }
+
+
+    /**
+     * Waits for the uploads of a replay to be over, as told by the size of the journal.
+     */
+    private void waitFor(QueryJournal journal, int size, long journalLength) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (journal.size() != size || journalFile().length() != journalLength) {
+            assertFalse("replay did not end", System.currentTimeMillis() > deadline);
+            Thread.sleep(10);
+        }
+    }
+
+
+    /**
+     * @return a record without payload, laid out as the journal writes them.
+     */
+    private static byte[] record(byte type, long seq) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(seq);
+        out.writeShort(0);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+
+    private static void append(File file, byte[]... records) throws IOException {
+        FileOutputStream os = new FileOutputStream(file, true);
+        try {
+            for (byte[] record : records) {
+                os.write(record);
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    private static void flip(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x40);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.iqengines.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Log-linear bucketing of latencies and the percentiles read out of it.
+ */
+public class SearchMetricsTest {
+
+    /** Last bucket, open-ended */
+    private static final int LAST_BUCKET = 41 * 8 - 1;
+
+
+    @Test
+    public void smallValuesHaveOneBucketEach() {
+        for (int micros = 0; micros < 16; ++micros) {
+            assertEquals(micros, SearchMetrics.bucketOf(micros));
+            assertEquals(micros, SearchMetrics.bucketFloor(micros));
+        }
+    }
+
+
+    @Test
+    public void bucketsHoldTheirValues() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; ++i) {
+            long micros = random.nextLong() >>> (24 + random.nextInt(40));
+            assertBucketHolds(micros);
+        }
+        for (int shift = 0; shift < 43; ++shift) {
+            long power = 1L << shift;
+            assertBucketHolds(power - 1);
+            assertBucketHolds(power);
+            assertBucketHolds(power + 1);
+        }
+    }
+
+
+    @Test
+    public void bucketsAreOrderedAndNarrow() {
+        for (int bucket = 1; bucket <= LAST_BUCKET; ++bucket) {
+            long floor = SearchMetrics.bucketFloor(bucket);
+            long previous = SearchMetrics.bucketFloor(bucket - 1);
+            assertTrue("bucket " + bucket, floor > previous);
+            // 8 buckets per power of two, each at most 1/8 of its values wide
+            assertTrue("bucket " + bucket, (floor - previous) * 8 <= Math.max(8, previous));
+            assertEquals(bucket, SearchMetrics.bucketOf(floor));
+            assertEquals(bucket - 1, SearchMetrics.bucketOf(floor - 1));
+        }
+    }
+
+
+    @Test
+    public void hugeValuesGoToTheLastBucket() {
+        assertEquals(LAST_BUCKET, SearchMetrics.bucketOf(1L << 43));
+        assertEquals(LAST_BUCKET, SearchMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+
+    @Test
+    public void percentilesAreWithinAnEighth() {
+        SearchMetrics metrics = new SearchMetrics();
+        for (int millis = 1; millis <= 1000; ++millis) {
+            metrics.record(SearchMetrics.Stage.LOCAL_MATCH, millis * 1000000L);
+        }
+        SearchMetrics.StageStats stats = metrics.snapshot().getStage(SearchMetrics.Stage.LOCAL_MATCH);
+
+        assertEquals(1000, stats.getCount());
+        assertEquals(500.5, stats.getMeanMillis(), 1e-9);
+        assertEquals(1000, stats.getMaxMillis(), 1e-9);
+        assertEquals(500, stats.getP50Millis(), 500 / 8.0);
+        assertEquals(950, stats.getP95Millis(), 950 / 8.0);
+        assertEquals(990, stats.getP99Millis(), 990 / 8.0);
+        assertTrue(stats.getP99Millis() <= stats.getMaxMillis());
+    }
+
+
+    @Test
+    public void percentilesDoNotExceedTheMaximum() {
+        SearchMetrics metrics = new SearchMetrics();
+        // top of a wide bucket, whose middle is above it
+        metrics.record(SearchMetrics.Stage.UPLOAD, 1100 * 1000L);
+        SearchMetrics.StageStats stats = metrics.snapshot().getStage(SearchMetrics.Stage.UPLOAD);
+
+        assertEquals(1.1, stats.getMaxMillis(), 1e-9);
+        assertTrue(stats.getP50Millis() <= 1.1);
+        assertEquals(1.1, stats.getP50Millis(), 1.1 / 8);
+    }
+
+
+    @Test
+    public void negativeDurationsCountAsZero() {
+        SearchMetrics metrics = new SearchMetrics();
+        metrics.record(SearchMetrics.Stage.CROP, -5000);
+        SearchMetrics.StageStats stats = metrics.snapshot().getStage(SearchMetrics.Stage.CROP);
+
+        assertEquals(1, stats.getCount());
+        assertEquals(0, stats.getMaxMillis(), 0);
+    }
+
+
+    @Test
+    public void resetStartsOver() {
+        SearchMetrics metrics = new SearchMetrics();
+        metrics.record(SearchMetrics.Stage.CALLBACK, 3000000);
+        metrics.increment(SearchMetrics.Counter.LOCAL_HITS);
+        metrics.reset();
+        SearchMetrics.Snapshot snapshot = metrics.snapshot();
+
+        assertEquals(0, snapshot.getStage(SearchMetrics.Stage.CALLBACK).getCount());
+        assertEquals(0, snapshot.getStage(SearchMetrics.Stage.CALLBACK).getP99Millis(), 0);
+        assertEquals(0, snapshot.getCounter(SearchMetrics.Counter.LOCAL_HITS));
+    }
+
+
+    private static void assertBucketHolds(long micros) {
+        int bucket = SearchMetrics.bucketOf(micros);
+        assertTrue(micros + " below bucket " + bucket, SearchMetrics.bucketFloor(bucket) <= micros);
+        if (bucket < LAST_BUCKET) {
+            assertTrue(micros + " above bucket " + bucket, micros < SearchMetrics.bucketFloor(bucket + 1));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.iqengines.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+/**
+ * Update-API responses as the server sends them, and the corner cases of the lexer.
+ */
+public class UpdateParserTest {
+
+    /**
+     * Collects results as qid, labels, meta triples.
+     */
+    private static final class Collector implements UpdateParser.Sink {
+        final List<String> results = new ArrayList<String>();
+
+        @Override
+        public void onResult(String qid, String labels, String meta) {
+            results.add(qid);
+            results.add(labels);
+            results.add(meta);
+        }
+    }
+
+
+    private static List<String> parse(String response) throws JSONException {
+        Collector collector = new Collector();
+        assertEquals(0, UpdateParser.parse(response, collector));
+        return collector.results;
+    }
+
+
+    private static String result(String qid, String qidData) {
+        return "{\"qid\": \"" + qid + "\", \"qid_data\": " + qidData + "}";
+    }
+
+
+    private static String response(String... results) {
+        StringBuilder sb = new StringBuilder("{\"data\": {\"error\": 0, \"results\": [");
+        for (int i = 0; i < results.length; ++i) {
+            sb.append(i > 0 ? ", " : "").append(results[i]);
+        }
+        return sb.append("]}}").toString();
+    }
+
+
+    @Test
+    public void parsesResultsInOrder() throws JSONException {
+        List<String> results = parse(response(
+                result("q1", "{\"labels\": \"Coca-Cola\", \"meta\": \"12oz\", \"color\": \"Red\"}"),
+                result("q2", "{}"),
+                result("q3", "{\"labels\": \"Pepsi\"}")));
+
+        assertEquals(Arrays.asList("q1", "Coca-Cola", "12oz",
+                "q2", UpdateParser.NO_MATCH_FOUND, null,
+                "q3", "Pepsi", null), results);
+    }
+
+
+    @Test
+    public void emptyResponsesHaveNoResults() throws JSONException {
+        assertEquals(0, parse("{}").size());
+        assertEquals(0, parse("{\"data\": {\"error\": 0, \"results\": []}}").size());
+    }
+
+
+    @Test
+    public void unescapesStrings() throws JSONException {
+        List<String> results = parse(response(
+                result("q\\\"1", "{\"labels\": \"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\"}")));
+
+        assertEquals("q\"1", results.get(0));
+        assertEquals("a\"b\\c/d\b\f\n\r\t", results.get(1));
+    }
+
+
+    @Test
+    public void decodesUnicodeEscapes() throws JSONException {
+        List<String> results = parse(response(
+                result("q1", "{\"labels\": \"caf\\u00e9 \\u00E9\", \"meta\": \"\\uD83D\\uDE00!\"}")));
+
+        assertEquals("caf\u00e9 \u00e9", results.get(1));
+        // a surrogate pair decodes to the two chars of one code point
+        assertEquals("\uD83D\uDE00!", results.get(2));
+        assertEquals(0x1F600, results.get(2).codePointAt(0));
+    }
+
+
+    @Test
+    public void rejectsBadUnicodeEscapes() {
+        assertSyntaxError(response(result("q1", "{\"labels\": \"\\u00g9\"}")));
+        assertSyntaxError(response(result("q1", "{\"labels\": \"\\u00")));
+    }
+
+
+    @Test
+    public void keepsObjectAndArrayMetaAsJsonText() throws JSONException {
+        List<String> results = parse(response(
+                result("q1", "{\"labels\": \"a\", \"meta\": {\"url\": \"http://x/\\\"y\\\"\", \"sizes\": [1, 2.5, {\"n\": null}], \"ok\": true}}"),
+                result("q2", "{\"labels\": \"b\", \"meta\": [\"x\", [], {}]}")));
+
+        assertEquals("{\"url\":\"http://x/\\\"y\\\"\",\"sizes\":[1,2.5,{\"n\":null}],\"ok\":true}", results.get(2));
+        assertEquals("[\"x\",[],{}]", results.get(5));
+    }
+
+
+    @Test
+    public void readsLiteralMeta() throws JSONException {
+        List<String> results = parse(response(
+                result("q1", "{\"labels\": \"a\", \"meta\": null}"),
+                result("q2", "{\"labels\": \"b\", \"meta\": 12}"),
+                result("q3", "{\"labels\": \"c\", \"meta\": false}")));
+
+        assertNull(results.get(2));
+        assertEquals("12", results.get(5));
+        assertEquals("false", results.get(8));
+    }
+
+
+    @Test
+    public void holdsResultsUntilTrailingErrorIsKnown() throws JSONException {
+        String results = "[" + result("q1", "{\"labels\": \"a\"}") + ", " + result("q2", "{}") + "]";
+
+        List<String> delivered = parse("{\"data\": {\"results\": " + results + ", \"error\": 0}}");
+        assertEquals(Arrays.asList("q1", "a", null, "q2", UpdateParser.NO_MATCH_FOUND, null), delivered);
+
+        Collector collector = new Collector();
+        assertEquals(7, UpdateParser.parse("{\"data\": {\"results\": " + results + ", \"error\": 7}}", collector));
+        assertEquals(0, collector.results.size());
+    }
+
+
+    @Test
+    public void skipsResultsAfterLeadingError() throws JSONException {
+        Collector collector = new Collector();
+        assertEquals(3, UpdateParser.parse("{\"data\": {\"error\": \"3\", \"results\": ["
+                + result("q1", "{\"labels\": \"a\"}") + "]}}", collector));
+        assertEquals(0, collector.results.size());
+    }
+
+
+    @Test
+    public void errorWithoutResultsIsReturned() throws JSONException {
+        Collector collector = new Collector();
+        assertEquals(2, UpdateParser.parse("{\"data\": {\"error\": 2}}", collector));
+        assertEquals(0, collector.results.size());
+    }
+
+
+    @Test
+    public void rejectsMissingResults() {
+        assertSyntaxError("{\"data\": {\"error\": 0}}");
+        assertSyntaxError("{\"data\": {}}");
+    }
+
+
+    @Test
+    public void rejectsResultsWithoutQidData() {
+        assertSyntaxError(response("{\"qid\": \"q1\"}"));
+    }
+
+
+    @Test
+    public void rejectsMalformedResponses() {
+        assertSyntaxError("");
+        assertSyntaxError("[]");
+        assertSyntaxError("{\"data\": {\"error\": 0, \"results\": [}}");
+        assertSyntaxError("{\"data\": {\"error\": 0, \"results\": []}");
+        assertSyntaxError("{\"data\": {\"error\": , \"results\": []}}");
+        assertSyntaxError("{\"data\": {\"error\": \"zero\", \"results\": []}}");
+        assertSyntaxError(response(result("q1", "{\"labels\": \"unterminated}")));
+    }
+
+
+    @Test
+    public void readsTokensAcrossBufferBoundaries() throws IOException, JSONException {
+        // the lexer reads 1024 chars at a time, escapes and names are cut at every offset
+        for (int padding = 1000; padding < 1040; ++padding) {
+            StringBuilder labels = new StringBuilder();
+            for (int i = 0; i < padding; ++i) {
+                labels.append('x');
+            }
+            String response = response(result("q1", "{\"labels\": \"" + labels + "\\u00e9\\n\", \"meta\": {\"a\": [1, \"\\\"\"]}}"));
+            Collector collector = new Collector();
+            assertEquals(0, UpdateParser.parse(new StringReader(response), collector));
+            assertEquals(labels + "\u00e9\n", collector.results.get(1));
+            assertEquals("{\"a\":[1,\"\\\"\"]}", collector.results.get(2));
+        }
+    }
+
+
+    private static void assertSyntaxError(String response) {
+        try {
+            UpdateParser.parse(response, new Collector());
+            fail("parsed " + response);
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+}
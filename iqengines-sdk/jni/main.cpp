@@ -5,6 +5,7 @@
 #include <opencv2/core/mat.hpp>
 #include "iqindex.h"
 #include <android/log.h>
+#include <pthread.h>
 
 #define TAG "IQIndex NATIVE"
 
@@ -55,6 +56,33 @@ static Mat *mat(jlong nativeObj)
     return reinterpret_cast<Mat *>(nativeObj);
 }
 
+// Mat handles held by Java and the pixel bytes they own, submatrices sharing their parent's pixels
+static pthread_mutex_t matStatsLock = PTHREAD_MUTEX_INITIALIZER;
+static jlong liveMatBytes = 0;
+static jint liveMats = 0;
+
+static jlong ownedBytes(const Mat &m)
+{
+    return m.isSubmatrix() ? 0 : (jlong) (m.total() * m.elemSize());
+}
+
+static void updateMatStats(jint mats, jlong bytes)
+{
+    pthread_mutex_lock(&matStatsLock);
+    liveMats += mats;
+    liveMatBytes += bytes;
+    pthread_mutex_unlock(&matStatsLock);
+}
+
+/*
+ * Hands a new Mat over to Java, accounting for its memory until it is destroyed.
+ */
+static jlong track(Mat *m)
+{
+    updateMatStats(1, ownedBytes(*m));
+    return reinterpret_cast<jlong>(m);
+}
+
 JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_create_1n
   (JNIEnv *env, jobject, jstring file)
 {
@@ -62,13 +90,94 @@ JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_create_1n
     Mat obj = cv::imread(native_file);
     env->ReleaseStringUTFChars(file, native_file);
 
-    return reinterpret_cast<jlong>(new Mat(obj));
+    return track(new Mat(obj));
+}
+
+static Mat *nv21ToBgr(const void *data, jint width, jint height)
+{
+    // NV21 is a full resolution Y plane followed by an interleaved half resolution VU plane
+    Mat yuv(height + height / 2, width, CV_8UC1, const_cast<void *>(data));
+    Mat *bgr = new Mat();
+    cv::cvtColor(yuv, *bgr, CV_YUV420sp2BGR);
+    return bgr;
+}
+
+JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_createNv21_1n
+  (JNIEnv *env, jobject, jbyteArray data, jint width, jint height)
+{
+    void *native_data = env->GetPrimitiveArrayCritical(data, 0);
+    if (native_data == NULL)
+        return 0;
+
+    Mat *obj = NULL;
+    try
+    {
+        obj = nv21ToBgr(native_data, width, height);
+    }
+    catch (...)
+    {
+        env->ReleasePrimitiveArrayCritical(data, native_data, JNI_ABORT);
+        jthrow(env);
+        return 0;
+    }
+    env->ReleasePrimitiveArrayCritical(data, native_data, JNI_ABORT);
+
+    return track(obj);
+}
+
+JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_createNv21Buffer_1n
+  (JNIEnv *env, jobject, jobject data, jint width, jint height)
+{
+    void *native_data = env->GetDirectBufferAddress(data);
+    if (native_data == NULL)
+    {
+        env->ThrowNew(clsRuntimeException, "NV21 buffer is not direct");
+        return 0;
+    }
+
+    try
+    {
+        return track(nv21ToBgr(native_data, width, height));
+    }
+    catch (...)
+    {
+        jthrow(env);
+        return 0;
+    }
+}
+
+JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_createEmpty_1n
+  (JNIEnv *env, jobject)
+{
+    return track(new Mat());
 }
 
 JNI_GLOBAL void JNICALL Java_com_iqengines_sdk_Mat_destroy_1n
   (JNIEnv *env, jobject, jlong nativeObj)
 {
-    delete mat(nativeObj);
+    Mat *m = mat(nativeObj);
+    if (m == NULL)
+        return;
+    updateMatStats(-1, -ownedBytes(*m));
+    delete m;
+}
+
+JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_liveBytes_1n
+  (JNIEnv *env, jclass)
+{
+    pthread_mutex_lock(&matStatsLock);
+    jlong bytes = liveMatBytes;
+    pthread_mutex_unlock(&matStatsLock);
+    return bytes;
+}
+
+JNI_GLOBAL jint JNICALL Java_com_iqengines_sdk_Mat_liveCount_1n
+  (JNIEnv *env, jclass)
+{
+    pthread_mutex_lock(&matStatsLock);
+    jint count = liveMats;
+    pthread_mutex_unlock(&matStatsLock);
+    return count;
 }
 
 JNI_GLOBAL jint JNICALL Java_com_iqengines_sdk_Mat_cols_1n
@@ -87,7 +196,7 @@ JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_submat_1n
   (JNIEnv *env, jobject, jlong nativeObj, jint x, jint y, jint width, jint height)
 {
     Mat obj = (*mat(nativeObj))(Rect(x, y, width, height));
-    return reinterpret_cast<jlong>(new Mat(obj));
+    return track(new Mat(obj));
 }
 
 JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_resize_1n
@@ -95,7 +204,70 @@ JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_resize_1n
 {
     Mat obj;
     cv::resize(*mat(nativeObj), obj, Size(width, height));
-    return reinterpret_cast<jlong>(new Mat(obj));
+    return track(new Mat(obj));
+}
+
+/*
+ * Scales a region of a Mat into another one, reusing its pixels when it already has the target size.
+ */
+JNI_GLOBAL void JNICALL Java_com_iqengines_sdk_Mat_cropResize_1n
+  (JNIEnv *env, jobject, jlong nativeObj, jint x, jint y, jint width, jint height,
+   jlong dstObj, jint dstWidth, jint dstHeight)
+{
+    try
+    {
+        Mat *dst = mat(dstObj);
+        jlong before = ownedBytes(*dst);
+        cv::resize((*mat(nativeObj))(Rect(x, y, width, height)), *dst, Size(dstWidth, dstHeight));
+        updateMatStats(0, ownedBytes(*dst) - before);
+    }
+    catch (...)
+    {
+        jthrow(env);
+    }
+}
+
+/*
+ * Difference hash of the centered square of a Mat: the square is scaled down to 9x8 gray pixels
+ * and bit 8 * y + x tells whether pixel (x, y) is darker than its right neighbour.
+ */
+JNI_GLOBAL jlong JNICALL Java_com_iqengines_sdk_Mat_dHash_1n
+  (JNIEnv *env, jobject, jlong nativeObj)
+{
+    try
+    {
+        const Mat &img = *mat(nativeObj);
+        int side = std::min(img.cols, img.rows);
+        if (side == 0)
+            return 0;
+
+        // scaled before conversion, so that only 72 pixels are converted to gray
+        Mat small;
+        cv::resize(img(Rect((img.cols - side) / 2, (img.rows - side) / 2, side, side)), small,
+                   Size(9, 8), 0, 0, cv::INTER_AREA);
+        Mat gray;
+        if (small.channels() == 1)
+            gray = small;
+        else
+            cv::cvtColor(small, gray, small.channels() == 4 ? CV_BGRA2GRAY : CV_BGR2GRAY);
+
+        jlong hash = 0;
+        for (int y = 0; y < 8; ++y)
+        {
+            const uchar *row = gray.ptr<uchar>(y);
+            for (int x = 0; x < 8; ++x)
+            {
+                if (row[x] < row[x + 1])
+                    hash |= (jlong) 1 << (8 * y + x);
+            }
+        }
+        return hash;
+    }
+    catch (...)
+    {
+        jthrow(env);
+        return 0;
+    }
 }
 
 // IQIndex implementation
@@ -150,6 +322,43 @@ JNI_GLOBAL jint Java_com_iqengines_sdk_IQLocal_match(JNIEnv* env, jobject , jlon
     }
 }
 
+/*
+ * Matches every image of a batch, cropping its center and scaling it to size x size as IQLocal.prepareQuery does.
+ * The scaled query is a scratch buffer reused from one image to the next.
+ * results receives the IQIndex match of each image.
+ */
+JNI_GLOBAL void Java_com_iqengines_sdk_IQLocal_matchBatch(JNIEnv* env, jobject , jlong nativeObj,
+        jlongArray matObjs, jint size, jintArray results)
+{
+    TRACE_ENTER;
+    try
+    {
+        IQIndex *idx = index(nativeObj);
+        jsize count = env->GetArrayLength(matObjs);
+        vector<jlong> addrs(count);
+        vector<jint> out(count);
+        if (count > 0)
+            env->GetLongArrayRegion(matObjs, 0, count, &addrs[0]);
+
+        Mat scaled;
+        for (jsize i = 0; i < count; ++i)
+        {
+            const Mat &img = *mat(addrs[i]);
+            int min = std::min(img.cols, img.rows);
+            Mat cropped = img(Rect((img.cols - min / 2) / 2, (img.rows - min / 2) / 2, min / 2, min / 2));
+            cv::resize(cropped, scaled, Size(size, size));
+            out[i] = idx->match(scaled);
+        }
+
+        if (count > 0)
+            env->SetIntArrayRegion(results, 0, count, &out[0]);
+    }
+    catch (...)
+    {
+        jthrow(env);
+    }
+}
+
 JNI_GLOBAL jint Java_com_iqengines_sdk_IQLocal_train(JNIEnv* env, jobject , jlong nativeObj)
 {
     TRACE_ENTER;
@@ -255,3 +464,317 @@ JNI_GLOBAL jstring Java_com_iqengines_sdk_IQLocal_getObjMeta(JNIEnv *env, jobjec
         jthrow(env);
     }
 }
+
+// Verifier implementation
+//
+// IQIndex only tells which object matched. The verifier scores candidates by the number of
+// geometrically consistent feature matches (RANSAC homography inliers) between the query and
+// their reference images: the IQIndex match, then objects added after training, the most
+// recent first. No more reference images are verified per query than candidates are asked for.
+// Features of a trained object are extracted the first time it is a candidate and kept.
+
+static const int VERIFIER_FEATURES = 300;
+static const int VERIFIER_IMAGE_SIZE = 300;
+static const int MIN_HOMOGRAPHY_POINTS = 4;
+static const float RATIO_TEST = 0.8f;
+
+struct Reference
+{
+    vector<KeyPoint> keypoints;
+    Mat descriptors;
+};
+
+struct Verifier
+{
+    // reference features by object index,
+    // objects added after training get indices from the index object count up
+    vector<vector<Reference> > references;
+    // whether the reference images of an object were looked up
+    vector<bool> extracted;
+    // tombstones of removed objects
+    vector<bool> removed;
+
+    bool isRemoved(int objIdx) const
+    {
+        return objIdx >= 0 && (size_t) objIdx < removed.size() && removed[objIdx];
+    }
+
+    void grow(size_t objCount)
+    {
+        if (references.size() >= objCount)
+            return;
+        references.resize(objCount);
+        extracted.resize(objCount, false);
+        removed.resize(objCount, false);
+    }
+
+    void reset()
+    {
+        references.clear();
+        extracted.clear();
+        removed.clear();
+    }
+};
+
+static Verifier *verifier(jlong nativeObj)
+{
+    return reinterpret_cast<Verifier *>(nativeObj);
+}
+
+static void computeFeatures(const Mat &img, vector<KeyPoint> &keypoints, Mat &descriptors)
+{
+    Mat gray;
+    if (img.channels() == 1)
+        gray = img;
+    else
+        cv::cvtColor(img, gray, CV_BGR2GRAY);
+
+    ORB orb(VERIFIER_FEATURES);
+    orb(gray, Mat(), keypoints, descriptors);
+}
+
+static Mat scaleReference(const Mat &img)
+{
+    int maxSide = std::max(img.cols, img.rows);
+    if (maxSide > VERIFIER_IMAGE_SIZE)
+    {
+        Mat scaled;
+        double ratio = (double) VERIFIER_IMAGE_SIZE / maxSide;
+        cv::resize(img, scaled, Size(), ratio, ratio, cv::INTER_AREA);
+        return scaled;
+    }
+    return img;
+}
+
+static Mat loadReferenceImage(const string &dataDir, const string &imgId)
+{
+    // reference images are stored in the data directory, named after their id
+    Mat img = cv::imread(dataDir + "/" + imgId, 0);
+    if (img.empty())
+        img = cv::imread(dataDir + "/" + imgId + ".jpg", 0);
+    if (img.empty())
+        return img;
+    return scaleReference(img);
+}
+
+/*
+ * Returns the reference features of an object, extracting those of up to maxImages images
+ * of a trained object the first time it is asked for.
+ */
+static const vector<Reference> &referencesOf(IQIndex *idx, Verifier *v, int objIdx, int maxImages)
+{
+    v->grow(objIdx + 1);
+    vector<Reference> &refs = v->references[objIdx];
+    if (v->extracted[objIdx] || (size_t) objIdx >= idx->obj_ids.size())
+        return refs;
+    v->extracted[objIdx] = true;
+
+    const string &objId = idx->obj_ids[objIdx];
+    map<string, vector<string> >::const_iterator it = idx->obj_id2img_ids.find(objId);
+    for (size_t j = 0; it != idx->obj_id2img_ids.end() && j < it->second.size()
+            && (int) refs.size() < maxImages; ++j)
+    {
+        Mat img = loadReferenceImage(idx->data_dir, it->second[j]);
+        if (img.empty())
+            continue;
+
+        Reference ref;
+        computeFeatures(img, ref.keypoints, ref.descriptors);
+        if (ref.descriptors.rows >= MIN_HOMOGRAPHY_POINTS)
+            refs.push_back(ref);
+    }
+    if (refs.empty())
+        __android_log_print(ANDROID_LOG_WARN, TAG, "verifier: no reference image of %s in %s, its matches are not verified",
+                objId.c_str(), idx->data_dir.c_str());
+    return refs;
+}
+
+static int countInliers(const vector<KeyPoint> &queryKeypoints, const Mat &queryDescriptors,
+        const Reference &ref)
+{
+    BruteForceMatcher<Hamming> matcher;
+    vector<vector<DMatch> > knn;
+    matcher.knnMatch(queryDescriptors, ref.descriptors, knn, 2);
+
+    vector<Point2f> src, dst;
+    for (size_t i = 0; i < knn.size(); ++i)
+    {
+        if (knn[i].size() < 2 || knn[i][0].distance >= RATIO_TEST * knn[i][1].distance)
+            continue;
+        src.push_back(queryKeypoints[knn[i][0].queryIdx].pt);
+        dst.push_back(ref.keypoints[knn[i][0].trainIdx].pt);
+    }
+    if ((int) src.size() < MIN_HOMOGRAPHY_POINTS)
+        return 0;
+
+    vector<uchar> mask;
+    cv::findHomography(Mat(src), Mat(dst), CV_RANSAC, 3, mask);
+    return cv::countNonZero(Mat(mask));
+}
+
+JNI_GLOBAL jlong Java_com_iqengines_sdk_IQLocal_nativeCreateVerifier(JNIEnv *env, jobject )
+{
+    return reinterpret_cast<jlong>(new Verifier());
+}
+
+JNI_GLOBAL void Java_com_iqengines_sdk_IQLocal_nativeDestroyVerifier(JNIEnv *env, jobject , jlong verifierObj)
+{
+    delete verifier(verifierObj);
+}
+
+JNI_GLOBAL void Java_com_iqengines_sdk_IQLocal_resetVerifier(JNIEnv *env, jobject , jlong verifierObj)
+{
+    verifier(verifierObj)->reset();
+}
+
+/*
+ * Adds a reference image of an object added after training.
+ * Returns the number of features found in the image, the image is ignored if too few.
+ */
+JNI_GLOBAL jint Java_com_iqengines_sdk_IQLocal_addReference(JNIEnv *env, jobject , jlong verifierObj, jint objIdx, jlong matObj)
+{
+    TRACE_ENTER;
+    try
+    {
+        Verifier *v = verifier(verifierObj);
+        Reference ref;
+        computeFeatures(scaleReference(*reinterpret_cast<Mat *>(matObj)), ref.keypoints, ref.descriptors);
+        if (ref.descriptors.rows < MIN_HOMOGRAPHY_POINTS)
+            return ref.descriptors.rows;
+
+        v->grow(objIdx + 1);
+        v->extracted[objIdx] = true;
+        v->references[objIdx].push_back(ref);
+        return ref.descriptors.rows;
+    }
+    catch (...)
+    {
+        jthrow(env);
+    }
+    return 0;
+}
+
+/*
+ * Marks an object as removed: it is never matched again and its reference features are freed.
+ */
+JNI_GLOBAL void Java_com_iqengines_sdk_IQLocal_removeReferences(JNIEnv *env, jobject , jlong verifierObj, jint objIdx)
+{
+    TRACE_ENTER;
+    Verifier *v = verifier(verifierObj);
+    v->grow(objIdx + 1);
+    v->removed[objIdx] = true;
+    v->extracted[objIdx] = true;
+    vector<Reference>().swap(v->references[objIdx]);
+}
+
+/*
+ * Fills objIdx, scores and inliers with up to their length best candidates, ordered by inliers.
+ * info receives the IQIndex match, the number of query features and whether the candidates were
+ * verified, which they are not when no reference image of the IQIndex match could be read.
+ * Returns the number of candidates.
+ */
+JNI_GLOBAL jint Java_com_iqengines_sdk_IQLocal_matchTopK(JNIEnv *env, jobject , jlong nativeObj, jlong verifierObj,
+        jlong matObj, jboolean scoreIndexMatch, jintArray objIdx, jfloatArray scores, jintArray inliers, jintArray info)
+{
+    TRACE_ENTER;
+    try
+    {
+        IQIndex *idx = index(nativeObj);
+        Verifier *v = verifier(verifierObj);
+        Mat &img = *reinterpret_cast<Mat *>(matObj);
+        jint k = env->GetArrayLength(objIdx);
+
+        jint indexMatch = idx->match(img);
+        if (v->isRemoved(indexMatch))
+            indexMatch = -1;
+        if (indexMatch >= 0 && !scoreIndexMatch)
+        {
+            // reported as found, features and reference images are left alone
+            jint outInfo[3] = { indexMatch, 0, 0 };
+            env->SetIntArrayRegion(info, 0, 3, outInfo);
+            return 0;
+        }
+
+        // candidates and the reference images they are verified with, k images at most
+        vector<int> candidates;
+        vector<const Reference *> refs;
+        vector<int> refCandidates;
+        if (indexMatch >= 0)
+        {
+            candidates.push_back(indexMatch);
+            const vector<Reference> &r = referencesOf(idx, v, indexMatch, k);
+            for (size_t j = 0; j < r.size() && (jint) refs.size() < k; ++j)
+            {
+                refs.push_back(&r[j]);
+                refCandidates.push_back(0);
+            }
+        }
+        // a miss of the index is verified by the query features alone, telling featureless images
+        bool verified = scoreIndexMatch && (!refs.empty() || indexMatch < 0);
+        for (int i = (int) v->references.size() - 1; i >= (int) idx->obj_ids.size() && (jint) refs.size() < k; --i)
+        {
+            const vector<Reference> &r = v->references[i];
+            if (r.empty() || v->isRemoved(i))
+                continue;
+            candidates.push_back(i);
+            for (size_t j = 0; j < r.size() && (jint) refs.size() < k; ++j)
+            {
+                refs.push_back(&r[j]);
+                refCandidates.push_back((int) candidates.size() - 1);
+            }
+        }
+
+        // best inlier count of each candidate over its reference images
+        vector<KeyPoint> queryKeypoints;
+        Mat queryDescriptors;
+        vector<int> candidateInliers(candidates.size(), 0);
+        if (verified || !refs.empty())
+        {
+            computeFeatures(img, queryKeypoints, queryDescriptors);
+            for (size_t i = 0; i < refs.size() && queryDescriptors.rows >= MIN_HOMOGRAPHY_POINTS; ++i)
+            {
+                int n = countInliers(queryKeypoints, queryDescriptors, *refs[i]);
+                if (n > candidateInliers[refCandidates[i]])
+                    candidateInliers[refCandidates[i]] = n;
+            }
+        }
+
+        vector<jint> outIdx;
+        vector<jint> outInliers;
+        vector<jfloat> outScores;
+        vector<bool> taken(candidates.size(), false);
+        for (jint n = 0; n < k; ++n)
+        {
+            // the IQIndex match comes first, so it wins ties
+            int best = -1;
+            for (size_t i = 0; i < candidates.size(); ++i)
+            {
+                if (!taken[i] && (best < 0 || candidateInliers[i] > candidateInliers[best]))
+                    best = (int) i;
+            }
+            if (best < 0 || (candidateInliers[best] == 0 && candidates[best] != indexMatch))
+                break;
+            taken[best] = true;
+            outIdx.push_back(candidates[best]);
+            outInliers.push_back(candidateInliers[best]);
+            outScores.push_back(queryKeypoints.empty() ? 0.f : (jfloat) candidateInliers[best] / queryKeypoints.size());
+        }
+
+        jint count = (jint) outIdx.size();
+        if (count > 0)
+        {
+            env->SetIntArrayRegion(objIdx, 0, count, &outIdx[0]);
+            env->SetFloatArrayRegion(scores, 0, count, &outScores[0]);
+            env->SetIntArrayRegion(inliers, 0, count, &outInliers[0]);
+        }
+        jint outInfo[3] = { indexMatch, (jint) queryKeypoints.size(), verified ? 1 : 0 };
+        env->SetIntArrayRegion(info, 0, 3, outInfo);
+
+        return count;
+    }
+    catch (...)
+    {
+        jthrow(env);
+    }
+    return 0;
+}
@@ -0,0 +1,352 @@
+package com.iqengines.sdk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+/**
+ * Copies an asset tree to app storage, only writing files which changed since the last copy.
+ * A manifest in the target directory records the size and CRC32 of every copied file,
+ * and the version of the assets they were copied from. When the version is unchanged and
+ * every file is still there nothing is read, otherwise each asset is hashed and only
+ * changed files are copied, in parallel.
+ */
+class AssetUnpacker {
+
+    private static String TAG = AssetUnpacker.class.getName();
+
+    /**
+     * Name of the manifest file in the target directory.
+     */
+    static final String MANIFEST = ".manifest";
+
+    private static final String VERSION_PREFIX = "version ";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int COPY_THREADS = Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Size and checksum of one file.
+     */
+    private static final class Entry {
+        final long size;
+        final long crc;
+
+        Entry(long size, long crc) {
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return size == other.size && crc == other.crc;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (size ^ crc);
+        }
+    }
+
+    private final AssetManager am;
+
+    private final File in;
+
+    private final File out;
+
+    private final long version;
+
+
+    /**
+     * Constructor
+     *
+     * @param am
+     *        The {@link AssetManager} to read assets from.
+     * @param in
+     *        The asset directory to copy.
+     * @param out
+     *        The target directory.
+     * @param version
+     *        A version of the assets which changes whenever they do, e.g. the time the APK was installed.
+     *        0 if unknown, in which case assets are always hashed.
+     */
+
+
+    AssetUnpacker(AssetManager am, File in, File out, long version) {
+        this.am = am;
+        this.in = in;
+        this.out = out;
+        this.version = version;
+    }
+
+
+    /**
+     * Copies changed assets and updates the manifest.
+     *
+     * @return the number of copied files.
+     * @throws IOException
+     */
+
+
+    int unpack() throws IOException {
+        List<String> paths = new ArrayList<String>();
+        list(in, "", paths);
+
+        Map<String, Entry> manifest = new HashMap<String, Entry>();
+        long manifestVersion = readManifest(manifest);
+
+        if (version != 0 && manifestVersion == version && isComplete(paths, manifest)) {
+            return 0;
+        }
+
+        final Map<String, Entry> current = new HashMap<String, Entry>();
+        List<String> changed = new ArrayList<String>();
+        for (String path : paths) {
+            Entry entry = checksum(path);
+            current.put(path, entry);
+            File file = new File(out, path);
+            if (!entry.equals(manifest.get(path)) || file.length() != entry.size) {
+                changed.add(path);
+            }
+        }
+
+        copy(changed);
+        writeManifest(current);
+        Log.d(TAG, "Copied " + changed.size() + " of " + paths.size() + " assets to " + out);
+        return changed.size();
+    }
+
+
+    private void list(File dir, String prefix, List<String> paths) throws IOException {
+        String[] children = am.list(dir.getPath());
+        if (children != null && children.length > 0) {
+            File target = new File(out, prefix);
+            if (!target.exists())
+                target.mkdirs();
+
+            for (String child : children) {
+                list(new File(dir, child), prefix.length() == 0 ? child : prefix + "/" + child, paths);
+            }
+        } else {
+            paths.add(prefix);
+        }
+    }
+
+
+    private boolean isComplete(List<String> paths, Map<String, Entry> manifest) {
+        if (paths.size() != manifest.size()) {
+            return false;
+        }
+        for (String path : paths) {
+            Entry entry = manifest.get(path);
+            if (entry == null || new File(out, path).length() != entry.size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private Entry checksum(String path) throws IOException {
+        CRC32 crc = new CRC32();
+        ReadableByteChannel channel = Channels.newChannel(am.open(new File(in, path).getPath()));
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            long size = 0;
+            int len;
+            while ((len = channel.read(buf)) >= 0) {
+                crc.update(buf.array(), 0, len);
+                size += len;
+                buf.clear();
+            }
+            return new Entry(size, crc.getValue());
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    private void copy(List<String> paths) throws IOException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(COPY_THREADS, paths.size()));
+        try {
+            List<Future<Void>> copies = new ArrayList<Future<Void>>(paths.size());
+            for (final String path : paths) {
+                copies.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        copy(path);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while unpacking assets");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    private void copy(String path) throws IOException {
+        String assetPath = new File(in, path).getPath();
+        FileChannel dst = new FileOutputStream(new File(out, path)).getChannel();
+        try {
+            AssetFileDescriptor afd = openFd(assetPath);
+            if (afd != null) {
+                // stored uncompressed in the APK: transfer straight from the APK file.
+                // closing the stream closes afd too, so that the descriptor is closed only once
+                FileInputStream fis = afd.createInputStream();
+                FileChannel src = fis.getChannel();
+                try {
+                    long start = afd.getStartOffset();
+                    long length = afd.getLength();
+                    long done = 0;
+                    while (done < length) {
+                        done += src.transferTo(start + done, length - done, dst);
+                    }
+                } finally {
+                    fis.close();
+                }
+            } else {
+                ReadableByteChannel src = Channels.newChannel(am.open(assetPath));
+                try {
+                    ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                    while (src.read(buf) >= 0) {
+                        buf.flip();
+                        while (buf.hasRemaining()) {
+                            dst.write(buf);
+                        }
+                        buf.clear();
+                    }
+                } finally {
+                    src.close();
+                }
+            }
+        } finally {
+            dst.close();
+        }
+    }
+
+
+    /**
+     * @return an {@link AssetFileDescriptor}, null if the asset is compressed.
+     */
+
+
+    private AssetFileDescriptor openFd(String assetPath) {
+        try {
+            return am.openFd(assetPath);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads the manifest of the last copy.
+     *
+     * @return the version of the copied assets, 0 if there is no manifest.
+     */
+
+
+    private long readManifest(Map<String, Entry> manifest) {
+        File file = new File(out, MANIFEST);
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line = reader.readLine();
+                if (line == null || !line.startsWith(VERSION_PREFIX)) {
+                    return 0;
+                }
+                long manifestVersion = Long.parseLong(line.substring(VERSION_PREFIX.length()));
+                while ((line = reader.readLine()) != null) {
+                    // crc size path
+                    int sep1 = line.indexOf(' ');
+                    int sep2 = line.indexOf(' ', sep1 + 1);
+                    if (sep1 < 0 || sep2 < 0) {
+                        manifest.clear();
+                        return 0;
+                    }
+                    manifest.put(line.substring(sep2 + 1), new Entry(Long.parseLong(line.substring(sep1 + 1, sep2)),
+                            Long.parseLong(line.substring(0, sep1), 16)));
+                }
+                return manifestVersion;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + file, e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Corrupted " + file, e);
+        }
+        manifest.clear();
+        return 0;
+    }
+
+
+    private void writeManifest(Map<String, Entry> manifest) throws IOException {
+        File file = new File(out, MANIFEST);
+        File tmp = new File(out, MANIFEST + ".tmp");
+        Writer writer = new FileWriter(tmp);
+        try {
+            writer.write(VERSION_PREFIX + version + "\n");
+            for (Map.Entry<String, Entry> e : manifest.entrySet()) {
+                writer.write(Long.toHexString(e.getValue().crc) + " " + e.getValue().size + " " + e.getKey() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't write " + file);
+        }
+    }
+}
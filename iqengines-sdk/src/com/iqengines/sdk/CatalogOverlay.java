@@ -0,0 +1,357 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * Objects added to and removed from the local catalog since the index was trained.
+ * Added objects take the object indices following the trained ones, in order of addition.
+ * A removed added object leaves an empty slot so that other indices do not move.
+ * The overlay is saved as JSON next to the catalog, tagged with the catalog checksum,
+ * and dropped when the catalog changes.
+ */
+class CatalogOverlay {
+
+    private static String TAG = CatalogOverlay.class.getName();
+
+    /**
+     * Name of the overlay file in the data directory.
+     */
+    static final String FILE_NAME = "overlay.json";
+
+    /**
+     * Name of the directory holding images of added objects in the data directory.
+     */
+    static final String IMAGES_DIR = "overlay";
+
+    /**
+     * An object added after training.
+     */
+    static final class AddedObject {
+        final String id;
+        final String name;
+        final String meta;
+        final List<File> images;
+
+        AddedObject(String id, String name, String meta, List<File> images) {
+            this.id = id;
+            this.name = name;
+            this.meta = meta;
+            this.images = Collections.unmodifiableList(new ArrayList<File>(images));
+        }
+    }
+
+    private final List<AddedObject> added = new ArrayList<AddedObject>();
+
+    /** Id of the object added in each slot, kept when it is removed */
+    private final List<String> slotIds = new ArrayList<String>();
+
+    private final Set<String> removedTrained = new LinkedHashSet<String>();
+
+
+    /**
+     * @return the number of slots of added objects, including empty ones.
+     */
+
+
+    int slotCount() {
+        return added.size();
+    }
+
+
+    /**
+     * @return the object added in a slot, null if it was removed since.
+     */
+
+
+    AddedObject get(int slot) {
+        return added.get(slot);
+    }
+
+
+    /**
+     * @return the id of the object added in a slot, even if it was removed since.
+     */
+
+
+    String getId(int slot) {
+        return slotIds.get(slot);
+    }
+
+
+    /**
+     * @return the slot of an added object, -1 if none.
+     */
+
+
+    int slotOf(String id) {
+        for (int i = 0; i < added.size(); ++i) {
+            AddedObject o = added.get(i);
+            if (o != null && o.id.equals(id)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return the slot of the object.
+     */
+
+
+    int add(AddedObject o) {
+        added.add(o);
+        slotIds.add(o.id);
+        return added.size() - 1;
+    }
+
+
+    void removeSlot(int slot) {
+        added.set(slot, null);
+    }
+
+
+    /**
+     * Records the removal of a trained object.
+     *
+     * @return false if it was already removed.
+     */
+
+
+    boolean removeTrained(String id) {
+        return removedTrained.add(id);
+    }
+
+
+    Set<String> getRemovedTrained() {
+        return Collections.unmodifiableSet(removedTrained);
+    }
+
+
+    void clear() {
+        added.clear();
+        slotIds.clear();
+        removedTrained.clear();
+    }
+
+
+    /**
+     * Reads the overlay saved for a catalog. Nothing is read if it was saved for another catalog.
+     *
+     * @param file
+     *        The overlay file.
+     * @param checksum
+     *        The checksum of the current catalog.
+     */
+
+
+    void read(File file, long checksum) {
+        clear();
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(readFile(file));
+            if (json.getLong("checksum") != checksum) {
+                Log.i(TAG, "Catalog changed, dropping " + file);
+                return;
+            }
+
+            JSONArray objects = json.getJSONArray("added");
+            for (int i = 0; i < objects.length(); ++i) {
+                JSONObject o = objects.getJSONObject(i);
+                JSONArray images = o.getJSONArray("images");
+                List<File> files = new ArrayList<File>(images.length());
+                for (int j = 0; j < images.length(); ++j) {
+                    files.add(new File(images.getString(j)));
+                }
+                add(new AddedObject(o.getString("id"), o.optString("name", null), o.optString("meta", null), files));
+            }
+
+            JSONArray removed = json.getJSONArray("removed");
+            for (int i = 0; i < removed.length(); ++i) {
+                removedTrained.add(removed.getString(i));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Corrupted " + file, e);
+            clear();
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + file, e);
+            clear();
+        }
+    }
+
+
+    /**
+     * Saves the overlay, without the empty slots, and deletes the images no added object uses anymore.
+     *
+     * @param file
+     *        The overlay file.
+     * @param checksum
+     *        The checksum of the catalog the overlay applies to.
+     * @param imagesDir
+     *        The directory holding images of added objects.
+     * @throws IOException
+     */
+
+
+    void write(File file, long checksum, File imagesDir) throws IOException {
+        Set<File> used = new HashSet<File>();
+        try {
+            JSONArray objects = new JSONArray();
+            for (AddedObject o : added) {
+                if (o == null) {
+                    continue;
+                }
+                JSONArray images = new JSONArray();
+                for (File image : o.images) {
+                    images.put(image.getPath());
+                    used.add(image);
+                }
+                JSONObject json = new JSONObject();
+                json.put("id", o.id);
+                json.put("name", o.name);
+                json.put("meta", o.meta);
+                json.put("images", images);
+                objects.put(json);
+            }
+
+            JSONObject json = new JSONObject();
+            json.put("checksum", checksum);
+            json.put("added", objects);
+            json.put("removed", new JSONArray(removedTrained));
+            writeFile(file, json.toString());
+        } catch (JSONException e) {
+            throw new IOException("Can't write " + file + ": " + e.getMessage());
+        }
+
+        File[] images = imagesDir.listFiles();
+        if (images != null) {
+            for (File image : images) {
+                if (!used.contains(image)) {
+                    image.delete();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Checksum of a catalog, telling the overlay saved for it is still valid: content of the index
+     * file, paths, sizes and modification times of the other data files, subdirectories included.
+     * The overlay and the unpacking manifest are left out.
+     *
+     * @param dataPath
+     *        The data directory of the catalog.
+     * @return the checksum, 0 if the directory can't be read.
+     */
+
+
+    static long catalogChecksum(File dataPath) {
+        CRC32 crc = new CRC32();
+        try {
+            updateChecksum(crc, dataPath, "");
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + dataPath, e);
+            return 0;
+        }
+        return crc.getValue();
+    }
+
+
+    private static void updateChecksum(CRC32 crc, File dir, String prefix) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            boolean top = prefix.length() == 0;
+            if (top && (name.startsWith(AssetUnpacker.MANIFEST) || name.startsWith(IMAGES_DIR))) {
+                continue;
+            }
+            String path = prefix + name;
+            crc.update(path.getBytes());
+            if (file.isDirectory()) {
+                updateChecksum(crc, file, path + "/");
+            } else if (top && name.equals("objects.json")) {
+                updateChecksum(crc, file);
+            } else {
+                updateChecksum(crc, file.length());
+                updateChecksum(crc, file.lastModified());
+            }
+        }
+    }
+
+
+    private static void updateChecksum(CRC32 crc, long value) {
+        for (int i = 0; i < 8; ++i) {
+            crc.update((int) (value >>> (8 * i)));
+        }
+    }
+
+
+    private static void updateChecksum(CRC32 crc, File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[4096];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                crc.update(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+
+    private static String readFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[(int) file.length()];
+            int off = 0;
+            int len;
+            while (off < buf.length && (len = is.read(buf, off, buf.length - off)) > 0) {
+                off += len;
+            }
+            return new String(buf, 0, off, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+
+    private static void writeFile(File file, String content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't write " + file);
+        }
+    }
+}
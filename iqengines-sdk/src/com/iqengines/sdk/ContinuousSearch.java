@@ -0,0 +1,243 @@
+package com.iqengines.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.YuvImage;
+import android.util.Log;
+
+import com.iqengines.sdk.IQE.OnResultCallback;
+
+/**
+ * Feeds camera preview frames to {@link IQE} in continuous mode.
+ * At most one frame waits for the search threads: a newer frame replaces the pending one,
+ * so recognition latency stays bounded by one search time whatever the preview frame rate is.
+ * Several search threads search successive frames at once, their results may be delivered out of order.
+ */
+public class ContinuousSearch {
+
+    /**
+     * Told when a frame is no longer used, so that its buffer can be handed back to the camera,
+     * see Camera.addCallbackBuffer.
+     */
+    public interface OnFrameReleasedListener {
+        /**
+         * Called once per submitted frame, after it was searched or dropped, from any thread.
+         *
+         * @param frame
+         *        The {@link YuvImage} frame, whose buffer may be reused.
+         */
+        public void onFrameReleased(YuvImage frame);
+    }
+
+    private static String TAG = ContinuousSearch.class.getName();
+
+    private final IQE iqe;
+
+    private final OnResultCallback onResultCallback;
+
+    private final int threadCount;
+
+    private final AtomicReference<YuvImage> pendingFrame = new AtomicReference<YuvImage>();
+
+    private final AtomicLong submittedFrames = new AtomicLong();
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private final AtomicLong processedFrames = new AtomicLong();
+
+    private final Object frameSignal = new Object();
+
+    /** Token of the running search threads, null when stopped */
+    private volatile Object generation;
+
+    private volatile OnFrameReleasedListener onFrameReleasedListener;
+
+
+    /**
+     * Constructor
+     *
+     * @param iqe
+     *        The {@link IQE} searching the frames.
+     * @param onResultCallback
+     *        An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
+     */
+
+
+    public ContinuousSearch(IQE iqe, OnResultCallback onResultCallback) {
+        this(iqe, onResultCallback, IQE.LOCAL_MATCHERS);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param iqe
+     *        The {@link IQE} searching the frames.
+     * @param onResultCallback
+     *        An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
+     * @param threadCount
+     *        The number of frames searched at once, {@link IQE#LOCAL_MATCHERS} by default.
+     */
+
+
+    public ContinuousSearch(IQE iqe, OnResultCallback onResultCallback, int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive");
+        }
+        this.iqe = iqe;
+        this.onResultCallback = onResultCallback;
+        this.threadCount = threadCount;
+    }
+
+
+    /**
+     * Starts the search threads. Usually called from Activity.onResume.
+     */
+
+
+    public synchronized void start() {
+        if (generation != null) {
+            return;
+        }
+        generation = new Object();
+        for (int i = 0; i < threadCount; ++i) {
+            new SearchThread(generation, i).start();
+        }
+    }
+
+
+    /**
+     * Stops the search threads and drops the pending frame. Usually called from Activity.onPause.
+     */
+
+
+    public synchronized void stop() {
+        if (generation == null) {
+            return;
+        }
+        generation = null;
+        synchronized (frameSignal) {
+            frameSignal.notifyAll();
+        }
+        YuvImage dropped = pendingFrame.getAndSet(null);
+        if (dropped != null) {
+            droppedFrames.incrementAndGet();
+            release(dropped);
+        }
+    }
+
+
+    /**
+     * Sets the listener told when frames are released, so that their buffers can be reused.
+     *
+     * @param listener
+     *        An {@link OnFrameReleasedListener}, null if frame buffers are never reused.
+     */
+
+
+    public void setOnFrameReleasedListener(OnFrameReleasedListener listener) {
+        this.onFrameReleasedListener = listener;
+    }
+
+
+    /**
+     * Submits a preview frame. Never blocks: if the previous frame is still waiting it is dropped.
+     *
+     * @param yuv
+     *        A {@link YuvImage} frame. Its buffer must not be reused by the camera until the frame is released,
+     *        see {@link #setOnFrameReleasedListener(OnFrameReleasedListener)}.
+     */
+
+
+    public void submitFrame(YuvImage yuv) {
+        submittedFrames.incrementAndGet();
+        YuvImage dropped = pendingFrame.getAndSet(yuv);
+        if (dropped != null) {
+            droppedFrames.incrementAndGet();
+            release(dropped);
+        }
+        synchronized (frameSignal) {
+            frameSignal.notifyAll();
+        }
+    }
+
+
+    /**
+     * @return the number of frames submitted so far.
+     */
+
+
+    public long getSubmittedFrames() {
+        return submittedFrames.get();
+    }
+
+
+    /**
+     * @return the number of frames replaced by a newer frame before being searched.
+     */
+
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+
+    /**
+     * @return the number of frames searched.
+     */
+
+
+    public long getProcessedFrames() {
+        return processedFrames.get();
+    }
+
+
+    private void release(YuvImage frame) {
+        OnFrameReleasedListener listener = onFrameReleasedListener;
+        if (listener != null) {
+            listener.onFrameReleased(frame);
+        }
+    }
+
+
+    private class SearchThread extends Thread {
+
+        private final Object myGeneration;
+
+        SearchThread(Object generation, int index) {
+            super("IQE-continuous-" + index);
+            this.myGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            while (generation == myGeneration) {
+                YuvImage frame = pendingFrame.getAndSet(null);
+
+                if (frame == null) {
+                    synchronized (frameSignal) {
+                        try {
+                            if (generation == myGeneration && pendingFrame.get() == null) {
+                                frameSignal.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                try {
+                    iqe.searchWithImage(frame, onResultCallback);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Search failed", e);
+                } finally {
+                    // searchWithImage copies or compresses the frame before returning
+                    release(frame);
+                }
+                processedFrames.incrementAndGet();
+            }
+        }
+    }
+}
@@ -3,20 +3,30 @@ package com.iqengines.sdk;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStream;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import com.iqengines.sdk.IQRemote.IQEQuery;
+import com.iqengines.sdk.SnapshotPool.Snapshot;
 
 import android.app.Activity;
+import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.YuvImage;
@@ -31,6 +41,35 @@ import android.util.Log;
  */
 public class IQE {
 
+    /**
+     * Order in which {@link IQE#searchWithImage} combines local and remote search.
+     */
+
+    public enum SearchMode {
+        /**
+         * Search in local index first, submit query to IQ Engines server only if no local match is found.
+         */
+        LOCAL_THEN_REMOTE,
+        /**
+         * Submit query to IQ Engines server while searching in local index.
+         * A local match wins and the remote result is dropped.
+         */
+        RACE,
+        /**
+         * Search in local index without asking IQ Engines server, e.g. while it can't be reached.
+         * Unlike {@link IQE#searchWithImageLocal}, an ambiguous match is not reported when remote search is enabled,
+         * and a query with no local match is saved to be submitted later if the query journal is enabled,
+         * see {@link IQE#enableQueryJournal(OnResultCallback)}.
+         */
+        LOCAL_ONLY,
+        /**
+         * Pick one of the modes above for each search, from the latencies and hit rates of recent searches:
+         * queries are raced while local search is slow and seldom matches, and kept local while
+         * IQ Engines server can't be reached.
+         */
+        ADAPTIVE
+    }
+    
     /*
      * Callback interface that IQE uses to notify client about each search step 
      */
@@ -43,6 +82,9 @@ public class IQE {
          * 		  A {@link String} representing the ID assigned to this search query.
          * @param imgFile
          *        A {@link File} containing the image originally submitted by user.
+         *        null if the image was searched in local index straight from memory.
+         *        Snapshot files written by IQE are reused by later queries once this call returns,
+         *        copy the file to keep it.
          */
         public void onQueryIdAssigned(String queryId, File imgFile);
         
@@ -65,12 +107,96 @@ public class IQE {
         public void onResult(String queryId, String objId, String objName, String objMeta,
                 boolean remoteMatch, Exception e);
     }
+    
+    
+    /*
+     * Callback interface taking results as SearchResult objects, whose object id, name and meta
+     * information are only looked up when read. IQE calls onSearchResult instead of onResult.
+     */
+    
+    public interface OnSearchResultCallback extends OnResultCallback {
+        /**
+         * This method gets called by IQE whenever either search result is available or exception occurs
+         * 
+         * @param result
+         *        The {@link SearchResult}, telling whether a match was found and its details.
+         */
+        public void onSearchResult(SearchResult result);
+    }
+    
+    
+    /**
+     * Reported to a search callback when its query could not reach IQ Engines server and was saved
+     * by the query journal, see {@link IQE#enableQueryJournal(OnResultCallback)}. The same callback
+     * gets the query id and the result once the query is replayed.
+     */
+    
+    public static class QueryQueuedException extends IOException {
+        
+        private static final long serialVersionUID = -2153546457296457915L;
+        
+        public QueryQueuedException(IOException cause) {
+            super("Query saved to be submitted later: " + cause.getMessage());
+            initCause(cause);
+        }
+    }
       
     
     /**
      * Max time acceptable for local local search if used in continues mode (milliseconds).
      */
     public static final long MAX_TEST_LOCAL_SEARCH_TIME = 1500;
+    /**
+     * Max number of asynchronous searches waiting for a free search thread.
+     */
+    public static final int MAX_PENDING_SEARCHES = 4;
+    /**
+     * Max time a search waits for a free snapshot file before failing (milliseconds).
+     */
+    public static final long SNAPSHOT_WAIT_TIMEOUT = 5000;
+    /**
+     * Number of threads running asynchronous searches, and uploads in {@link SearchMode#RACE} mode.
+     */
+    private static final int SEARCH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    /**
+     * Number of snapshot files, enough for every search and upload thread plus a synchronous caller.
+     * A query holds its file until it is uploaded, not until its result comes back.
+     */
+    private static final int SNAPSHOT_POOL_SIZE = 2 * SEARCH_THREADS + 1;
+    /**
+     * Default number of local matchers, one per core. Each holds its own trained copy of the index,
+     * so memory and training time grow with the number of cores: pass a smaller number to
+     * {@link #IQE(Activity, boolean, boolean, int, String, String)} for large catalogs.
+     */
+    public static final int LOCAL_MATCHERS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Default number of inliers above which a local candidate is trusted without asking the server.
+     */
+    public static final int DEFAULT_MIN_CONFIDENT_INLIERS = 15;
+    /**
+     * Default number of features below which a query with no local match is not worth submitting to server.
+     */
+    public static final int DEFAULT_MIN_QUERY_FEATURES = 20;
+    /**
+     * Default size of the pictures uploaded from camera frames, down from the {@link IQRemote#MAX_IMAGE_SIZE} crop.
+     */
+    public static final int DEFAULT_UPLOAD_IMAGE_SIZE = 320;
+    /**
+     * Default JPEG quality of the pictures uploaded from camera frames.
+     */
+    public static final int DEFAULT_JPEG_QUALITY = 85;
+    /**
+     * Default number of recent matches kept by the result cache.
+     */
+    public static final int DEFAULT_RESULT_CACHE_SIZE = 64;
+    /**
+     * Default time a match stays in the result cache (milliseconds).
+     */
+    public static final long DEFAULT_RESULT_CACHE_TTL = 10 * 60 * 1000;
+    /**
+     * Number of local candidates scored per search.
+     */
+    private static final int LOCAL_CANDIDATES = 3;
     /**
      * Tells if remote search is enable.
      */
@@ -79,13 +205,35 @@ public class IQE {
      * Tells if local search is enable.
      */
     private boolean localSearch;
+    /**
+     * Tells how local and remote search are combined when both are enabled.
+     */
+    private volatile SearchMode searchMode = SearchMode.LOCAL_THEN_REMOTE;
+    /**
+     * Tells if matches of the local index are accepted or rejected by their score rather than as found.
+     */
+    private volatile boolean verifyLocalMatches;
+    /**
+     * Number of inliers above which a local candidate is trusted without asking the server.
+     */
+    private volatile int minConfidentInliers = DEFAULT_MIN_CONFIDENT_INLIERS;
+    /**
+     * Number of features below which a query with no local match is not submitted to server.
+     */
+    private volatile int minQueryFeatures = DEFAULT_MIN_QUERY_FEATURES;
+    /**
+     * Maximum size of the pictures uploaded from camera frames.
+     */
+    private volatile int uploadImageSize = DEFAULT_UPLOAD_IMAGE_SIZE;
+    /**
+     * JPEG quality of the pictures uploaded from camera frames.
+     */
+    private volatile int jpegQuality = DEFAULT_JPEG_QUALITY;
 
     private static boolean DEBUG = true;
 
     private static String TAG = IQE.class.getName();
 
-    private static final String NO_MATCH_FOUND_STR = "no match found";
-    
     private IQLocalApi iqLocal;
 
     private IQRemote iqRemote;
@@ -102,8 +250,46 @@ public class IQE {
      */
     private Object newIncomingRemoteMatchSemaphore = new Object();
 
-    private Map<String, OnResultCallback> remoteQueryMap = Collections
-            .synchronizedMap(new HashMap<String, IQE.OnResultCallback>());
+    /**
+     * Latencies of search stages and counts of their outcomes.
+     */
+    private final SearchMetrics metrics = new SearchMetrics();
+    /**
+     * Averages of recent searches routing them in {@link SearchMode#ADAPTIVE} mode.
+     */
+    private final SearchRouter router = new SearchRouter();
+    /**
+     * Callbacks of remote queries waiting for their results, and results waiting for their callbacks.
+     */
+    private final RemoteResultRegistry remoteQueryRegistry = new RemoteResultRegistry(metrics, router);
+    /**
+     * Snapshot files of queries in flight, one per query.
+     */
+    private final SnapshotPool snapshots;
+    /**
+     * Bounded pool running asynchronous searches.
+     */
+    private final ExecutorService searchExecutor;
+    /**
+     * Pool uploading queries to IQ Engines server while local search runs in {@link SearchMode#RACE} mode.
+     */
+    private final ExecutorService uploadExecutor;
+    /**
+     * Queries which could not reach IQ Engines server, null while the journal is disabled.
+     */
+    private volatile QueryJournal queryJournal;
+    /**
+     * Callback of queries saved by earlier runs.
+     */
+    private volatile OnResultCallback recoveredQueryCallback;
+    /**
+     * Recent matches by hash of their query image, null while the cache is disabled.
+     */
+    private volatile ResultCache resultCache;
+    /**
+     * File the result cache is saved to, null if it is kept in memory only.
+     */
+    private volatile File resultCacheFile;
     
     
     /**
@@ -124,23 +310,121 @@ public class IQE {
     
     public IQE(Activity activity, boolean remoteSearch, boolean localSearch, 
             String remoteKey, String remoteSecret) {
+        this(activity, remoteSearch, localSearch, LOCAL_MATCHERS, remoteKey, remoteSecret);
+    }
+    
+    
+    /**
+     * Constructor choosing how many local searches can run at once.
+     * 
+     * @param activity
+     * 		  The {@link Activity} within the query is made.
+     * @param remoteSearch
+     * 		  A {@link Boolean} whether remote search is enabled.
+     * @param localSearch
+     * 		  A {@link Boolean} whether local search is enabled.
+     * @param localMatchers
+     * 		  The number of local matchers, see {@link IQLocalPool}. Each holds its own trained copy of the index,
+     * 		  which costs as much memory as a single matcher.
+     * @param remoteKey
+     * 		  A {@link String} : Unique developer's key for accessing IQ Engines web search. (IQ Engines.com->developer center->settings)
+     * @param remoteSecret
+     * 		  A {@link String} : Developer's secret key for accessing IQ Engines web search. (IQ Engines.com->developer center->settings)
+     */
+    
+    
+    public IQE(Activity activity, boolean remoteSearch, boolean localSearch, int localMatchers,
+            String remoteKey, String remoteSecret) {
+        this(activity, remoteSearch, localSearch ? new IQLocalPool(localMatchers) : null, remoteKey, remoteSecret);
+    }
+    
+    
+    /**
+     * Constructor searching in a given local index, for instance a {@link ShardedIQLocal}.
+     * 
+     * @param activity
+     * 		  The {@link Activity} within the query is made.
+     * @param remoteSearch
+     * 		  A {@link Boolean} whether remote search is enabled.
+     * @param localIndex
+     * 		  The {@link IQLocalApi} to search in, not initialized yet. null disables local search.
+     * @param remoteKey
+     * 		  A {@link String} : Unique developer's key for accessing IQ Engines web search. (IQ Engines.com->developer center->settings)
+     * @param remoteSecret
+     * 		  A {@link String} : Developer's secret key for accessing IQ Engines web search. (IQ Engines.com->developer center->settings)
+     */
+    
+    
+    public IQE(Activity activity, boolean remoteSearch, IQLocalApi localIndex, 
+            String remoteKey, String remoteSecret) {
     	
-        if (!remoteSearch && !localSearch) { 
+        if (!remoteSearch && localIndex == null) { 
         	throw new IllegalArgumentException("At least one type of search must be enabled");
         }
         
         this.activity = activity;
         this.remoteSearch = remoteSearch;
-        this.localSearch = localSearch;
+        this.localSearch = localIndex != null;
+        this.iqLocal = localIndex;
         deviceId = Utils.getDeviceId(activity);
+        searchExecutor = createExecutor("IQE-search-");
+        uploadExecutor = createExecutor("IQE-upload-");
+        snapshots = new SnapshotPool(Utils.getSnapshotDir(activity), SNAPSHOT_POOL_SIZE);
         initIqSdk(remoteKey, remoteSecret);
     }
   
     
+    private static ExecutorService createExecutor(final String threadName) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(SEARCH_THREADS, SEARCH_THREADS, 
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_SEARCHES),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, threadName + threadCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+  
+    
+    /**
+     * Reserves a snapshot file for one query.
+     * If none is released in time, or the caller is interrupted while waiting, the search fails:
+     * onResultCallback gets the exception and the query is dropped.
+     * 
+     * @return A {@link Snapshot} to be released once the query is submitted, 
+     *         null if no snapshot file could be reserved.
+     */
+    
+    
+    private Snapshot acquireSnapshot(OnResultCallback onResultCallback) {
+        IOException e;
+        try {
+            Snapshot snapshot = snapshots.acquire(SNAPSHOT_WAIT_TIMEOUT);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            e = new IOException("No snapshot file released within " + SNAPSHOT_WAIT_TIMEOUT + " ms");
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            e = new InterruptedIOException("Interrupted while waiting for a snapshot file");
+        }
+        Log.w(TAG, "Search dropped", e);
+        dispatchResult(onResultCallback, new SearchResult(e, remoteSearch && !localSearch, new SearchResult.Timing()));
+        return null;
+    }
+  
+    
     private void initIqSdk(String remoteKey, String remoteSecret) {
     	
         if (localSearch) {
-        	iqLocal = new IQLocal();
+        	// assets only change when the APK does
+        	File apk = new File(activity.getApplicationInfo().sourceDir);
+        	long assetsVersion = apk.lastModified() ^ apk.length();
+        	iqLocal.setAssetsVersion(assetsVersion);
             File appDataDir = new File(activity.getApplicationInfo().dataDir);
                 iqLocal.init(activity.getResources(), appDataDir);
                 indexInitialized.set(true);
@@ -151,7 +435,9 @@ public class IQE {
         }
 
         if (remoteSearch) {
-        	iqRemote = new IQRemote(remoteKey, remoteSecret);
+        	// one connection per search and upload thread, plus the update thread
+        	iqRemote = new IQRemote(remoteKey, remoteSecret, 2 * SEARCH_THREADS + 1,
+        	        IQRemote.DEFAULT_CONNECT_TIMEOUT, IQRemote.DEFAULT_READ_TIMEOUT);
         }
         
     }
@@ -167,9 +453,17 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImageLocal(Bitmap bmp, OnResultCallback onResultCallback) {
-        File imgFile = Utils.saveBmpToFile(activity, bmp);
-        searchWithImageLocal(imgFile, onResultCallback);    
+    public void searchWithImageLocal(Bitmap bmp, OnResultCallback onResultCallback) {
+        Snapshot snapshot = acquireSnapshot(onResultCallback);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            File imgFile = Utils.saveBmpToFile(bmp, snapshot.getFile(), metrics);
+            searchWithImageLocal(imgFile, onResultCallback);
+        } finally {
+            snapshot.release();
+        }
     }
     
     
@@ -183,9 +477,53 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImageLocal(YuvImage yuv, OnResultCallback onResultCallback) {
-        File imgFile = Utils.saveYuvToFile(activity, yuv);
-        searchWithImageLocal(imgFile, onResultCallback);    
+    public void searchWithImageLocal(YuvImage yuv, OnResultCallback onResultCallback) {
+        Mat img = toMat(yuv);
+        if (img == null) {
+            Snapshot snapshot = acquireSnapshot(onResultCallback);
+            if (snapshot == null) {
+                return;
+            }
+            try {
+                File imgFile = Utils.saveYuvToFile(yuv, snapshot.getFile(), metrics);
+                searchWithImageLocal(imgFile, onResultCallback);
+            } finally {
+                snapshot.release();
+            }
+            return;
+        }
+        try {
+            searchWithImageLocal(null, img, onResultCallback);
+        } finally {
+            img.close();
+        }
+    }
+    
+    
+    /**
+     * Searches in local index. Method blocks caller until search result is ready.
+     * The frame is converted in native code, no file is written.
+     * 
+     * @param nv21
+     *        A direct {@link ByteBuffer} holding a NV21 camera frame to find match for.
+     * @param width
+     *        The width of the frame.
+     * @param height
+     *        The height of the frame.
+     * @param onResultCallback
+     * 		  An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
+     */
+    
+    
+    public void searchWithImageLocal(ByteBuffer nv21, int width, int height, OnResultCallback onResultCallback) {
+        long start = System.nanoTime();
+        Mat img = new Mat(nv21, width, height);
+        metrics.recordSince(SearchMetrics.Stage.MAT_LOAD, start);
+        try {
+            searchWithImageLocal(null, img, onResultCallback);
+        } finally {
+            img.close();
+        }
     }
     
 
@@ -202,31 +540,45 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImageLocal(File imgFile, OnResultCallback onResultCallback) {
+    public void searchWithImageLocal(File imgFile, OnResultCallback onResultCallback) {
+        searchWithImageLocal(imgFile, null, onResultCallback);
+    }
+    
+    
+    /**
+     * Searches in local index an image given as a file, an in-memory {@link Mat} or both.
+     */
+    
+    
+    private void searchWithImageLocal(File imgFile, Mat img, OnResultCallback onResultCallback) {
+        searchWithImageLocal(imgFile, img, onResultCallback, new SearchResult.Timing());
+    }
+    
+    
+    private void searchWithImageLocal(File imgFile, Mat img, OnResultCallback onResultCallback,
+            SearchResult.Timing timing) {
     	
         if (!localSearch) {
         	throw new IllegalStateException("localSearch is disabled");
         }
+        
+        onResultCallback = lookUpCache(imgFile, img, onResultCallback, timing);
+        if (onResultCallback == null) {
+            return;
+        }
 
         String queryId = Long.toString(SystemClock.elapsedRealtime());
         onResultCallback.onQueryIdAssigned(queryId, imgFile);
         
-        final Mat img = new Mat(imgFile.getPath());
-        int objIdx = iqLocal.match(img);
+        MatchResult candidates = matchLocal(imgFile, img, timing);
+        // without server to ask, an ambiguous match of the index is the best answer
+        int objIdx = localMatch(candidates, true);
         
+        dispatchResult(onResultCallback, new SearchResult(queryId, iqLocal, objIdx, candidates, timing));
         if (objIdx >= 0) {
-            List<String> ids = iqLocal.getObjIds();
-            final String objId = ids.get(objIdx);
-            String objName = iqLocal.getObjName(objId);
-            String objMeta = iqLocal.getObjMeta(objId);;
-            onResultCallback.onResult(queryId, objId, objName, objMeta, false, null);
-            
             Log.d(TAG,"------------------------- LOCAL MATCH FOUND -------------------------");
-            Log.d(TAG, "Object id: " + objId);
-            Log.d(TAG, "Object name: " + objName);
-            Log.d(TAG, "Object meta: " + objMeta);
+            Log.d(TAG, "Object index: " + objIdx);
         } else {    	
-            onResultCallback.onResult(queryId, null, null, null, false, null);
             Log.d(TAG,"------------------------- NO LOCAL MATCH FOUND -------------------------");
         }
         
@@ -245,13 +597,20 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImageRemote(Bitmap bmp, OnResultCallback onResultCallback) {
-        bmp = Utils.cropBitmap(bmp,
+    public void searchWithImageRemote(Bitmap bmp, OnResultCallback onResultCallback) {
+        bmp = cropBitmap(bmp,
                 Math.min(IQRemote.MAX_IMAGE_SIZE, Math.min(bmp.getWidth(), bmp.getHeight())));
 
-        File imgFile = Utils.saveBmpToFile(activity, bmp);
-
-        searchWithImageRemote(imgFile, onResultCallback);
+        Snapshot snapshot = acquireSnapshot(onResultCallback);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            File imgFile = Utils.saveBmpToFile(bmp, snapshot.getFile(), metrics);
+            searchWithImageRemote(imgFile, onResultCallback);
+        } finally {
+            snapshot.release();
+        }
     }
    
     /**
@@ -266,9 +625,17 @@ public class IQE {
      */  
     
     
-    public synchronized void searchWithImageRemote(YuvImage yuv, OnResultCallback onResultCallback) {      
-        File imgFile = Utils.cropYuv(yuv,IQRemote.MAX_IMAGE_SIZE,activity);
-        searchWithImageRemote(imgFile, onResultCallback);
+    public void searchWithImageRemote(YuvImage yuv, OnResultCallback onResultCallback) {      
+        Snapshot snapshot = acquireSnapshot(onResultCallback);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            File imgFile = compressYuv(yuv, snapshot.getFile());
+            searchWithImageRemote(imgFile, onResultCallback);
+        } finally {
+            snapshot.release();
+        }
     }   
     
     
@@ -285,23 +652,29 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImageRemote(File imgFile, OnResultCallback onResultCallback) {
+    public void searchWithImageRemote(File imgFile, OnResultCallback onResultCallback) {
         if (!remoteSearch) {
             throw new IllegalStateException("remoteSearch is disabled");
         }
 
+        SearchResult.Timing timing = new SearchResult.Timing();
+        onResultCallback = lookUpCache(imgFile, null, onResultCallback, timing);
+        if (onResultCallback == null) {
+            return;
+        }
+        
         IQEQuery query = null;
         try {
-            query = iqRemote.query(imgFile, deviceId);
+            query = query(imgFile, timing);
         } 
         catch (IOException e) {
-            onResultCallback.onResult(null, null, null, null, true, e);
+            dispatchResult(onResultCallback, new SearchResult(null, null, null, saveQuery(imgFile, onResultCallback, e), timing, -1));
             Log.d(TAG,"------------------------- CAN'T ACCESS TO THE SERVER -------------------------");
             return;
         }
         String qid = query.getQID();
         onResultCallback.onQueryIdAssigned(qid, imgFile);
-        remoteQueryMap.put(qid, onResultCallback);
+        remoteQueryRegistry.register(qid, onResultCallback, timing);
         Log.d(TAG,"------------------------- REMOTE MATCH FOUND -------------------------");
         synchronized (newIncomingRemoteMatchSemaphore) {
             newIncomingRemoteMatchSemaphore.notifyAll();
@@ -328,12 +701,20 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImage(Bitmap bmp, OnResultCallback onResultCallback) {
-        bmp = Utils.cropBitmap(bmp,
+    public void searchWithImage(Bitmap bmp, OnResultCallback onResultCallback) {
+        bmp = cropBitmap(bmp,
                 Math.min(IQRemote.MAX_IMAGE_SIZE,
                         Math.min(bmp.getWidth(), bmp.getHeight())));
-        File imgFile = Utils.saveBmpToFile(activity, bmp);
-        searchWithImage(imgFile, onResultCallback);
+        Snapshot snapshot = acquireSnapshot(onResultCallback);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            File imgFile = Utils.saveBmpToFile(bmp, snapshot.getFile(), metrics);
+            searchWithImage(imgFile, onResultCallback);
+        } finally {
+            snapshot.release();
+        }
     }
     
     /**
@@ -349,9 +730,29 @@ public class IQE {
      * 		  An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
      */
     
-    public synchronized void searchWithImage(YuvImage yuv, OnResultCallback onResultCallback) {      
-        File imgFile = Utils.cropYuv(yuv,IQRemote.MAX_IMAGE_SIZE,activity);
-        searchWithImage(imgFile, onResultCallback);
+    public void searchWithImage(YuvImage yuv, OnResultCallback onResultCallback) {      
+        Mat img = localSearch ? toMat(yuv) : null;
+        if (img == null) {
+            Snapshot snapshot = acquireSnapshot(onResultCallback);
+            if (snapshot == null) {
+                return;
+            }
+            try {
+                File imgFile = compressYuv(yuv, snapshot.getFile());
+                searchWithImage(imgFile, null, null, onResultCallback);
+            } finally {
+                snapshot.release();
+            }
+            return;
+        }
+        // JPEG file is written only if query has to be submitted to server
+        Mat cropped = Utils.cropMat(img, IQRemote.MAX_IMAGE_SIZE);
+        try {
+            searchWithImage(null, cropped, yuv, onResultCallback);
+        } finally {
+            cropped.close();
+            img.close();
+        }
     }   
     
     
@@ -360,6 +761,7 @@ public class IQE {
      * First it search in local index.
      * If result not found it submits query to IQ Engines server.
      * Method blocks caller while it's searching in local index and, if needed, submitting query to server.
+     * In {@link SearchMode#RACE} mode query is submitted to server while searching in local index.
      * onResultCallback is called when result is ready.
      * 
      * @param imgFile
@@ -372,71 +774,918 @@ public class IQE {
      */
     
     
-    public synchronized void searchWithImage(File imgFile, OnResultCallback onResultCallback) {
+    public void searchWithImage(File imgFile, OnResultCallback onResultCallback) {
+        searchWithImage(imgFile, null, null, onResultCallback);
+    }
+    
+    
+    /**
+     * Searches an image given as a file, an in-memory {@link Mat} or both.
+     * If imgFile is null it is written from yuv to a snapshot file when query has to be submitted to server.
+     */
+    
+    
+    private void searchWithImage(File imgFile, Mat img, YuvImage yuv, OnResultCallback onResultCallback) {
+        SearchMode mode = searchMode;
+        if (mode == SearchMode.ADAPTIVE) {
+            mode = router.route();
+            if (DEBUG) {
+                Log.d(TAG, "Routed search " + mode + ": " + router);
+            }
+        }
+        searchWithImage(imgFile, img, yuv, onResultCallback, new SearchResult.Timing(), mode);
+    }
+    
+    
+    private void searchWithImage(File imgFile, Mat img, YuvImage yuv, OnResultCallback onResultCallback,
+            SearchResult.Timing timing, SearchMode mode) {
+        
+        onResultCallback = lookUpCache(imgFile, img, onResultCallback, timing);
+        if (onResultCallback == null) {
+            return;
+        }
+        
+        if (imgFile == null && remoteSearch && (!localSearch || mode == SearchMode.RACE)) {
+            // query is submitted to server right away
+            Snapshot snapshot = acquireSnapshot(onResultCallback);
+            if (snapshot == null) {
+                return;
+            }
+            try {
+                imgFile = compressYuv(yuv, snapshot.getFile());
+                searchWithImage(imgFile, img, null, onResultCallback, timing, mode);
+            } finally {
+                snapshot.release();
+            }
+            return;
+        }
+        
+        final AtomicBoolean localMatched = new AtomicBoolean(false);
+        Future<IQEQuery> upload = null;
         
+        if (localSearch && remoteSearch && mode == SearchMode.RACE) {
+            upload = submitUpload(imgFile, localMatched, timing);
+        }
     	
     	if (localSearch) {	
             if (!remoteSearch){    	
-            	searchWithImageLocal(imgFile, onResultCallback);            	
+            	searchWithImageLocal(imgFile, img, onResultCallback, timing);
+            	return;
             }else{
 
-            	final Mat img = new Mat(imgFile.getPath());
-            	int objIdx = iqLocal.match(img);
-            	Log.d(TAG,"resultat de la local search "+(objIdx >= 0));
+            	MatchResult candidates = matchLocal(imgFile, img, timing);
+            	int objIdx = localMatch(candidates, false);
+            	Log.d(TAG,"resultat de la local search "+(objIdx >= 0)+" "+candidates);
+            	router.recordLocalOutcome(objIdx >= 0 || !worthRemoteSearch(candidates));
             	if (objIdx >= 0) {
+            		if (upload != null) {
+            		    dropUpload(upload, localMatched);
+            		}
             		Log.d(TAG, "We have a local match!");
-            		List<String> ids = iqLocal.getObjIds();
-            		final String objId = ids.get(objIdx);
-            		Log.d(TAG, "Object id: " + objId);
-            		String objName = iqLocal.getObjName(objId);
-            		Log.d(TAG, "Object name: " + objName);
-            		String objMeta = iqLocal.getObjMeta(objId);
-            		Log.d(TAG, "Object meta: " + objMeta);
+            		Log.d(TAG, "Object index: " + objIdx);
+            		String queryId = Long.toString(SystemClock.elapsedRealtime());
+            		onResultCallback.onQueryIdAssigned(queryId, imgFile);
+            		dispatchResult(onResultCallback, new SearchResult(queryId, iqLocal, objIdx, candidates, timing));
+            		return;
+            	}else if (!worthRemoteSearch(candidates)){
+            		// featureless image, e.g. blurred or blank, server would not match it either
+            		if (upload != null) {
+            		    dropUpload(upload, localMatched);
+            		}
+            		Log.d(TAG, "Not enough features for a remote search: " + candidates.getQueryFeatures());
             		String queryId = Long.toString(SystemClock.elapsedRealtime());
             		onResultCallback.onQueryIdAssigned(queryId, imgFile);
-            		onResultCallback.onResult(queryId, objId, objName, objMeta, false, null);
+            		dispatchResult(onResultCallback, new SearchResult(queryId, iqLocal, MatchResult.NO_MATCH, candidates, timing));
+            		return;
+            	}else if (mode == SearchMode.LOCAL_ONLY && queryJournal == null){
+            		// server is not asked and there is no journal to save the query to
+            		String queryId = Long.toString(SystemClock.elapsedRealtime());
+            		onResultCallback.onQueryIdAssigned(queryId, imgFile);
+            		dispatchResult(onResultCallback, new SearchResult(queryId, iqLocal, MatchResult.NO_MATCH, candidates, timing));
             		return;
-            	}else if (DEBUG){
                 }
            }
         
     	}
     	
         if (remoteSearch) {	
-       
-            IQEQuery query = null;
-            try {
-                query = iqRemote.query(imgFile, deviceId);
-            } catch (IOException e) {
-                onResultCallback.onResult(null, null, null, null, true, e);
+            if (Thread.currentThread().isInterrupted()) {
+                // search was cancelled while matching locally
+                if (upload != null) {
+                    upload.cancel(true);
+                }
                 return;
             }
-            String qid = query.getQID();
-            onResultCallback.onQueryIdAssigned(qid, imgFile);
-            remoteQueryMap.put(qid, onResultCallback);
-
-            synchronized (newIncomingRemoteMatchSemaphore) {
-                newIncomingRemoteMatchSemaphore.notifyAll();
+            
+            if (localSearch && mode == SearchMode.LOCAL_ONLY) {
+                journalQuery(imgFile, yuv, onResultCallback, timing);
+                return;
             }
-
-            if (DEBUG) {
-                Log.d(TAG, "remote query qid: " + qid);
+            
+            if (imgFile == null) {
+                Snapshot snapshot = acquireSnapshot(onResultCallback);
+                if (snapshot == null) {
+                    return;
+                }
+                try {
+                    submitRemote(compressYuv(yuv, snapshot.getFile()), null, onResultCallback, timing);
+                } finally {
+                    snapshot.release();
+                }
+            } else {
+                submitRemote(imgFile, upload, onResultCallback, timing);
             }
-
             return;	
         }
         
         throw new IllegalStateException("both remote and local searches are disabled");
     }
-
-        
+    
+    
     /**
-     * Method is to be called when user wants to resume update-thread. 
-     * Usually called from Activity.onResume.
+     * Matches in local index the in-memory image if any, the image file otherwise.
+     * A {@link Mat} read from the file is closed right away rather than left to the garbage collector.
      */
     
     
-    public void resume() {
+    private MatchResult matchLocal(File imgFile, Mat img, SearchResult.Timing timing) {
+        if (img != null) {
+            return timedMatch(img, timing);
+        }
+        long start = System.nanoTime();
+        Mat fileImg = new Mat(imgFile.getPath());
+        metrics.recordSince(SearchMetrics.Stage.MAT_LOAD, start);
+        try {
+            return timedMatch(fileImg, timing);
+        } finally {
+            fileImg.close();
+        }
+    }
+    
+    
+    private MatchResult timedMatch(Mat img, SearchResult.Timing timing) {
+        MatchResult candidates = new MatchResult(LOCAL_CANDIDATES);
+        // unverified matches of the index are reported as found, scoring them would be wasted
+        candidates.setScoreIndexMatch(verifyLocalMatches);
+        long start = System.nanoTime();
+        iqLocal.match(img, candidates);
+        timing.localMatchNanos = System.nanoTime() - start;
+        metrics.record(SearchMetrics.Stage.LOCAL_MATCH, timing.localMatchNanos);
+        router.recordLocalMatch(timing.localMatchNanos);
+        return candidates;
+    }
+    
+    
+    /**
+     * Converts a camera frame to a {@link Mat}, recording the conversion time.
+     * 
+     * @return The {@link Mat}, null if the frame is not a tightly packed NV21 frame.
+     */
+    
+    
+    private Mat toMat(YuvImage yuv) {
+        long start = System.nanoTime();
+        Mat img = Utils.yuvToMat(yuv);
+        if (img != null) {
+            metrics.recordSince(SearchMetrics.Stage.MAT_LOAD, start);
+        }
+        return img;
+    }
+    
+    
+    private Bitmap cropBitmap(Bitmap bmp, int targetSize) {
+        long start = System.nanoTime();
+        Bitmap cropped = Utils.cropBitmap(bmp, targetSize);
+        metrics.recordSince(SearchMetrics.Stage.CROP, start);
+        return cropped;
+    }
+    
+    
+    /**
+     * Submits query to IQ Engines server, recording the upload time.
+     */
+    
+    
+    private IQEQuery query(File imgFile, SearchResult.Timing timing) throws IOException {
+        return query(imgFile, deviceId, timing);
+    }
+    
+    
+    private IQEQuery query(File imgFile, String deviceId, SearchResult.Timing timing) throws IOException {
+        long start = System.nanoTime();
+        try {
+            IQEQuery query = iqRemote.query(imgFile, deviceId);
+            timing.uploadNanos = System.nanoTime() - start;
+            metrics.record(SearchMetrics.Stage.UPLOAD, timing.uploadNanos);
+            metrics.increment(SearchMetrics.Counter.REMOTE_QUERIES);
+            router.recordUpload();
+            return query;
+        } catch (IOException e) {
+            metrics.increment(SearchMetrics.Counter.REMOTE_ERRORS);
+            router.recordUploadFailure();
+            throw e;
+        }
+    }
+    
+    
+    /**
+     * Calls back with a result, recording the time the callback takes.
+     */
+    
+    
+    private void dispatchResult(OnResultCallback onResultCallback, SearchResult result) {
+        long start = System.nanoTime();
+        result.deliverTo(onResultCallback);
+        metrics.recordSince(SearchMetrics.Stage.CALLBACK, start);
+    }
+    
+    
+    /**
+     * Answers a search from the result cache if its image looks like one matched recently.
+     * The in-memory image is hashed if any, the image file otherwise.
+     * 
+     * @return null if the search was answered, otherwise the callback to go on searching with,
+     *         which caches the match found.
+     */
+    
+    
+    private OnResultCallback lookUpCache(File imgFile, Mat img, OnResultCallback onResultCallback,
+            SearchResult.Timing timing) {
+        ResultCache cache = resultCache;
+        if (cache == null || ResultCache.isCaching(onResultCallback)) {
+            // disabled, or already looked up by the caller
+            return onResultCallback;
+        }
+        long hash = img != null ? img.dHash() : Utils.dHash(imgFile);
+        if (hash == ResultCache.NO_HASH) {
+            return onResultCallback;
+        }
+        ResultCache.Entry entry = cache.get(hash);
+        if (entry == null) {
+            return cache.caching(hash, onResultCallback);
+        }
+        
+        String queryId = Long.toString(SystemClock.elapsedRealtime());
+        onResultCallback.onQueryIdAssigned(queryId, imgFile);
+        metrics.increment(SearchMetrics.Counter.CACHE_HITS);
+        dispatchResult(onResultCallback, new SearchResult(queryId, entry, timing));
+        if (DEBUG) {
+            Log.d(TAG, "Result cache hit: " + entry.objName);
+        }
+        return null;
+    }
+    
+    
+    /**
+     * Picks the local match to report among scored candidates.
+     * The match of the index is reported as found, unless {@link #setVerifyLocalMatches(boolean)} is on.
+     * A candidate with enough inliers is trusted even if the index did not match it.
+     * 
+     * @param candidates
+     *        The {@link MatchResult} of the local search.
+     * @param acceptAmbiguous
+     *        Whether a match of the index with too few inliers is reported rather than checked by the server.
+     * @return the object index to report, {@link MatchResult#NO_MATCH} if none.
+     */
+    
+    
+    private int localMatch(MatchResult candidates, boolean acceptAmbiguous) {
+        int objIdx = MatchResult.NO_MATCH;
+        if (!verifyLocalMatches && candidates.getIndexMatch() >= 0) {
+            objIdx = candidates.getIndexMatch();
+        } else if (candidates.isConfident(minConfidentInliers)) {
+            objIdx = candidates.getObjIndex(0);
+        } else if (acceptAmbiguous || !candidates.isVerified()) {
+            objIdx = candidates.getIndexMatch();
+        }
+        metrics.increment(objIdx >= 0 ? SearchMetrics.Counter.LOCAL_HITS : SearchMetrics.Counter.LOCAL_MISSES);
+        return objIdx;
+    }
+    
+    
+    /**
+     * Tells if a query with no local match is worth submitting to IQ Engines server.
+     * Every query is unless {@link #setVerifyLocalMatches(boolean)} is on.
+     */
+    
+    
+    private boolean worthRemoteSearch(MatchResult candidates) {
+        return !verifyLocalMatches || !candidates.isVerified() || candidates.getQueryFeatures() >= minQueryFeatures;
+    }
+    
+    
+    /**
+     * Submits query to IQ Engines server, or waits for the upload started by {@link SearchMode#RACE} mode,
+     * and registers onResultCallback for its result.
+     */
+    
+    
+    private void submitRemote(File imgFile, Future<IQEQuery> upload, OnResultCallback onResultCallback,
+            SearchResult.Timing timing) {
+        IQEQuery query = null;
+        try {
+            query = upload != null ? awaitUpload(upload) : query(imgFile, timing);
+        } catch (IOException e) {
+            dispatchResult(onResultCallback, new SearchResult(null, null, null, saveQuery(imgFile, onResultCallback, e), timing, -1));
+            return;
+        }
+        if (query == null) {
+            // search was cancelled while waiting for upload
+            return;
+        }
+        String qid = query.getQID();
+        onResultCallback.onQueryIdAssigned(qid, imgFile);
+        remoteQueryRegistry.register(qid, onResultCallback, timing);
+
+        synchronized (newIncomingRemoteMatchSemaphore) {
+            newIncomingRemoteMatchSemaphore.notifyAll();
+        }
+
+        if (DEBUG) {
+            Log.d(TAG, "remote query qid: " + qid);
+        }
+    }
+    
+    
+    /**
+     * Starts uploading query to IQ Engines server ahead of local search result.
+     * 
+     * @return A {@link Future} of the submitted query, null if too many uploads are already running.
+     */
+    
+    
+    private Future<IQEQuery> submitUpload(final File imgFile, final AtomicBoolean localMatched,
+            final SearchResult.Timing timing) {
+        // upload may outlive the search when local search wins, so it holds the snapshot file on its own
+        final Snapshot snapshot = snapshots.retain(imgFile);
+        final AtomicBoolean started = new AtomicBoolean(false);
+        
+        FutureTask<IQEQuery> upload = new FutureTask<IQEQuery>(new Callable<IQEQuery>() {
+            @Override
+            public IQEQuery call() throws IOException {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    IQEQuery query = query(imgFile, timing);
+                    if (localMatched.get()) {
+                        remoteQueryRegistry.discard(query.getQID());
+                    }
+                    return query;
+                } finally {
+                    if (snapshot != null) {
+                        snapshot.release();
+                    }
+                }
+            }
+        }) {
+            @Override
+            protected void done() {
+                // cancelled before it started
+                if (started.compareAndSet(false, true) && snapshot != null) {
+                    snapshot.release();
+                }
+            }
+        };
+        
+        try {
+            uploadExecutor.execute(upload);
+            return upload;
+        } catch (RejectedExecutionException e) {
+            // fall back to uploading after local search 
+            upload.cancel(false);
+            return null;
+        }
+    }
+    
+    
+    /**
+     * Cancels the upload of a query already answered by local search and makes sure its remote result is dropped.
+     */
+    
+    
+    private void dropUpload(Future<IQEQuery> upload, AtomicBoolean localMatched) {
+        localMatched.set(true);
+        if (upload.cancel(true)) {
+            return;
+        }
+        // upload has already finished
+        try {
+            remoteQueryRegistry.discard(upload.get().getQID());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // nothing to drop
+        }
+    }
+    
+    
+    /**
+     * Waits for a query uploaded by {@link #submitUpload(File, AtomicBoolean, SearchResult.Timing)}.
+     * 
+     * @return The submitted {@link IQEQuery}, null if the caller was interrupted.
+     */
+    
+    
+    private static IQEQuery awaitUpload(Future<IQEQuery> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            upload.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    
+    /**
+     * Sets how local and remote search are combined by searchWithImage methods when both are enabled.
+     * 
+     * @param searchMode
+     * 		  A {@link SearchMode}, {@link SearchMode#LOCAL_THEN_REMOTE} by default.
+     *        {@link SearchMode#ADAPTIVE} adapts to the device and the network as they change,
+     *        where {@link #testLocalSearchCapability()} only tells how the device did once.
+     */
+    
+    
+    public void setSearchMode(SearchMode searchMode) {
+        if (searchMode == null) {
+            throw new IllegalArgumentException("searchMode is null");
+        }
+        this.searchMode = searchMode;
+    }
+    
+    
+    /**
+     * @return The {@link SearchMode} used by searchWithImage methods.
+     */
+    
+    
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+    
+    
+    /**
+     * Forgets the latencies and hit rates {@link SearchMode#ADAPTIVE} mode routes searches with,
+     * e.g. after the local index changed.
+     */
+    
+    
+    public void resetSearchRouting() {
+        router.reset();
+    }
+    
+    
+    /**
+     * @return The {@link SearchMetrics} of this instance, to pull latencies of search stages
+     *         and counts of their outcomes with {@link SearchMetrics#snapshot()}.
+     */
+    
+    
+    public SearchMetrics getMetrics() {
+        return metrics;
+    }
+    
+    
+    /**
+     * Saves queries which can't reach IQ Engines server for lack of connection, instead of dropping them.
+     * Their callbacks get a {@link QueryQueuedException}, then the query id and the result once the
+     * queries are replayed, in the background as soon as the server can be reached again.
+     * Saved queries outlive the application: those saved by an earlier run are replayed too.
+     * 
+     * @param onRecoveredResult
+     *        An {@link OnResultCallback} getting the query ids and results of queries saved by an earlier run,
+     *        null to drop their results.
+     * @throws IOException
+     *         if the journal can't be opened.
+     */
+    
+    
+    public synchronized void enableQueryJournal(OnResultCallback onRecoveredResult) throws IOException {
+        recoveredQueryCallback = onRecoveredResult;
+        if (queryJournal == null) {
+            queryJournal = new QueryJournal(activity.getDir("queries", Context.MODE_PRIVATE), journalUploader);
+        }
+    }
+    
+    
+    /**
+     * Stops saving and replaying queries. Saved queries are kept for the journal to be enabled again.
+     */
+    
+    
+    public synchronized void disableQueryJournal() {
+        if (queryJournal != null) {
+            queryJournal.close();
+            queryJournal = null;
+        }
+    }
+    
+    
+    /**
+     * @return the number of queries waiting to be replayed, 0 if the journal is disabled.
+     */
+    
+    
+    public int getSavedQueryCount() {
+        QueryJournal journal = queryJournal;
+        return journal != null ? journal.size() : 0;
+    }
+    
+    
+    /**
+     * Answers searches of images which look like one matched recently with its match, without searching.
+     * Images are compared by a 64 bit perceptual hash, so that a camera still pointed at the same
+     * object hits the cache while another object misses it. Only matches are cached.
+     * 
+     * @param capacity
+     *        The number of matches kept, the least recently used being evicted first,
+     *        e.g. {@link #DEFAULT_RESULT_CACHE_SIZE}.
+     * @param ttlMillis
+     *        The time a match is kept (milliseconds), e.g. {@link #DEFAULT_RESULT_CACHE_TTL}.
+     * @param persistent
+     *        Whether the matches are saved on {@link #pause()} and read back by the next run.
+     */
+    
+    
+    public synchronized void enableResultCache(int capacity, long ttlMillis, boolean persistent) {
+        disableResultCache();
+        ResultCache cache = new ResultCache(capacity, ttlMillis);
+        if (persistent) {
+            File file = new File(activity.getCacheDir(), "results.json");
+            cache.load(file);
+            resultCacheFile = file;
+        }
+        resultCache = cache;
+    }
+    
+    
+    /**
+     * Stops caching matches, saving them first if the cache is persistent.
+     */
+    
+    
+    public synchronized void disableResultCache() {
+        saveResultCache();
+        resultCache = null;
+        resultCacheFile = null;
+    }
+    
+    
+    /**
+     * Forgets the cached matches, e.g. after the local index or the server collection changed.
+     */
+    
+    
+    public void clearResultCache() {
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+    
+    
+    /**
+     * @return the number of cached matches, 0 if the cache is disabled.
+     */
+    
+    
+    public int getResultCacheSize() {
+        ResultCache cache = resultCache;
+        return cache != null ? cache.size() : 0;
+    }
+    
+    
+    private void saveResultCache() {
+        ResultCache cache = resultCache;
+        File file = resultCacheFile;
+        if (cache != null && file != null) {
+            cache.save(file);
+        }
+    }
+    
+    
+    /**
+     * Saves a query which failed to reach IQ Engines server, if the journal is enabled and the failure
+     * is a lack of connection.
+     * 
+     * @return The exception to report to the callback, a {@link QueryQueuedException} if the query was saved.
+     */
+    
+    
+    private IOException saveQuery(File imgFile, OnResultCallback onResultCallback, IOException e) {
+        QueryJournal journal = queryJournal;
+        if (journal == null || imgFile == null || !QueryJournal.isConnectionFailure(e)) {
+            return e;
+        }
+        try {
+            journal.add(imgFile, deviceId, onResultCallback);
+            return new QueryQueuedException(e);
+        } catch (IOException e2) {
+            Log.w(TAG, "Can't save query", e2);
+            return e;
+        }
+    }
+    
+    
+    /**
+     * Saves a local miss to the query journal without asking IQ Engines server,
+     * writing the image from yuv to a snapshot file if imgFile is null.
+     */
+    
+    
+    private void journalQuery(File imgFile, YuvImage yuv, OnResultCallback onResultCallback,
+            SearchResult.Timing timing) {
+        IOException e = new ConnectException("IQ Engines server unreachable, query not submitted");
+        if (imgFile != null) {
+            dispatchResult(onResultCallback, new SearchResult(null, null, null, saveQuery(imgFile, onResultCallback, e), timing, -1));
+            return;
+        }
+        Snapshot snapshot = acquireSnapshot(onResultCallback);
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            File snapshotFile = compressYuv(yuv, snapshot.getFile());
+            dispatchResult(onResultCallback, new SearchResult(null, null, null, saveQuery(snapshotFile, onResultCallback, e), timing, -1));
+        } finally {
+            snapshot.release();
+        }
+    }
+    
+    
+    /**
+     * Submits queries replayed by the journal, registering their callbacks like any remote search.
+     */
+    private final QueryJournal.Uploader journalUploader = new QueryJournal.Uploader() {
+        @Override
+        public String upload(File image, String deviceId, OnResultCallback callback) throws IOException {
+            SearchResult.Timing timing = new SearchResult.Timing();
+            String qid = query(image, deviceId, timing).getQID();
+            if (callback == null) {
+                callback = recoveredQueryCallback;
+            }
+            if (callback == null) {
+                remoteQueryRegistry.discard(qid);
+                return qid;
+            }
+            callback.onQueryIdAssigned(qid, image);
+            remoteQueryRegistry.register(qid, callback, timing);
+            synchronized (newIncomingRemoteMatchSemaphore) {
+                newIncomingRemoteMatchSemaphore.notifyAll();
+            }
+            return qid;
+        }
+    };
+    
+    
+    /**
+     * @return The {@link IQLocalPool} matching locally, to monitor its utilization. 
+     *         null if local search is disabled or uses another {@link IQLocalApi}.
+     */
+    
+    
+    public IQLocalPool getLocalMatchers() {
+        return iqLocal instanceof IQLocalPool ? (IQLocalPool) iqLocal : null;
+    }
+    
+    
+    /**
+     * @return The {@link IQLocalApi} searched locally, for instance to load shards of a {@link ShardedIQLocal}.
+     *         null if local search is disabled.
+     */
+    
+    
+    public IQLocalApi getLocalIndex() {
+        return iqLocal;
+    }
+    
+    
+    /**
+     * Sets whether matches of the local index are accepted or rejected by their score.
+     * When on, a match of the index with fewer than {@link #getMinConfidentInliers()} inliers is checked
+     * by the server, and a query with fewer than {@link #getMinQueryFeatures()} features is reported as
+     * not found without asking the server. Off by default: matches of the index are reported as found
+     * without computing the features of the query, and every other query is submitted, only objects added with {@link IQLocalApi#addObject} are
+     * accepted by their score.
+     * 
+     * @param verifyLocalMatches
+     *        true to accept or reject local matches by their score.
+     */
+    
+    
+    public void setVerifyLocalMatches(boolean verifyLocalMatches) {
+        this.verifyLocalMatches = verifyLocalMatches;
+    }
+    
+    
+    /**
+     * @return true if local matches are accepted or rejected by their score.
+     */
+    
+    
+    public boolean isVerifyLocalMatches() {
+        return verifyLocalMatches;
+    }
+    
+    
+    /**
+     * Sets the number of inliers above which a local candidate is reported without asking the server.
+     * When {@link #setVerifyLocalMatches(boolean)} is on, matches of the local index with fewer inliers
+     * are ambiguous and checked by the server when remote search is enabled.
+     * 
+     * @param minConfidentInliers
+     *        A number of inliers, {@link #DEFAULT_MIN_CONFIDENT_INLIERS} by default.
+     */
+    
+    
+    public void setMinConfidentInliers(int minConfidentInliers) {
+        this.minConfidentInliers = minConfidentInliers;
+    }
+    
+    
+    /**
+     * @return The number of inliers above which a local candidate is reported without asking the server.
+     */
+    
+    
+    public int getMinConfidentInliers() {
+        return minConfidentInliers;
+    }
+    
+    
+    /**
+     * Sets the number of features below which a query with no local match is not submitted to server,
+     * when {@link #setVerifyLocalMatches(boolean)} is on.
+     * 
+     * @param minQueryFeatures
+     *        A number of features, {@link #DEFAULT_MIN_QUERY_FEATURES} by default. 0 submits every query.
+     */
+    
+    
+    public void setMinQueryFeatures(int minQueryFeatures) {
+        this.minQueryFeatures = minQueryFeatures;
+    }
+    
+    
+    /**
+     * @return The number of features below which a query with no local match is not submitted to server.
+     */
+    
+    
+    public int getMinQueryFeatures() {
+        return minQueryFeatures;
+    }
+    
+    
+    /**
+     * Sets the size and JPEG quality of the pictures uploaded from camera frames.
+     * Smaller pictures are faster to compress and upload, but give the server less details to match.
+     * 
+     * @param uploadImageSize
+     *        The maximum width and height of uploaded pictures, {@link #DEFAULT_UPLOAD_IMAGE_SIZE} by default.
+     *        Pictures are never larger than {@link IQRemote#MAX_IMAGE_SIZE}.
+     * @param jpegQuality
+     *        The JPEG quality between 1 and 100, {@link #DEFAULT_JPEG_QUALITY} by default.
+     */
+    
+    
+    public void setUploadQuality(int uploadImageSize, int jpegQuality) {
+        if (uploadImageSize <= 0 || jpegQuality <= 0 || jpegQuality > 100) {
+            throw new IllegalArgumentException("invalid upload size or JPEG quality");
+        }
+        this.uploadImageSize = uploadImageSize;
+        this.jpegQuality = jpegQuality;
+    }
+    
+    
+    /**
+     * @return The maximum width and height of the pictures uploaded from camera frames.
+     */
+    
+    
+    public int getUploadImageSize() {
+        return uploadImageSize;
+    }
+    
+    
+    /**
+     * @return The JPEG quality of the pictures uploaded from camera frames.
+     */
+    
+    
+    public int getJpegQuality() {
+        return jpegQuality;
+    }
+    
+    
+    /**
+     * Crops a camera frame, scales it down to the upload size and compresses it into a snapshot file.
+     */
+    
+    
+    private File compressYuv(YuvImage yuv, File of) {
+        return Utils.cropYuv(yuv, IQRemote.MAX_IMAGE_SIZE, uploadImageSize, jpegQuality, of, metrics);
+    }
+
+    /**
+     * Asynchronous version of {@link #searchWithImage(Bitmap, OnResultCallback)}.
+     * Cropping, encoding, local search and remote submission run on a bounded pool of search threads,
+     * so independent queries overlap and the caller is never blocked.
+     * 
+     * @param bmp
+     * 		  A {@link Bitmap} image to find match for. Must not be recycled until the search is done.
+     * @param onResultCallback
+     * 		  An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
+     * 
+     * @return A {@link Future} to wait for the search to be submitted or to cancel it.
+     * 
+     * @throws RejectedExecutionException if {@link #MAX_PENDING_SEARCHES} searches are already waiting.
+     */
+    
+    
+    public Future<?> searchWithImageAsync(final Bitmap bmp, final OnResultCallback onResultCallback) {
+        return searchExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                searchWithImage(bmp, onResultCallback);
+                return null;
+            }
+        });
+    }
+    
+    
+    /**
+     * Asynchronous version of {@link #searchWithImage(YuvImage, OnResultCallback)}.
+     * Cropping, encoding, local search and remote submission run on a bounded pool of search threads,
+     * so independent queries overlap and the caller is never blocked.
+     * 
+     * @param yuv
+     * 		  A {@link YuvImage} image to find match for. Its buffer must not be reused until the search is done.
+     * @param onResultCallback
+     * 		  An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
+     * 
+     * @return A {@link Future} to wait for the search to be submitted or to cancel it.
+     * 
+     * @throws RejectedExecutionException if {@link #MAX_PENDING_SEARCHES} searches are already waiting.
+     */
+    
+    
+    public Future<?> searchWithImageAsync(final YuvImage yuv, final OnResultCallback onResultCallback) {
+        return searchExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                searchWithImage(yuv, onResultCallback);
+                return null;
+            }
+        });
+    }
+    
+    
+    /**
+     * Asynchronous version of {@link #searchWithImage(File, OnResultCallback)}.
+     * Local search and remote submission run on a bounded pool of search threads,
+     * so independent queries overlap and the caller is never blocked.
+     * 
+     * @param imgFile
+     * 		  A {@link File} object containing an image to find match for.
+     * @param onResultCallback
+     * 		  An {@link OnResultCallback} object to be called when query id is assigned and when result is found.
+     * 
+     * @return A {@link Future} to wait for the search to be submitted or to cancel it.
+     * 
+     * @throws RejectedExecutionException if {@link #MAX_PENDING_SEARCHES} searches are already waiting.
+     */
+    
+    
+    public Future<?> searchWithImageAsync(final File imgFile, final OnResultCallback onResultCallback) {
+        return searchExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                searchWithImage(imgFile, onResultCallback);
+                return null;
+            }
+        });
+    }
+
+        
+    /**
+     * Method is to be called when user wants to resume update-thread. 
+     * Usually called from Activity.onResume.
+     */
+    
+    
+    public void resume() {
         iqeRunning.set(true);
         if (remoteSearch) {
         
@@ -459,6 +1708,7 @@ public class IQE {
             newIncomingRemoteMatchSemaphore.notifyAll();
             
         }
+        saveResultCache();
     }
     
     
@@ -470,12 +1720,27 @@ public class IQE {
     
     public synchronized void destroy() {
     	
+        searchExecutor.shutdownNow();
+        uploadExecutor.shutdownNow();
+        disableQueryJournal();
+        disableResultCache();
+        try {
+            searchExecutor.awaitTermination(MAX_TEST_LOCAL_SEARCH_TIME, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
         if (iqLocal != null) { 
         	iqLocal.destroy();
         }
         
+        if (iqRemote != null) {
+            iqRemote.shutdown();
+        }
+        
         iqLocal = null;
         iqRemote = null;
+        remoteQueryRegistry.clear();
     }
     
     
@@ -507,7 +1772,6 @@ public class IQE {
                     InputStream is = activity.getAssets().open("iqedata/obj0/img0.jpg");
                     try {
                         Bitmap bm = BitmapFactory.decodeStream(is);
-                        File bmpFile = Utils.saveBmpToFile(activity, bm);
 
                         long t = SystemClock.elapsedRealtime();
                         // wait until index is initialized
@@ -520,7 +1784,7 @@ public class IQE {
                         
                         t = SystemClock.elapsedRealtime() - t;
                         Log.i(TAG,String.valueOf(t));
-                        searchWithImageLocal(bmpFile, new OnResultCallback() {
+                        searchWithImageLocal(bm, new OnResultCallback() {
                             @Override
                             public void onResult(String queryId, String objId, String objName, String objMeta,
                                     boolean remoteMatch, Exception e) {
@@ -557,10 +1821,16 @@ public class IQE {
     
     
     private class RemoteResultUpdateThread extends Thread {
+        
+        private final UpdateParser.Sink delivery = new UpdateParser.Sink() {
+            @Override
+            public void onResult(String qid, String labels, String meta) {
+                remoteQueryRegistry.deliver(qid, labels, meta);
+            }
+        };
+        
         @Override
         public void run() {
-            JSONObject results = null;
-
             while (iqeRunning.get()) {
                 synchronized (newIncomingRemoteMatchSemaphore) {
                     try {
@@ -574,90 +1844,25 @@ public class IQE {
                     break;
                 }
 
-                try {
-                    String resultStr = null;
-                    resultStr = iqRemote.update(deviceId, true);
-                    if (DEBUG)
-                        Log.d(TAG, "update: " + resultStr);
-
-                    if (resultStr == null)
-                        continue;
-
-                    try {
-                        JSONObject result = new JSONObject(resultStr);
-
-                        if (!result.has("data"))
-                            continue;
-
-                        results = result.getJSONObject("data");
-                    } catch (JSONException e) {
-                        Log.w(TAG, "Can't parse result", e);
-                        continue;
-                    }
-                } catch (IOException e) {
-                    Log.w(TAG, "Server call failed", e);
-                    continue;
-                }
+                remoteQueryRegistry.expire();
 
                 try {
-                    if (results.has("error")) {
-                        final int error = results.getInt("error");
-                        if (error != 0) {
-                            Log.e(TAG, "Server return error: " + error);
-                            continue;
-                        }
+                    // results are delivered while the response is received
+                    final int error = iqRemote.update(deviceId, delivery);
+                    if (error != 0) {
+                        Log.e(TAG, "Server return error: " + error);
                     }
-
-                    final JSONArray resultsList = results.getJSONArray("results");
-                    for (int i = 0, lim = resultsList.length(); i < lim; ++i) {
-                    	
-                        final JSONObject resultObj = resultsList.getJSONObject(i);
-                        final String qid = resultObj.optString("qid");
-                        
-                        if (qid == null) {
-                            Log.e(TAG, "update result qid is null");
-                            continue;
-                        }
-
-                        final JSONObject qidData = resultObj.getJSONObject("qid_data");
-
-                        final String labels;
-                        final String meta;
-                        
-                        if (qidData.length() > 0) {
-                            labels = qidData.optString("labels", null);
-                            meta = qidData.optString("meta", null);
-                        } else {
-                            labels = NO_MATCH_FOUND_STR;
-                            meta = null;
-                        }
-
-                        OnResultCallback onResultCallback = remoteQueryMap.get(qid);
-                        
-                        if (onResultCallback != null) {
-                            onResultCallback.onResult(qid, null, labels, meta, true, null);
-                        } else {	
-                            // most likely remote result arrived before UI thread registered callback
-                            // instead of implementing synchronization we just sleep for a sec and try again
-                            try {
-                                Thread.sleep(1000);
-                            } catch (InterruptedException e) {
-                              throw new RuntimeException(e);
-                            }
-                            
-                            onResultCallback = remoteQueryMap.get(qid);
-                            
-                            if (onResultCallback != null) {
-                                onResultCallback.onResult(qid, null, labels, meta, true, null);
-                            } else {
-                                Log.w(TAG, "OnResultCallback is null for qid: " + qid);
-                            }
-                        }
+                    // server can be reached again
+                    QueryJournal journal = queryJournal;
+                    if (journal != null) {
+                        journal.replay();
                     }
+                } catch (IOException e) {
+                    Log.w(TAG, "Server call failed", e);
                 } catch (JSONException e) {
-                    Log.e(TAG, "JSON error", e);
+                    Log.w(TAG, "Can't parse result", e);
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,12 +1,14 @@
 package com.iqengines.sdk;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.content.res.AssetManager;
 import android.content.res.Resources;
@@ -21,6 +23,16 @@ public class IQLocal implements IQLocalApi {
 
 	public static final String TAG = IQLocal.class.getSimpleName();
 	
+	/**
+	 * Asset directory of the catalog.
+	 */
+	public static final String DEFAULT_ASSET_PATH = "iqedata";
+	
+	/**
+	 * Minimum number of features of a reference image, enough to fit a homography.
+	 */
+	private static final int MIN_REFERENCE_FEATURES = 4;
+	
     private static final int CMD_EXIT = 1;
     private static final int CMD_LOAD = 2;
     private static final int CMD_TRAIN = 3;
@@ -34,19 +46,65 @@ public class IQLocal implements IQLocalApi {
     }
     
     private long nativeObj;
+    private long nativeVerifier;
+    /** Cropped and scaled query, reused by every match, guarded by nativeLock */
+    private final Mat query = new Mat();
     
     private WorkerThread workerThread;
     private Handler workerHandler;
+	private final String assetPath;
 	private File mDataPath;
+	private volatile long mAssetsVersion;
 	private Object signal = new Object();
+	/**
+	 * Guards the native index, which is not safe for concurrent use.
+	 */
+	private final Object nativeLock = new Object();
+	/**
+	 * Objects added and removed since training, guarded by nativeLock.
+	 */
+	private final CatalogOverlay overlay = new CatalogOverlay();
+	/**
+	 * Indices of removed trained objects, guarded by nativeLock.
+	 */
+	private final Set<Integer> removedIndices = new HashSet<Integer>();
+	/**
+	 * Number of objects of the trained index, guarded by nativeLock.
+	 */
+	private int trainedObjCount;
+	/**
+	 * Objects of the trained index, snapshot once per load and train, guarded by nativeLock.
+	 */
+	private ObjectTable trainedObjects = ObjectTable.EMPTY;
+	/**
+	 * Trained objects followed by the overlay slots, replaced whenever the catalog changes.
+	 */
+	private volatile ObjectTable objects = ObjectTable.EMPTY;
+	/**
+	 * Checksum of the unpacked catalog the overlay applies to.
+	 */
+	private long catalogChecksum;
+	/**
+	 * Whether this instance saves the overlay, only one of the instances sharing a data directory does.
+	 */
+	private boolean ownsOverlay;
     
     private native long nativeCreate();
     private native void nativeDestroy(long nativeObj);
     private native int load(long nativeObj, String indexPath, String imagesPath);
     private native int match(long nativeObj, long addr);
+    private native void matchBatch(long nativeObj, long[] addrs, int size, int[] results);
     private native int train(long nativeObj);
     private native int compute(long nativeObj, long addr, String arg1, String arg2);
     
+    private native long nativeCreateVerifier();
+    private native void nativeDestroyVerifier(long nativeVerifier);
+    private native void resetVerifier(long nativeVerifier);
+    private native int addReference(long nativeVerifier, int objIdx, long addr);
+    private native void removeReferences(long nativeVerifier, int objIdx);
+    private native int matchTopK(long nativeObj, long nativeVerifier, long addr, boolean scoreIndexMatch,
+            int[] objIdx, float[] scores, int[] inliers, int[] info);
+    
     private native int getObjCount(long nativeObj);
     private native String getObjId(long nativeObj, int idx);
     private native String getObjName(long nativeObj, String objId);
@@ -167,7 +225,20 @@ public class IQLocal implements IQLocalApi {
     
     
 	public IQLocal() {
+	    this(DEFAULT_ASSET_PATH);
+	}
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param assetPath
+	 *        The asset directory holding the catalog, unpacked to the same path in the app data directory.
+	 */
+	public IQLocal(String assetPath) {
+	    this.assetPath = assetPath;
 	    nativeObj = nativeCreate();
+	    nativeVerifier = nativeCreateVerifier();
 	}
 	
 	/* (non-Javadoc)
@@ -183,9 +254,16 @@ public class IQLocal implements IQLocalApi {
             }
 	        workerThread = null;
 	    }
-	    if (nativeObj != 0) {
-    	    nativeDestroy(nativeObj);
-    	    nativeObj = 0;
+	    synchronized (nativeLock) {
+	        if (nativeObj != 0) {
+	            nativeDestroy(nativeObj);
+	            nativeObj = 0;
+	        }
+	        if (nativeVerifier != 0) {
+	            nativeDestroyVerifier(nativeVerifier);
+	            nativeVerifier = 0;
+	        }
+	        query.close();
 	    }
 	}
 	
@@ -220,13 +298,78 @@ public class IQLocal implements IQLocalApi {
 	 */
 	@Override
 	public int match(Mat img) {
-		
+	    synchronized (nativeLock) {
+	        prepareQuery(img);
+	        int objIdx = match(nativeObj, query.nativeObj);
+	        // the index knows trained objects only, removed ones must not be reported
+	        return removedIndices.contains(objIdx) ? MatchResult.NO_MATCH : objIdx;
+	    }
+	}
+	
+	
+	/**
+	 * Matches a batch of images in a single native call, which crops and scales them 
+	 * in a shared buffer. Cheaper than calling {@link #match(Mat)} for each of them.
+	 * 
+	 * @param imgs
+	 *        The images to match.
+	 * @return the object index matched for each image, {@link MatchResult#NO_MATCH} if none.
+	 */
+	@Override
+	public int[] match(Mat[] imgs) {
+	    long[] addrs = new long[imgs.length];
+	    for (int i = 0; i < imgs.length; ++i) {
+	        addrs[i] = imgs[i].nativeObj;
+	    }
+	    int[] results = new int[imgs.length];
+	    synchronized (nativeLock) {
+	        matchBatch(nativeObj, addrs, IMAGE_SIZE, results);
+	        if (!removedIndices.isEmpty()) {
+	            for (int i = 0; i < results.length; ++i) {
+	                if (removedIndices.contains(results[i]))
+	                    results[i] = MatchResult.NO_MATCH;
+	            }
+	        }
+	    }
+	    return results;
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, int)
+	 */
+	@Override
+	public MatchResult match(Mat img, int k) {
+	    MatchResult result = new MatchResult(k);
+	    match(img, result);
+	    return result;
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, com.iqengines.sdk.MatchResult)
+	 */
+	@Override
+	public void match(Mat img, MatchResult result) {
+	    result.clear();
+	    synchronized (nativeLock) {
+	        prepareQuery(img);
+	        result.size = matchTopK(nativeObj, nativeVerifier, query.nativeObj, result.scoreIndexMatch,
+	                result.objIdx, result.scores, result.inliers, result.info);
+	        result.setObjects(objects);
+	    }
+	}
+	
+	
+	/**
+	 * Crops the center of the image and scales it to the size the index was trained with, into query.
+	 * Called with nativeLock held.
+	 */
+	private void prepareQuery(Mat img) {
 	    final int width = img.cols();
 	    final int height = img.rows();
 	    final int min = width < height ? width: height;
-	    final Mat cropped = img.submat((width - min/2)/2, (height - min/2)/2, min/2, min/2);
-	    Mat scaled = cropped.resize(IMAGE_SIZE, IMAGE_SIZE);
-		return match(nativeObj, scaled.nativeObj);
+	    img.cropResize((width - min/2)/2, (height - min/2)/2, min/2, min/2, query, IMAGE_SIZE, IMAGE_SIZE);
 	}
 	
 	
@@ -253,7 +396,9 @@ public class IQLocal implements IQLocalApi {
 	 */
 	@Override
 	public int compute(Mat img, String arg1, String arg2) {
-	    return compute(nativeObj, img.nativeObj, arg1, arg2);
+	    synchronized (nativeLock) {
+	        return compute(nativeObj, img.nativeObj, arg1, arg2);
+	    }
 	}
 	
 	
@@ -298,7 +443,15 @@ public class IQLocal implements IQLocalApi {
 	 */
 	@Override
 	public int load(String indexPath, String imagesPath) {
-	    return load(nativeObj, indexPath, imagesPath);
+	    synchronized (nativeLock) {
+	        resetVerifier(nativeVerifier);
+	        overlay.clear();
+	        removedIndices.clear();
+	        int resultCode = load(nativeObj, indexPath, imagesPath);
+	        snapshotObjects();
+	        publishObjects();
+	        return resultCode;
+	    }
 	}
 	
 	
@@ -335,7 +488,14 @@ public class IQLocal implements IQLocalApi {
 	 */
 	@Override
 	public int train() {
-	    return train(nativeObj);
+	    synchronized (nativeLock) {
+	        int resultCode = train(nativeObj);
+	        snapshotObjects();
+	        // reference features of trained objects are extracted when they are first matched
+	        resetVerifier(nativeVerifier);
+	        applyOverlay();
+	        return resultCode;
+	    }
 	}
 	
 	
@@ -371,13 +531,36 @@ public class IQLocal implements IQLocalApi {
 	 */
 	@Override
 	public void init(Resources res, File appDataDir) {
-        mDataPath = new File(appDataDir, "iqedata");
+        mDataPath = new File(appDataDir, assetPath);
 
 		if (unpackInitialAssets(res, appDataDir)) {
-			File index = new File(mDataPath, "objects.json");
-			load(index, mDataPath);
+			ownsOverlay = true;
+			loadUnpacked(mDataPath);
+		}
+	}
 	
-			train();
+	
+	/**
+	 * Loads and trains the index from a data directory already unpacked by another instance.
+	 */
+	void initUnpacked(File dataPath) {
+	    mDataPath = dataPath;
+	    loadUnpacked(dataPath);
+	}
+	
+	
+	private void loadUnpacked(File dataPath) {
+		File index = new File(dataPath, "objects.json");
+		load(index, dataPath);
+
+		train();
+
+		long checksum = CatalogOverlay.catalogChecksum(dataPath);
+		
+		synchronized (nativeLock) {
+		    catalogChecksum = checksum;
+		    overlay.read(new File(dataPath, CatalogOverlay.FILE_NAME), checksum);
+		    applyOverlay();
 		}
 	}
 	
@@ -388,31 +571,279 @@ public class IQLocal implements IQLocalApi {
 	}
 	
 	
-	public List<String> getObjIds() {
+	/**
+	 * Adds an object to the catalog without retraining the index.
+	 * The object is found by {@link #match(Mat, MatchResult)} once it has enough inliers, 
+	 * and is kept until the catalog itself changes. An object with the same id is replaced.
+	 * <p>
+	 * The trained index does not know added objects: {@link #match(Mat)} and {@link #match(Mat[])}
+	 * never return them, only the scored match does.
+	 * 
+	 * @param objId
+	 *        The id of the object.
+	 * @param objName
+	 *        The name (label) of the object.
+	 * @param objMeta
+	 *        The meta information of the object, may be null.
+	 * @param images
+	 *        Reference images of the object.
+	 * @return the number of images with enough features to be matched.
+	 */
+	@Override
+	public int addObject(String objId, String objName, String objMeta, List<File> images) {
+	    if (objId == null || images == null)
+	        throw new IllegalArgumentException();
+	    
+	    List<File> kept = ownsOverlay ? copyImages(images) : images;
+	    synchronized (nativeLock) {
+	        removeObjectLocked(objId);
+	        
+	        int slot = overlay.add(new CatalogOverlay.AddedObject(objId, objName, objMeta, kept));
+	        int indexed = addReferences(trainedObjCount + slot, kept);
+	        publishObjects();
+	        saveOverlay();
+	        return indexed;
+	    }
+	}
+	
+	
+	/**
+	 * Removes an object from the catalog without retraining the index. 
+	 * It stays in {@link #getObjIds()} so that other object indices do not change, but is never matched again.
+	 * 
+	 * @param objId
+	 *        The id of the object.
+	 * @return false if there was no such object.
+	 */
+	@Override
+	public boolean removeObject(String objId) {
+	    synchronized (nativeLock) {
+	        boolean removed = removeObjectLocked(objId);
+	        if (removed) {
+	            publishObjects();
+	            saveOverlay();
+	        }
+	        return removed;
+	    }
+	}
+	
+	
+	private boolean removeObjectLocked(String objId) {
+	    int slot = overlay.slotOf(objId);
+	    if (slot >= 0) {
+	        overlay.removeSlot(slot);
+	        removeReferences(nativeVerifier, trainedObjCount + slot);
+	        return true;
+	    }
+	    int objIdx = trainedIndexOf(objId);
+	    if (objIdx >= 0 && overlay.removeTrained(objId)) {
+	        removedIndices.add(objIdx);
+	        removeReferences(nativeVerifier, objIdx);
+	        return true;
+	    }
+	    return false;
+	}
+	
+	
+	private int trainedIndexOf(String objId) {
+	    return trainedObjects.indexOf(objId);
+	}
+	
+	
+	/**
+	 * Reads ids, names and meta information of the trained objects out of the native index,
+	 * so that they are not looked up through JNI on every match. Called with nativeLock held.
+	 */
+	private void snapshotObjects() {
 	    int count = getObjCount(nativeObj);
-	    List<String> list = new ArrayList<String>(count);
-	    for (int i = 0; i < count; ++i)
-	        list.add(getObjId(nativeObj, i));
-	    return list;
+	    String[] ids = new String[count];
+	    String[] names = new String[count];
+	    String[] metas = new String[count];
+	    for (int i = 0; i < count; ++i) {
+	        ids[i] = getObjId(nativeObj, i);
+	        names[i] = getObjName(nativeObj, ids[i]);
+	        metas[i] = getObjMeta(nativeObj, ids[i]);
+	    }
+	    trainedObjects = new ObjectTable(ids, names, metas, count);
+	    trainedObjCount = count;
+	}
+	
+	
+	/**
+	 * Publishes the table of trained and added objects to readers. Called with nativeLock held.
+	 */
+	private void publishObjects() {
+	    int slots = overlay.slotCount();
+	    String[] ids = new String[slots];
+	    String[] names = new String[slots];
+	    String[] metas = new String[slots];
+	    for (int slot = 0; slot < slots; ++slot) {
+	        CatalogOverlay.AddedObject o = overlay.get(slot);
+	        ids[slot] = overlay.getId(slot);
+	        names[slot] = o == null ? null : o.name;
+	        metas[slot] = o == null ? null : o.meta;
+	    }
+	    objects = trainedObjects.append(ids, names, metas, slots);
+	}
+	
+	
+	/**
+	 * Replays the overlay on a freshly trained index. Called with nativeLock held.
+	 */
+	private void applyOverlay() {
+	    removedIndices.clear();
+	    
+	    for (String objId : overlay.getRemovedTrained()) {
+	        int objIdx = trainedIndexOf(objId);
+	        if (objIdx >= 0) {
+	            removedIndices.add(objIdx);
+	            removeReferences(nativeVerifier, objIdx);
+	        }
+	    }
+	    for (int slot = 0; slot < overlay.slotCount(); ++slot) {
+	        CatalogOverlay.AddedObject o = overlay.get(slot);
+	        if (o == null) {
+	            removeReferences(nativeVerifier, trainedObjCount + slot);
+	        } else {
+	            addReferences(trainedObjCount + slot, o.images);
+	        }
+	    }
+	    publishObjects();
+	}
+	
+	
+	private int addReferences(int objIdx, List<File> images) {
+	    int indexed = 0;
+	    for (File image : images) {
+	        Mat img = new Mat(image.getPath());
+	        try {
+	            if (img.cols() == 0) {
+	                Log.w(TAG, "Can't read " + image);
+	                continue;
+	            }
+	            if (addReference(nativeVerifier, objIdx, img.nativeObj) >= MIN_REFERENCE_FEATURES)
+	                ++indexed;
+	        } finally {
+	            img.close();
+	        }
+	    }
+	    return indexed;
+	}
+	
+	
+	/**
+	 * Copies images of an added object next to the catalog, so that they outlive the caller's files.
+	 */
+	private List<File> copyImages(List<File> images) {
+	    File dir = new File(mDataPath, CatalogOverlay.IMAGES_DIR);
+	    dir.mkdirs();
+	    List<File> copies = new ArrayList<File>(images.size());
+	    for (File image : images) {
+	        File copy = new File(dir, System.currentTimeMillis() + "-" + copies.size() + "-" + image.getName());
+	        try {
+	            copyFile(image, copy);
+	            copies.add(copy);
+	        } catch (IOException e) {
+	            Log.w(TAG, "Can't copy " + image, e);
+	        }
+	    }
+	    return copies;
 	}
 	
 	
+	private static void copyFile(File from, File to) throws IOException {
+	    FileChannel src = new FileInputStream(from).getChannel();
+	    try {
+	        FileChannel dst = new FileOutputStream(to).getChannel();
+	        try {
+	            long size = src.size();
+	            long done = 0;
+	            while (done < size) {
+	                done += src.transferTo(done, size - done, dst);
+	            }
+	        } finally {
+	            dst.close();
+	        }
+	    } finally {
+	        src.close();
+	    }
+	}
+	
+	
+	/**
+	 * Saves the overlay if this instance owns it. Called with nativeLock held.
+	 */
+	private void saveOverlay() {
+	    if (!ownsOverlay) {
+	        return;
+	    }
+	    try {
+	        overlay.write(new File(mDataPath, CatalogOverlay.FILE_NAME), catalogChecksum,
+	                new File(mDataPath, CatalogOverlay.IMAGES_DIR));
+	    } catch (IOException e) {
+	        Log.e(TAG, "Can't save catalog overlay", e);
+	    }
+	}
+	
+	
+	/**
+	 * @return the objects the indices returned by matches refer to, as they are now.
+	 */
+	ObjectTable getObjects() {
+	    return objects;
+	}
+	
+	
+	/**
+	 * @return the number of objects, the size of {@link #getObjIds()}.
+	 */
+	public int getObjCount() {
+	    return objects.size();
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see com.iqengines.sdk.IQLocalApi#getObjId(int)
+	 */
+	@Override
+	public String getObjId(int objIdx) {
+	    return objects.getId(objIdx);
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see com.iqengines.sdk.IQLocalApi#getObjIds()
+	 */
+	@Override
+	public List<String> getObjIds() {
+	    return objects.getIds();
+	}
+	
+	
+	/* (non-Javadoc)
+	 * @see com.iqengines.sdk.IQLocalApi#getObjName(java.lang.String)
+	 */
+	@Override
 	public String getObjName(String objId) {
-	    return getObjName(nativeObj, objId);
+	    return objects.getName(objId);
 	}
 	
 	
+	/* (non-Javadoc)
+	 * @see com.iqengines.sdk.IQLocalApi#getObjMeta(java.lang.String)
+	 */
+	@Override
 	public String getObjMeta(String objId) {
-	    return getObjMeta(nativeObj, objId);
+	    return objects.getMeta(objId);
 	}
 	
 	
     private boolean unpackInitialAssets(Resources res, File appDataDir) {
         AssetManager am = res.getAssets();
-        File inRoot = new File("iqedata");
+        File inRoot = new File(assetPath);
         
         try {
-            unpackAssets(am, inRoot, mDataPath);
+            new AssetUnpacker(am, inRoot, mDataPath, mAssetsVersion).unpack();
             return true;
         } catch (IOException e) {
             Log.e(TAG, "Can't unpack initial iq-index", e);
@@ -421,35 +852,15 @@ public class IQLocal implements IQLocalApi {
     }
     
     
-    private static void unpackAssets(AssetManager am, File in, File out) throws IOException {
-        String[] children = am.list(in.getPath());
-        if (children != null && children.length > 0) {
-            if (!out.exists())
-                out.mkdirs();
-            
-            for (String child : children) {
-                unpackAssets(am, new File(in, child), new File(out, child));
-            }
-        }
-        else {
-            InputStream is = null;
-            OutputStream os = null;
-            try {
-                is = am.open(in.getPath());
-                os = new FileOutputStream(out);
-                
-                byte[] buf = new byte[4096];
-                int len;
-                while ((len = is.read(buf)) > 0)
-                    os.write(buf, 0, len);
-            }
-            finally {
-                if (is != null)
-                    is.close();
-                if (os != null)
-                    os.close();
-            }
-        }
+    /**
+     * Sets the version of the application assets, so that unchanged assets are not even read at init.
+     * 
+     * @param assetsVersion
+     *        A number which changes whenever the assets do, e.g. the time the APK was installed. 0 if unknown.
+     */
+    @Override
+    public void setAssetsVersion(long assetsVersion) {
+        mAssetsVersion = assetsVersion;
     }
 
     
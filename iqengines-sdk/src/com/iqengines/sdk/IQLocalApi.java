@@ -13,6 +13,12 @@ public interface IQLocalApi {
 
 	public abstract int match(Mat img);
 
+	public abstract int[] match(Mat[] imgs);
+
+	public abstract MatchResult match(Mat img, int k);
+
+	public abstract void match(Mat img, MatchResult result);
+
 	public abstract void match(Mat img, OnReady callback);
 
 	public abstract int compute(Mat img, String arg1, String arg2);
@@ -41,6 +47,14 @@ public interface IQLocalApi {
 
 	public abstract String getObjMeta(String objId);
 
+	public abstract String getObjId(int objIdx);
+
 	public abstract List<String> getObjIds();
 
+	public abstract int addObject(String objId, String objName, String objMeta, List<File> images);
+
+	public abstract boolean removeObject(String objId);
+
+	public abstract void setAssetsVersion(long assetsVersion);
+
 }
\ No newline at end of file
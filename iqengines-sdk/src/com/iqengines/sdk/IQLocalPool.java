@@ -0,0 +1,699 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.iqengines.sdk.IQLocal.OnReady;
+
+/**
+ * {@link IQLocalApi} matching on several cores at once.
+ * The native index is not safe for concurrent use, so the pool holds one trained {@link IQLocal}
+ * per worker and hands each match to an idle one. Workers are trained from the same unpacked data.
+ * Each worker costs one copy of the trained index in memory, which holds the features of every
+ * reference image, and trains it on its own: memory and training time grow with the pool size.
+ * The catalog changes while no worker is matching, so that all matches and object lookups
+ * between two changes see the same objects.
+ */
+public class IQLocalPool implements IQLocalApi {
+
+    public static final String TAG = IQLocalPool.class.getSimpleName();
+
+    /** Smallest batch worth handing to another worker */
+    private static final int MIN_BATCH_CHUNK = 4;
+
+    private final IQLocal[] workers;
+
+    /** Idle workers, the last released first so that a light load keeps using the same ones */
+    private final LinkedBlockingDeque<Integer> idle = new LinkedBlockingDeque<Integer>();
+
+    private final AtomicLong[] busyNanos;
+
+    private final AtomicLong[] matchCounts;
+
+    private volatile long statsStart = System.nanoTime();
+
+    /** Serializes changes of the catalog so that workers number added objects alike */
+    private final Object catalogLock = new Object();
+
+    /** Objects of every worker, replaced while the catalog changes and no worker is matching */
+    private volatile ObjectTable objects = ObjectTable.EMPTY;
+
+    /** Runs the asynchronous API */
+    private final ExecutorService executor;
+
+    /** Runs a task on every worker in parallel, apart from executor so that asynchronous calls can wait for it */
+    private final ExecutorService fanOut;
+
+
+    /**
+     * Constructor
+     *
+     * @param size
+     *        The number of workers, usually the number of threads searching concurrently.
+     */
+
+
+    public IQLocalPool(int size) {
+        this(size, IQLocal.DEFAULT_ASSET_PATH);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param size
+     *        The number of workers, usually the number of threads searching concurrently.
+     * @param assetPath
+     *        The asset directory holding the catalog.
+     */
+
+
+    public IQLocalPool(int size, String assetPath) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        workers = new IQLocal[size];
+        busyNanos = new AtomicLong[size];
+        matchCounts = new AtomicLong[size];
+        for (int i = 0; i < size; ++i) {
+            workers[i] = new IQLocal(assetPath);
+            busyNanos[i] = new AtomicLong();
+            matchCounts[i] = new AtomicLong();
+            idle.addLast(i);
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "IQLocalPool-" + threadCount.incrementAndGet());
+            }
+        };
+        executor = Executors.newFixedThreadPool(size, threadFactory);
+        fanOut = Executors.newCachedThreadPool(threadFactory);
+    }
+
+
+    /**
+     * @return the number of workers.
+     */
+
+
+    public int getPoolSize() {
+        return workers.length;
+    }
+
+
+    /**
+     * @param worker
+     *        The index of a worker, between 0 and {@link #getPoolSize()} - 1.
+     * @return the share of time the worker spent matching since the pool was created
+     *         or {@link #resetStats()} was last called, between 0 and 1.
+     */
+
+
+    public float getUtilization(int worker) {
+        long elapsed = System.nanoTime() - statsStart;
+        return elapsed <= 0 ? 0f : Math.min(1f, (float) busyNanos[worker].get() / elapsed);
+    }
+
+
+    /**
+     * @param worker
+     *        The index of a worker, between 0 and {@link #getPoolSize()} - 1.
+     * @return the number of matches run by the worker since the pool was created
+     *         or {@link #resetStats()} was last called.
+     */
+
+
+    public long getMatchCount(int worker) {
+        return matchCounts[worker].get();
+    }
+
+
+    /**
+     * Restarts utilization and match counts from zero.
+     */
+
+
+    public void resetStats() {
+        for (int i = 0; i < workers.length; ++i) {
+            busyNanos[i].set(0);
+            matchCounts[i].set(0);
+        }
+        statsStart = System.nanoTime();
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#setAssetsVersion(long)
+     */
+    @Override
+    public void setAssetsVersion(long assetsVersion) {
+        workers[0].setAssetsVersion(assetsVersion);
+    }
+
+
+    /**
+     * Takes an idle worker, waiting for one if all are matching.
+     *
+     * @return the index of the worker, -1 if the caller was interrupted.
+     */
+
+
+    private int acquire() {
+        try {
+            return idle.takeFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+
+    private void release(int worker, long start) {
+        release(worker, start, 1);
+    }
+
+
+    private void release(int worker, long start, int matches) {
+        busyNanos[worker].addAndGet(System.nanoTime() - start);
+        matchCounts[worker].addAndGet(matches);
+        idle.addFirst(worker);
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat)
+     */
+    @Override
+    public int match(Mat img) {
+        int worker = acquire();
+        if (worker < 0) {
+            return MatchResult.NO_MATCH;
+        }
+        long start = System.nanoTime();
+        try {
+            return workers[worker].match(img);
+        } finally {
+            release(worker, start);
+        }
+    }
+
+
+    /**
+     * Splits the batch in one chunk per worker, each matched in a single native call.
+     * The calling thread matches the last chunk itself.
+     *
+     * @see IQLocal#match(Mat[])
+     */
+    @Override
+    public int[] match(Mat[] imgs) {
+        final int[] results = new int[imgs.length];
+        int chunks = Math.max(1, Math.min(workers.length, imgs.length / MIN_BATCH_CHUNK));
+        int chunkSize = (imgs.length + chunks - 1) / chunks;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks - 1);
+        try {
+            for (int from = chunkSize; from < imgs.length; from += chunkSize) {
+                final int offset = from;
+                final Mat[] chunk = Arrays.copyOfRange(imgs, from, Math.min(imgs.length, from + chunkSize));
+                futures.add(fanOut.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        matchChunk(chunk, results, offset);
+                    }
+                }));
+            }
+            matchChunk(Arrays.copyOfRange(imgs, 0, Math.min(imgs.length, chunkSize)), results, 0);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Arrays.fill(results, MatchResult.NO_MATCH);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return results;
+    }
+
+
+    private void matchChunk(Mat[] chunk, int[] results, int offset) {
+        int worker = acquire();
+        if (worker < 0) {
+            Arrays.fill(results, offset, offset + chunk.length, MatchResult.NO_MATCH);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            int[] chunkResults = workers[worker].match(chunk);
+            System.arraycopy(chunkResults, 0, results, offset, chunkResults.length);
+        } finally {
+            release(worker, start, chunk.length);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, int)
+     */
+    @Override
+    public MatchResult match(Mat img, int k) {
+        MatchResult result = new MatchResult(k);
+        match(img, result);
+        return result;
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, com.iqengines.sdk.MatchResult)
+     */
+    @Override
+    public void match(Mat img, MatchResult result) {
+        int worker = acquire();
+        if (worker < 0) {
+            result.clear();
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            workers[worker].match(img, result);
+        } finally {
+            release(worker, start);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void match(final Mat img, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(match(img));
+            }
+        });
+    }
+
+
+    /**
+     * Computes on every worker so that they stay identical.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#compute(com.iqengines.sdk.Mat, java.lang.String, java.lang.String)
+     */
+    @Override
+    public int compute(final Mat img, final String arg1, final String arg2) {
+        return changeCatalog(new Task() {
+            @Override
+            public int run(IQLocal worker) {
+                return worker.compute(img, arg1, arg2);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#compute(com.iqengines.sdk.Mat, java.lang.String, java.lang.String, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void compute(final Mat img, final String arg1, final String arg2, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(compute(img, arg1, arg2));
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#load(java.io.File, java.io.File)
+     */
+    @Override
+    public int load(File index, File images) {
+        return load(index.getPath(), images.getPath());
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#load(java.lang.String, java.lang.String)
+     */
+    @Override
+    public int load(final String indexPath, final String imagesPath) {
+        return changeCatalog(new Task() {
+            @Override
+            public int run(IQLocal worker) {
+                return worker.load(indexPath, imagesPath);
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#load(java.io.File, java.io.File, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void load(File index, File images, OnReady callback) {
+        load(index.getPath(), images.getPath(), callback);
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#load(java.lang.String, java.lang.String, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void load(final String indexPath, final String imagesPath, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(load(indexPath, imagesPath));
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#train()
+     */
+    @Override
+    public int train() {
+        return changeCatalog(new Task() {
+            @Override
+            public int run(IQLocal worker) {
+                return worker.train();
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#train(com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void train(final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(train());
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#init(android.content.res.Resources, java.io.File, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void init(final Resources res, final File appDataDir, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    init(res, appDataDir);
+                    callback.onReady(0);
+                } catch (Exception e) {
+                    callback.onReady(-1);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Unpacks the assets and trains the first worker, then trains the other workers in parallel
+     * from the same data.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#init(android.content.res.Resources, java.io.File)
+     */
+    @Override
+    public void init(Resources res, File appDataDir) {
+        synchronized (catalogLock) {
+            takeAll();
+            try {
+                workers[0].init(res, appDataDir);
+
+                final File dataPath = workers[0].getDataPath();
+                onEveryWorker(new Task() {
+                    @Override
+                    public int run(IQLocal worker) {
+                        if (worker != workers[0]) {
+                            worker.initUnpacked(dataPath);
+                        }
+                        return 0;
+                    }
+                });
+            } finally {
+                releaseAll();
+            }
+        }
+        Log.d(TAG, workers.length + " local matchers ready");
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjName(java.lang.String)
+     */
+    @Override
+    public String getObjName(String objId) {
+        return objects.getName(objId);
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjMeta(java.lang.String)
+     */
+    @Override
+    public String getObjMeta(String objId) {
+        return objects.getMeta(objId);
+    }
+
+
+    /**
+     * Looks the index up in the objects every worker had since the last change of the catalog,
+     * those of the worker which returned it if the catalog did not change in between.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#getObjId(int)
+     */
+    @Override
+    public String getObjId(int objIdx) {
+        return objects.getId(objIdx);
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjIds()
+     */
+    @Override
+    public List<String> getObjIds() {
+        return objects.getIds();
+    }
+
+
+    /**
+     * Adds the object on every worker so that they stay identical.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#addObject(java.lang.String, java.lang.String, java.lang.String, java.util.List)
+     */
+    @Override
+    public int addObject(final String objId, final String objName, final String objMeta, final List<File> images) {
+        return changeCatalog(new Task() {
+            @Override
+            public int run(IQLocal worker) {
+                return worker.addObject(objId, objName, objMeta, images);
+            }
+        });
+    }
+
+
+    /**
+     * Removes the object on every worker so that they stay identical.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#removeObject(java.lang.String)
+     */
+    @Override
+    public boolean removeObject(final String objId) {
+        return changeCatalog(new Task() {
+            @Override
+            public int run(IQLocal worker) {
+                return worker.removeObject(objId) ? 1 : 0;
+            }
+        }) != 0;
+    }
+
+
+    /**
+     * @see IQLocal#getObjCount()
+     */
+
+
+    public int getObjCount() {
+        return objects.size();
+    }
+
+
+    public File getDataPath() {
+        return workers[0].getDataPath();
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#destroy()
+     */
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        fanOut.shutdownNow();
+        for (IQLocal worker : workers) {
+            worker.destroy();
+        }
+    }
+
+
+    private interface Task {
+        int run(IQLocal worker);
+    }
+
+
+    /**
+     * Runs a task changing the catalog on every worker once all of them are idle,
+     * then publishes the resulting objects before any worker matches again.
+     *
+     * @return the result of the first worker.
+     */
+
+
+    private int changeCatalog(Task task) {
+        synchronized (catalogLock) {
+            takeAll();
+            try {
+                return onEveryWorker(task);
+            } finally {
+                releaseAll();
+            }
+        }
+    }
+
+
+    /**
+     * Takes every worker, waiting for the matches in progress to end. Called with catalogLock held.
+     */
+
+
+    private void takeAll() {
+        int[] taken = new int[workers.length];
+        int count = 0;
+        try {
+            for (; count < workers.length; ++count) {
+                taken[count] = idle.takeFirst();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (int i = 0; i < count; ++i) {
+                idle.addFirst(taken[i]);
+            }
+            throw new IllegalStateException("Interrupted while waiting for local matchers");
+        }
+    }
+
+
+    /**
+     * Publishes the objects of the workers and hands back the workers taken by {@link #takeAll()}.
+     * Called with catalogLock held.
+     */
+
+
+    private void releaseAll() {
+        objects = workers[0].getObjects();
+        for (int i = 0; i < workers.length; ++i) {
+            idle.addLast(i);
+        }
+    }
+
+
+    /**
+     * Runs a task on every worker in parallel.
+     *
+     * @return the result of the first worker.
+     */
+
+
+    private int onEveryWorker(final Task task) {
+        if (workers.length == 1) {
+            return task.run(workers[0]);
+        }
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(workers.length);
+        for (final IQLocal worker : workers) {
+            results.add(fanOut.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return task.run(worker);
+                }
+            }));
+        }
+
+        int result = 0;
+        try {
+            for (int i = 0; i < results.size(); ++i) {
+                int r = results.get(i).get();
+                if (i == 0) {
+                    result = r;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Integer> r : results) {
+                r.cancel(true);
+            }
+            throw new IllegalStateException("Interrupted while waiting for local matchers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return result;
+    }
+}
@@ -1,42 +1,57 @@
 package com.iqengines.sdk;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.Serializable;
-import java.io.StringWriter;
-import java.io.UnsupportedEncodingException;
-import java.io.Writer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Iterator;
-import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.apache.commons.codec.binary.Hex;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
+import org.json.JSONException;
 
 public class IQRemote implements Serializable {
     
     public final static int MAX_IMAGE_SIZE = 480;
     
+    /** Default number of kept-alive connections to the IQ Engines' server */
+    public final static int DEFAULT_MAX_CONNECTIONS = 4;
+    
+    /** Default time to establish a connection (milliseconds) */
+    public final static int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+    
+    /** Default time to wait for response data, longer than the 90 seconds Update API long polling (milliseconds) */
+    public final static int DEFAULT_READ_TIMEOUT = 100 * 1000;
+    
+    /** Time after which an unused kept-alive connection is closed (milliseconds) */
+    public final static long IDLE_CONNECTION_TIMEOUT = 30 * 1000;
+    
+    /** Charset of responses which do not give one, the JSON default */
+    private final static String DEFAULT_CHARSET = "UTF-8";
+    
     /*
      * CONSTRUCTORS
      */
@@ -50,8 +65,33 @@ public class IQRemote implements Serializable {
      *            A non-<code>null</code> {@link String} : Your API secret.
      */
     public IQRemote(String key, String secret) {
+        this(key, secret, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+    
+    /**
+     * Constructor
+     *
+     * @param key
+     *            A non-<code>null</code> {@link String} : Your API key.
+     * @param secret
+     *            A non-<code>null</code> {@link String} : Your API secret.
+     * @param maxConnections
+     *            The number of connections to the server kept alive and
+     *            shared by concurrent calls.
+     * @param connectTimeout
+     *            The time to establish a connection (milliseconds).
+     * @param readTimeout
+     *            The time to wait for response data (milliseconds).
+     */
+    public IQRemote(String key, String secret, int maxConnections, int connectTimeout, int readTimeout) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be positive");
+        }
         this.key = key;
         this.secret = secret;
+        this.maxConnections = maxConnections;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
     }
 
     /*
@@ -188,6 +228,43 @@ public class IQRemote implements Serializable {
     
     
     public String update(String device_id, boolean json) throws IOException {
+        return post(IQESelector.update, updateFields(device_id, json));
+    }
+
+    
+    /**
+     * Calls the Update API and decodes the JSON response as it is received,
+     * without holding it in memory.
+     *
+     * @param device_id
+     *            A possibly-<code>null</code> {@link String} : The unique
+     *            identification of the device that is querying the API.
+     * @param sink
+     *            A non-<code>null</code> {@link UpdateParser.Sink} : Receives
+     *            the qid, labels and meta of each result.
+     * @return the error code returned by the server, 0 if none.
+     * @throws IOException
+     * @throws JSONException
+     *            if the response is not a valid update-API response.
+     */
+    
+    
+    int update(String device_id, final UpdateParser.Sink sink) throws IOException, JSONException {
+        return post(IQESelector.update, updateFields(device_id, true), new ResponseReader<Integer, JSONException>() {
+            @Override
+            public Integer read(HttpEntity entity) throws IOException, JSONException {
+                if (entity == null) {
+                    throw new IOException("Empty response");
+                }
+                String charset = EntityUtils.getContentCharSet(entity);
+                Reader reader = new InputStreamReader(entity.getContent(), charset != null ? charset : DEFAULT_CHARSET);
+                return UpdateParser.parse(reader, sink);
+            }
+        });
+    }
+    
+    
+    private TreeMap<String, String> updateFields(String device_id, boolean json) {
         TreeMap<String, String> fields = new TreeMap<String, String>();
 
         // Optional parameters
@@ -202,8 +279,7 @@ public class IQRemote implements Serializable {
         fields.put("time_stamp", now());
         fields.put("api_key", key);
         fields.put("api_sig", buildSignature(fields));
-
-        return post(IQESelector.update, fields);
+        return fields;
     }
 
     
@@ -334,11 +410,55 @@ public class IQRemote implements Serializable {
         return post(IQESelector.result, fields);
     }
 
+    /**
+     * Closes all connections to the server. Next call opens new ones.
+     */
+    public synchronized void shutdown() {
+        if (client != null) {
+            client.getConnectionManager().shutdown();
+            client = null;
+        }
+    }
+
     /*
      * PRIVATE METHODS
      */
     
     
+    /**
+     * Returns the client shared by all calls, creating it on first use.
+     * Idle connections are closed from here, so no extra thread is needed.
+     *
+     * @return a non null {@link HttpClient}
+     */
+    
+    
+    private synchronized HttpClient getClient() {
+        if (client == null) {
+            HttpParams params = new BasicHttpParams();
+            ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+            HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+            HttpConnectionParams.setSoTimeout(params, readTimeout);
+            
+            SchemeRegistry schemeRegistry = new SchemeRegistry();
+            schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            
+            client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+            lastIdleCheck = System.currentTimeMillis();
+        }
+        
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck > IDLE_CONNECTION_TIMEOUT) {
+            ClientConnectionManager connManager = client.getConnectionManager();
+            connManager.closeExpiredConnections();
+            connManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            lastIdleCheck = now;
+        }
+        return client;
+    }
+    
+    
     /**
      * Returns the current time stamp using the following formatting :
      * "YYYYmmDDHHMMSS"
@@ -347,14 +467,8 @@ public class IQRemote implements Serializable {
      */
     
     
-    private String now() {
-    	
-        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        String date_format = "yyyyMMddkkmmss";
-        SimpleDateFormat sdf = new SimpleDateFormat(date_format);
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
- 
-        return sdf.format(c.getTime());
+    String now() {
+        return getSigner().timeStamp(System.currentTimeMillis());
     }
 
     
@@ -369,48 +483,31 @@ public class IQRemote implements Serializable {
      */
     
     
-    private String buildSignature(TreeMap<String, String> fields) {
-        // join key value pairs together
-        String result = null;
-        String raw_string = "";
-        Iterator<String> i = fields.keySet().iterator();
-        while (i.hasNext()) {
-            String tmpKey = i.next();
-            String value = fields.get(tmpKey);
-            if (tmpKey.equals("img")) {
-                // if the argument is an image, only keep the name of the file
-                File image = new File(value);
-                raw_string += "img" + image.getName();
-            } else if (tmpKey.startsWith("images")) {
-                // if the argument is an image, only keep the name of the file
-                File image = new File(value);
-                raw_string += "images" + image.getName();
-            } else {
-                raw_string += tmpKey + value;
-            }
-        }
+    String buildSignature(TreeMap<String, String> fields) {
         try {
-            String HMAC_SHA1_ALGORITHM = "HmacSHA1";
-            byte[] secret_bytes = secret.getBytes();
-            SecretKeySpec secret_key = new SecretKeySpec(secret_bytes, HMAC_SHA1_ALGORITHM);
-
-            Mac m = Mac.getInstance("HmacSHA1");
-            m.init(secret_key);
-            byte[] signature_raw = m.doFinal(raw_string.getBytes());
-
-            // Convert raw bytes to Hex
-            byte[] signature_hex = new Hex().encode(signature_raw);
-
-            //  Covert array of Hex bytes to a String
-            result = new String(signature_hex, "ISO-8859-1");
+            return getSigner().sign(fields);
         } catch (NoSuchAlgorithmException e) {
             return "Exception : NoSuchAlgorithmException" + e.getMessage();
         } catch (InvalidKeyException e) {
             return "Exception : InvalidKeyException" + e.getMessage();
-        } catch (UnsupportedEncodingException e) {
-            return "Exception : UnsupportedEncodingException" + e.getMessage();
         }
-        return result;
+    }
+    
+    
+    /**
+     * Returns the signer, creating it on first use since it is not serialized.
+     *
+     * @return a non null {@link RequestSigner}
+     */
+    
+    
+    private RequestSigner getSigner() {
+        RequestSigner s = signer;
+        if (s == null) {
+            s = new RequestSigner(secret);
+            signer = s;
+        }
+        return s;
     }
 
     
@@ -428,10 +525,31 @@ public class IQRemote implements Serializable {
     
     
     private String post(IQESelector selector, TreeMap<String, String> fields) throws IOException {
-        String result = "error";
+        return post(selector, fields, TO_STRING);
+    }
+
+    
+    /**
+     * Post fields and files to an http host as multipart/form-data.
+     *
+     * @param selector
+     *            A non-<code>null</code> {@link IQESelector} : The type of post
+     *            message.
+     * @param fields
+     *            A non-<code>null</code> {@link TreeMap} : The fields
+     * @param responseReader
+     *            A non-<code>null</code> {@link ResponseReader} : Reads the
+     *            server's response while the connection is held.
+     * @return what responseReader returns.
+     * @throws IOException 
+     */
+    
+    
+    private <T, E extends Exception> T post(IQESelector selector, TreeMap<String, String> fields,
+            ResponseReader<T, E> responseReader) throws IOException, E {
         String url = "http://api.iqengines.com/v1.2/" + selector + "/";
 
-        HttpClient client = new DefaultHttpClient();
+        HttpClient client = getClient();
         HttpPost httppost = new HttpPost(url);
         MultipartEntity entity = new MultipartEntity();
 
@@ -450,41 +568,58 @@ public class IQRemote implements Serializable {
         }
         httppost.setEntity(entity);
 
-        HttpResponse response = client.execute(httppost);
-        HttpEntity resEntity = response.getEntity();
-
-        if (resEntity != null) {
-            long length = resEntity.getContentLength();
-            // Check if we have to stream the result of the query
-            if (length != -1 && length < 2048) {
-                result = EntityUtils.toString(resEntity);
-            } else {
-                InputStream instream = resEntity.getContent();
-
-                Writer writer = new StringWriter();
-                char[] buffer = new char[1024];
-
-                try {
-                    Reader reader = new BufferedReader(new InputStreamReader(instream));
+        boolean consumed = false;
+        try {
+            HttpResponse response = client.execute(httppost);
+            HttpEntity resEntity = response.getEntity();
 
-                    int n;
-                    while ((n = reader.read(buffer)) != -1) {
-                        writer.write(buffer, 0, n);
-                    }
-                } finally {
-                    instream.close();
-                }
-                
-                result = writer.toString();
+            T result = responseReader.read(resEntity);
+            if (resEntity != null) {
+                // gives the connection back to the pool
+                resEntity.consumeContent();
+            }
+            consumed = true;
+            return result;
+        } finally {
+            if (!consumed) {
+                // the connection can't be reused
+                httppost.abort();
             }
-            
-            resEntity.consumeContent();
         }
+    }
+
+    
+    /**
+     * Reads the response to a call.
+     *
+     * @param <T>
+     *            The type of what is read.
+     * @param <E>
+     *            The exception thrown on malformed responses.
+     */
+    
+    
+    private interface ResponseReader<T, E extends Exception> {
         
-        return result;
+        /**
+         * @param entity
+         *            A possibly-<code>null</code> {@link HttpEntity} : The
+         *            response, whose content may be left partly unread.
+         */
+        T read(HttpEntity entity) throws IOException, E;
     }
 
     
+    /** Reads the whole response as a String, "error" if there is none */
+    
+    private static final ResponseReader<String, RuntimeException> TO_STRING = new ResponseReader<String, RuntimeException>() {
+        @Override
+        public String read(HttpEntity entity) throws IOException {
+            return entity != null ? EntityUtils.toString(entity, DEFAULT_CHARSET) : "error";
+        }
+    };
+
+    
     /**
      * This class is used to store the results of the Query API : The unique
      * identifier of the image and the server's response.
@@ -565,6 +700,30 @@ public class IQRemote implements Serializable {
     
     private final String secret;
     
+    /** Max number of connections kept alive */
+    
+    private final int maxConnections;
+    
+    /** Connect timeout (milliseconds) */
+    
+    private final int connectTimeout;
+    
+    /** Read timeout (milliseconds) */
+    
+    private final int readTimeout;
+    
+    /** Client shared by all calls, created on first use */
+    
+    private transient DefaultHttpClient client;
+    
+    /** Last time idle connections were closed */
+    
+    private transient long lastIdleCheck;
+    
+    /** Signs calls, created on first use */
+    
+    private transient volatile RequestSigner signer;
+    
     /** Generated serial id */
     
     private static final long serialVersionUID = -8870882783562183990L;
@@ -1,32 +1,89 @@
 package com.iqengines.sdk;
 
-public class Mat {
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Image held in native memory. A Mat owns its native memory and frees it when closed;
+ * a submat is a view on the pixels of its parent but must be closed as well. 
+ * Mats are closed by the garbage collector as a last resort only, so long running code 
+ * should close them as soon as they are not needed and reuse scratch Mats where it can.
+ */
+public class Mat implements Closeable {
     
     public long nativeObj;
     
     private native long create_n(String file);
+    private native long createEmpty_n();
+    private native long createNv21_n(byte[] data, int width, int height);
+    private native long createNv21Buffer_n(ByteBuffer data, int width, int height);
     private native void destroy_n(long nativeObj);
     private native int cols_n(long nativeObj);
     private native int rows_n(long nativeObj);
     private native long submat_n(long nativeObj, int x, int y, int width, int height);
     private native long resize_n(long nativeObj, int width, int height);
+    private native void cropResize_n(long nativeObj, int x, int y, int width, int height, 
+            long dstObj, int dstWidth, int dstHeight);
+    private native long dHash_n(long nativeObj);
+    private static native long liveBytes_n();
+    private static native int liveCount_n();
+    
+    /**
+     * Creates an empty Mat, e.g. a scratch Mat for {@link #cropResize}.
+     */
+    public Mat() {
+        nativeObj = createEmpty_n();
+    }
     
     public Mat(String file) {
         nativeObj = create_n(file);
     }
     
+    /**
+     * Converts a NV21 camera frame to a BGR image, the same layout as images read from file.
+     */
+    public Mat(byte[] nv21, int width, int height) {
+        if (nv21.length < width * height * 3 / 2)
+            throw new IllegalArgumentException("NV21 buffer is too small");
+        nativeObj = createNv21_n(nv21, width, height);
+    }
+    
+    /**
+     * Converts a NV21 camera frame held in a direct buffer to a BGR image, the same layout as images read from file.
+     */
+    public Mat(ByteBuffer nv21, int width, int height) {
+        if (!nv21.isDirect())
+            throw new IllegalArgumentException("NV21 buffer is not direct");
+        if (nv21.capacity() < width * height * 3 / 2)
+            throw new IllegalArgumentException("NV21 buffer is too small");
+        nativeObj = createNv21Buffer_n(nv21, width, height);
+    }
+    
     public Mat(long nativeObj) {
         this.nativeObj = nativeObj;
     }
     
+    /**
+     * Frees the native memory. Does nothing if the Mat is already closed.
+     */
+    @Override
+    public void close() {
+        if (nativeObj != 0) {
+            destroy_n(nativeObj);
+            nativeObj = 0;
+        }
+    }
+    
+    /**
+     * @see #close()
+     */
     public void destroy() {
-        destroy_n(nativeObj);
-        nativeObj = 0;
+        close();
     }
     
     @Override
     protected void finalize() throws Throwable {
-        destroy();
+        close();
         super.finalize();
     }
     
@@ -48,4 +105,35 @@ public class Mat {
         return new Mat(newObj);
     }
     
+    /**
+     * Scales a region of this Mat into dst without creating any Mat. 
+     * The pixels of dst are reused when it already has the target size.
+     */
+    public void cropResize(int x, int y, int width, int height, Mat dst, int dstWidth, int dstHeight) {
+        cropResize_n(nativeObj, x, y, width, height, dst.nativeObj, dstWidth, dstHeight);
+    }
+    
+    /**
+     * Difference hash of the centered square of this Mat, scaled down to 9x8 gray pixels:
+     * bit 8 * y + x is set when pixel (x, y) is darker than its right neighbour.
+     * Pictures of the same scene have hashes a few bits apart.
+     */
+    public long dHash() {
+        return dHash_n(nativeObj);
+    }
+    
+    /**
+     * @return the number of bytes of pixels held by Mats not closed yet, for monitoring.
+     */
+    public static long getNativeBytes() {
+        return liveBytes_n();
+    }
+    
+    /**
+     * @return the number of Mats not closed yet, submats included.
+     */
+    public static int getNativeCount() {
+        return liveCount_n();
+    }
+    
 }
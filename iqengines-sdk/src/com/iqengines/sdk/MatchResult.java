@@ -0,0 +1,245 @@
+package com.iqengines.sdk;
+
+/**
+ * Best candidates of a local search, ordered by decreasing number of inliers.
+ * Each candidate is an index in {@link IQLocalApi#getObjIds()} with its number of inliers,
+ * the feature matches geometrically consistent with one of the object's reference images,
+ * and its score, the share of query features which are inliers.
+ * Candidates are the match of the index and objects added after training, verified against
+ * at most k reference images in all, so that a search costs the same whatever the catalog size.
+ * A result can be reused for several searches.
+ */
+public final class MatchResult {
+
+    /**
+     * Object index telling that no object was matched.
+     */
+    public static final int NO_MATCH = -1;
+
+    final int[] objIdx;
+
+    final float[] scores;
+
+    final int[] inliers;
+
+    /** IQIndex match, number of query features, 1 if the IQIndex match was verified */
+    final int[] info = new int[3];
+
+    int size;
+
+    /** Whether the match of the index is verified against its reference images */
+    boolean scoreIndexMatch = true;
+
+    /**
+     * Objects the indices refer to, as they were when the result was filled in,
+     * one table per index matched in, with the object index of its first object.
+     */
+    ObjectTable[] tables = new ObjectTable[0];
+
+    int[] tableOffsets = new int[0];
+
+
+    /**
+     * Constructor
+     *
+     * @param k
+     *        The maximum number of candidates.
+     */
+
+
+    public MatchResult(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        objIdx = new int[k];
+        scores = new float[k];
+        inliers = new int[k];
+        clear();
+    }
+
+
+    void clear() {
+        size = 0;
+        info[0] = NO_MATCH;
+        info[1] = 0;
+        info[2] = 0;
+    }
+
+
+    /**
+     * Sets the objects of the single index the result is filled in by.
+     */
+
+
+    void setObjects(ObjectTable objects) {
+        if (tables.length != 1) {
+            tables = new ObjectTable[1];
+            tableOffsets = new int[1];
+        }
+        tables[0] = objects;
+    }
+
+
+    /**
+     * @return the rank in tables of the table holding an object index, -1 if none.
+     */
+
+
+    int tableOf(int objIdx) {
+        for (int t = tables.length - 1; t >= 0; --t) {
+            if (objIdx >= tableOffsets[t]) {
+                return objIdx < tableOffsets[t] + tables[t].size() ? t : -1;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Sets whether the match of the index is verified against its reference images, on by default.
+     * When off, a query the index matches is reported as is: its features are not computed and
+     * no candidate is scored. A query the index misses is still checked against objects added after
+     * training, if any. The setting is kept when the result is reused.
+     *
+     * @param scoreIndexMatch
+     *        true to verify the match of the index.
+     */
+
+
+    public void setScoreIndexMatch(boolean scoreIndexMatch) {
+        this.scoreIndexMatch = scoreIndexMatch;
+    }
+
+
+    /**
+     * @return true if the match of the index is verified against its reference images.
+     */
+
+
+    public boolean isScoreIndexMatch() {
+        return scoreIndexMatch;
+    }
+
+
+    /**
+     * @return the maximum number of candidates.
+     */
+
+
+    public int capacity() {
+        return objIdx.length;
+    }
+
+
+    /**
+     * @return the number of candidates.
+     */
+
+
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @param i
+     *        The rank of the candidate, 0 being the best.
+     * @return the object index of the candidate.
+     */
+
+
+    public int getObjIndex(int i) {
+        checkRank(i);
+        return objIdx[i];
+    }
+
+
+    /**
+     * @param i
+     *        The rank of the candidate, 0 being the best.
+     * @return the share of query features which are inliers for the candidate, between 0 and 1.
+     */
+
+
+    public float getScore(int i) {
+        checkRank(i);
+        return scores[i];
+    }
+
+
+    /**
+     * @param i
+     *        The rank of the candidate, 0 being the best.
+     * @return the number of inliers of the candidate.
+     */
+
+
+    public int getInliers(int i) {
+        checkRank(i);
+        return inliers[i];
+    }
+
+
+    /**
+     * @return the object index matched by the index itself, as returned by {@link IQLocalApi#match(Mat)},
+     *         {@link #NO_MATCH} if none.
+     */
+
+
+    public int getIndexMatch() {
+        return info[0];
+    }
+
+
+    /**
+     * @return the number of features found in the query image, 0 if they were not computed.
+     */
+
+
+    public int getQueryFeatures() {
+        return info[1];
+    }
+
+
+    /**
+     * @return false if the index match was not scored, or if no reference image of it was available
+     *         to verify it, in which case only {@link #getIndexMatch()} is meaningful.
+     */
+
+
+    public boolean isVerified() {
+        return info[2] != 0;
+    }
+
+
+    /**
+     * Tells if the best candidate has enough inliers to be trusted without asking the server.
+     *
+     * @param minInliers
+     *        The minimum number of inliers.
+     * @return true if the best candidate has at least minInliers inliers.
+     */
+
+
+    public boolean isConfident(int minInliers) {
+        return size > 0 && inliers[0] >= minInliers;
+    }
+
+
+    private void checkRank(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("rank " + i + ", size " + size);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("MatchResult[indexMatch=").append(getIndexMatch());
+        for (int i = 0; i < size; ++i) {
+            sb.append(i == 0 ? ", " : "; ").append(objIdx[i])
+              .append(':').append(inliers[i]).append('/').append(scores[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.iqengines.sdk;
+
+/**
+ * Crops, rotates and downscales NV21 frames in a single pass, in pure Java.
+ * The output frame and the sampling tables are kept from one call to the next,
+ * so that scaling frames of the same size allocates nothing. Pixels are point sampled,
+ * luma at full resolution and chroma at half resolution like the NV21 layout itself.
+ * A scaler is not thread safe, use one per thread.
+ */
+public final class Nv21Scaler {
+
+    private byte[] out = new byte[0];
+
+    private int outWidth;
+
+    private int outHeight;
+
+    /** Source offsets of each output column and row, summed to index a source sample */
+    private int[] colOffsets = new int[0];
+
+    private int[] rowOffsets = new int[0];
+
+
+    /**
+     * Scales the centered square region of a frame.
+     *
+     * @param nv21
+     *        The NV21 frame, tightly packed.
+     * @param width
+     *        The width of the frame.
+     * @param height
+     *        The height of the frame.
+     * @param cropSize
+     *        The side of the centered region to keep, clamped to the frame.
+     * @param outSize
+     *        The maximum side of the output frame. The region is only ever scaled down.
+     * @param rotation
+     *        Clockwise rotation applied to the region: 0, 90, 180 or 270.
+     * @return the output frame, valid until the next call. Its size is given by {@link #getWidth()}
+     *         and {@link #getHeight()}, and it may be longer than the frame.
+     */
+
+
+    public byte[] cropScale(byte[] nv21, int width, int height, int cropSize, int outSize, int rotation) {
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("NV21 buffer is too small");
+        }
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("rotation must be 0, 90, 180 or 270");
+        }
+
+        // chroma is subsampled 2x2, so the region starts and ends on even pixels
+        int cropWidth = Math.min(cropSize, width) & ~1;
+        int cropHeight = Math.min(cropSize, height) & ~1;
+        int left = ((width - cropWidth) / 2) & ~1;
+        int top = ((height - cropHeight) / 2) & ~1;
+
+        boolean swap = rotation == 90 || rotation == 270;
+        int rotatedWidth = swap ? cropHeight : cropWidth;
+        int rotatedHeight = swap ? cropWidth : cropHeight;
+        int longest = Math.max(rotatedWidth, rotatedHeight);
+        if (longest > outSize) {
+            outWidth = (int) ((long) rotatedWidth * outSize / longest) & ~1;
+            outHeight = (int) ((long) rotatedHeight * outSize / longest) & ~1;
+        } else {
+            outWidth = rotatedWidth;
+            outHeight = rotatedHeight;
+        }
+
+        int outLength = outWidth * outHeight * 3 / 2;
+        if (out.length < outLength) {
+            out = new byte[outLength];
+        }
+        if (colOffsets.length < outWidth) {
+            colOffsets = new int[outWidth];
+        }
+        if (rowOffsets.length < outHeight) {
+            rowOffsets = new int[outHeight];
+        }
+
+        // luma
+        fillOffsets(left, top, cropWidth, cropHeight, width, 1, outWidth, outHeight, rotation);
+        sample(nv21, 0, out, 0, outWidth, outHeight, 1);
+
+        // interleaved VU, one pair per 2x2 block
+        fillOffsets(left / 2, top / 2, cropWidth / 2, cropHeight / 2, width, 2, outWidth / 2, outHeight / 2, rotation);
+        sample(nv21, width * height, out, outWidth * outHeight, outWidth / 2, outHeight / 2, 2);
+
+        return out;
+    }
+
+
+    /**
+     * @return the width of the last output frame.
+     */
+
+
+    public int getWidth() {
+        return outWidth;
+    }
+
+
+    /**
+     * @return the height of the last output frame.
+     */
+
+
+    public int getHeight() {
+        return outHeight;
+    }
+
+
+    /**
+     * Fills the column and row offsets of a plane, whose samples are pixelSize bytes wide
+     * and whose rows are stride bytes long.
+     */
+
+
+    private void fillOffsets(int left, int top, int cropWidth, int cropHeight, int stride, int pixelSize,
+            int dstWidth, int dstHeight, int rotation) {
+        boolean swap = rotation == 90 || rotation == 270;
+        int rotatedWidth = swap ? cropHeight : cropWidth;
+        int rotatedHeight = swap ? cropWidth : cropHeight;
+
+        for (int x = 0; x < dstWidth; ++x) {
+            // position in the rotated region
+            int u = (int) ((long) x * rotatedWidth / dstWidth);
+            switch (rotation) {
+            case 0:
+                colOffsets[x] = (left + u) * pixelSize;
+                break;
+            case 90:
+                colOffsets[x] = (top + cropHeight - 1 - u) * stride;
+                break;
+            case 180:
+                colOffsets[x] = (left + cropWidth - 1 - u) * pixelSize;
+                break;
+            default:
+                colOffsets[x] = (top + u) * stride;
+                break;
+            }
+        }
+        for (int y = 0; y < dstHeight; ++y) {
+            int v = (int) ((long) y * rotatedHeight / dstHeight);
+            switch (rotation) {
+            case 0:
+                rowOffsets[y] = (top + v) * stride;
+                break;
+            case 90:
+                rowOffsets[y] = (left + v) * pixelSize;
+                break;
+            case 180:
+                rowOffsets[y] = (top + cropHeight - 1 - v) * stride;
+                break;
+            default:
+                rowOffsets[y] = (left + cropWidth - 1 - v) * pixelSize;
+                break;
+            }
+        }
+    }
+
+
+    private void sample(byte[] src, int srcStart, byte[] dst, int dstStart, int dstWidth, int dstHeight, int pixelSize) {
+        final int[] cols = colOffsets;
+        int d = dstStart;
+        for (int y = 0; y < dstHeight; ++y) {
+            final int row = srcStart + rowOffsets[y];
+            if (pixelSize == 1) {
+                for (int x = 0; x < dstWidth; ++x) {
+                    dst[d++] = src[row + cols[x]];
+                }
+            } else {
+                for (int x = 0; x < dstWidth; ++x) {
+                    int s = row + cols[x];
+                    dst[d++] = src[s];
+                    dst[d++] = src[s + 1];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.iqengines.sdk;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the ids, names and meta information of the objects of a catalog,
+ * indexed by object index. Resolving a match is an array lookup instead of crossing JNI.
+ * When an id appears twice, as a removed trained object replaced by an added one,
+ * lookups by id find the last occurrence.
+ */
+final class ObjectTable {
+
+    /**
+     * Table of a catalog without objects.
+     */
+    static final ObjectTable EMPTY = new ObjectTable(new String[0], new String[0], new String[0], 0);
+
+    private final String[] ids;
+
+    private final String[] names;
+
+    private final String[] metas;
+
+    private final int size;
+
+    private final Map<String, Integer> indices;
+
+    private final List<String> idList = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+            }
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    };
+
+
+    /**
+     * Constructor. The arrays are owned by the table and must not be modified afterwards.
+     *
+     * @param ids
+     *        The id of each object.
+     * @param names
+     *        The name of each object, null if unknown.
+     * @param metas
+     *        The meta information of each object, null if none.
+     * @param size
+     *        The number of objects, at most the length of the arrays.
+     */
+
+
+    ObjectTable(String[] ids, String[] names, String[] metas, int size) {
+        this.ids = ids;
+        this.names = names;
+        this.metas = metas;
+        this.size = size;
+        indices = new HashMap<String, Integer>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; ++i) {
+            if (ids[i] != null) {
+                indices.put(ids[i], i);
+            }
+        }
+    }
+
+
+    /**
+     * @return a table holding the objects of this one followed by the given ones.
+     */
+
+
+    ObjectTable append(String[] moreIds, String[] moreNames, String[] moreMetas, int count) {
+        if (count == 0) {
+            return this;
+        }
+        String[] allIds = new String[size + count];
+        String[] allNames = new String[size + count];
+        String[] allMetas = new String[size + count];
+        System.arraycopy(ids, 0, allIds, 0, size);
+        System.arraycopy(names, 0, allNames, 0, size);
+        System.arraycopy(metas, 0, allMetas, 0, size);
+        System.arraycopy(moreIds, 0, allIds, size, count);
+        System.arraycopy(moreNames, 0, allNames, size, count);
+        System.arraycopy(moreMetas, 0, allMetas, size, count);
+        return new ObjectTable(allIds, allNames, allMetas, size + count);
+    }
+
+
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * @return the ids by object index, an unmodifiable view of the table.
+     */
+
+
+    List<String> getIds() {
+        return idList;
+    }
+
+
+    String getId(int objIdx) {
+        return idList.get(objIdx);
+    }
+
+
+    /**
+     * @return the index of an object, -1 if none.
+     */
+
+
+    int indexOf(String objId) {
+        Integer objIdx = indices.get(objId);
+        return objIdx == null ? -1 : objIdx.intValue();
+    }
+
+
+    String getName(String objId) {
+        int objIdx = indexOf(objId);
+        return objIdx < 0 ? null : names[objIdx];
+    }
+
+
+    String getMeta(String objId) {
+        int objIdx = indexOf(objId);
+        return objIdx < 0 ? null : metas[objIdx];
+    }
+}
@@ -0,0 +1,683 @@
+package com.iqengines.sdk;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import android.util.Log;
+
+import com.iqengines.sdk.IQE.OnResultCallback;
+
+/**
+ * Append-only journal of queries which could not reach IQ Engines server, replayed in batches
+ * once the server can be reached again. Each query is kept as a copy of its image next to the
+ * journal and as a few records in the journal:
+ * <pre>
+ * ADD   seq created deviceId   query saved, to be uploaded
+ * BEGIN seq                    upload started
+ * FAIL  seq                    upload failed before reaching the server, to be retried
+ * SENT  seq qid                upload done
+ * DROP  seq                    query given up
+ * </pre>
+ * Records are checksummed and synced to disk before the step they describe goes on, so that the
+ * journal read back after a crash tells how far each query went; a torn record at the end is cut off.
+ * A query whose upload started but is not known to have ended may have reached the server, so it
+ * is dropped rather than replayed: a query is never uploaded twice.
+ */
+final class QueryJournal {
+
+    /**
+     * Submits replayed queries.
+     */
+    interface Uploader {
+        /**
+         * Submits a query to IQ Engines server and registers a callback for its result.
+         *
+         * @param image
+         *        The image of the query, deleted once the call returns.
+         * @param deviceId
+         *        The device id the query was made with.
+         * @param callback
+         *        The callback of the search the query comes from, null if it was saved by an earlier run.
+         * @return the query id assigned by the server.
+         * @throws IOException
+         *         if the query could not be submitted.
+         */
+        String upload(File image, String deviceId, OnResultCallback callback) throws IOException;
+    }
+
+    /** Name of the journal file in its directory */
+    static final String JOURNAL_NAME = "queries.journal";
+
+    /** Maximum number of saved queries, the oldest ones are dropped first */
+    static final int MAX_QUERIES = 32;
+
+    /** Age after which a saved query is not worth a result anymore (milliseconds) */
+    static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    /** Number of queries replayed in a batch */
+    static final int BATCH_SIZE = 8;
+
+    /** Number of concurrent uploads of a batch */
+    static final int REPLAY_THREADS = 2;
+
+    /** Size above which the journal is rewritten with the saved queries only (bytes) */
+    private static final long MAX_JOURNAL_LENGTH = 64 * 1024;
+
+    private static final byte ADD = 1;
+
+    private static final byte BEGIN = 2;
+
+    private static final byte FAIL = 3;
+
+    private static final byte SENT = 4;
+
+    private static final byte DROP = 5;
+
+    private static String TAG = QueryJournal.class.getName();
+
+    /**
+     * A saved query.
+     */
+    private static final class Query {
+        final long seq;
+        final long created;
+        final String deviceId;
+        /** null for queries saved by an earlier run */
+        final OnResultCallback callback;
+        /** Upload started and not known to have ended */
+        boolean begun;
+
+        Query(long seq, long created, String deviceId, OnResultCallback callback) {
+            this.seq = seq;
+            this.created = created;
+            this.deviceId = deviceId;
+            this.callback = callback;
+        }
+    }
+
+    private final File dir;
+
+    private final File journalFile;
+
+    private final Uploader uploader;
+
+    /** Saved queries by sequence number, oldest first. Guarded by this. */
+    private final LinkedHashMap<Long, Query> queries = new LinkedHashMap<Long, Query>();
+
+    private final ExecutorService replayExecutor;
+
+    private RandomAccessFile journal;
+
+    private long nextSeq = 1;
+
+    /** Uploads of the current batch not finished yet */
+    private int inFlight;
+
+    /** Whether an upload of the current batch failed to reach the server */
+    private boolean batchOffline;
+
+    private boolean closed;
+
+
+    /**
+     * Constructor. Reads back the queries saved by earlier runs, dropping those
+     * whose upload was interrupted, and deletes files no query uses anymore.
+     *
+     * @param dir
+     *        The directory holding the journal and the images, used by nothing else.
+     * @param uploader
+     *        The {@link Uploader} submitting replayed queries.
+     * @throws IOException
+     *         if the journal can't be read or written.
+     */
+
+
+    QueryJournal(File dir, Uploader uploader) throws IOException {
+        this.dir = dir;
+        this.journalFile = new File(dir, JOURNAL_NAME);
+        this.uploader = uploader;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        recover();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(REPLAY_THREADS, REPLAY_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "IQE-replay-" + threadCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        replayExecutor = executor;
+    }
+
+
+    /**
+     * Tells if an upload failed before any of it reached the server, so that it can be retried safely.
+     */
+
+
+    static boolean isConnectionFailure(IOException e) {
+        return e instanceof UnknownHostException || e instanceof ConnectException
+                || e instanceof NoRouteToHostException || e instanceof ConnectTimeoutException;
+    }
+
+
+    /**
+     * Saves a query to be replayed later.
+     *
+     * @param image
+     *        The image of the query, copied to the journal directory.
+     * @param deviceId
+     *        The device id the query is made with.
+     * @param callback
+     *        The {@link OnResultCallback} receiving the result once the query is replayed.
+     * @throws IOException
+     *         if the query can't be saved.
+     */
+
+
+    void add(File image, String deviceId, OnResultCallback callback) throws IOException {
+        long seq;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Query journal is closed");
+            }
+            seq = nextSeq++;
+        }
+
+        File file = imageFile(seq);
+        copy(image, file);
+
+        Query query = new Query(seq, System.currentTimeMillis(), deviceId, callback);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeLong(query.created);
+        out.writeUTF(deviceId != null ? deviceId : "");
+
+        synchronized (this) {
+            try {
+                append(ADD, seq, payload.toByteArray());
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            queries.put(seq, query);
+
+            // oldest queries go first, unless being uploaded
+            Iterator<Query> it = queries.values().iterator();
+            while (queries.size() > MAX_QUERIES && it.hasNext()) {
+                Query oldest = it.next();
+                if (!oldest.begun) {
+                    Log.w(TAG, "Too many saved queries, dropping query " + oldest.seq);
+                    it.remove();
+                    drop(oldest);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of saved queries.
+     */
+
+
+    synchronized int size() {
+        return queries.size();
+    }
+
+
+    /**
+     * Starts uploading a batch of saved queries, unless a batch is already being uploaded.
+     * Batches follow one another until all queries are replayed or the server can't be reached.
+     * To be called whenever the server has just been reached.
+     */
+
+
+    void replay() {
+        List<Query> batch = new ArrayList<Query>(BATCH_SIZE);
+        synchronized (this) {
+            if (closed || inFlight > 0 || queries.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            Iterator<Query> it = queries.values().iterator();
+            while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                Query query = it.next();
+                if (now - query.created > MAX_AGE) {
+                    Log.w(TAG, "Saved query " + query.seq + " expired");
+                    it.remove();
+                    drop(query);
+                } else {
+                    batch.add(query);
+                }
+            }
+            if (batch.isEmpty()) {
+                compact();
+                return;
+            }
+            inFlight = batch.size();
+            batchOffline = false;
+        }
+
+        for (final Query query : batch) {
+            try {
+                replayExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        replay(query);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed meanwhile
+                finished();
+            }
+        }
+    }
+
+
+    /**
+     * Stops replaying queries. Saved queries stay on disk for the next run.
+     */
+
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        replayExecutor.shutdownNow();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Can't close query journal", e);
+        }
+    }
+
+
+    private void replay(Query query) {
+        try {
+            synchronized (this) {
+                if (closed || queries.get(query.seq) != query) {
+                    // dropped while waiting for its turn
+                    return;
+                }
+                append(BEGIN, query.seq, null);
+                query.begun = true;
+            }
+
+            String qid;
+            try {
+                qid = uploader.upload(imageFile(query.seq), query.deviceId, query.callback);
+            } catch (IOException e) {
+                if (isConnectionFailure(e)) {
+                    retryLater(query);
+                } else {
+                    // the server may have got the query, it is not submitted again
+                    Log.w(TAG, "Saved query " + query.seq + " may have been submitted, dropping it", e);
+                    synchronized (this) {
+                        queries.remove(query.seq);
+                        drop(query);
+                    }
+                }
+                return;
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Can't replay query " + query.seq, e);
+                retryLater(query);
+                return;
+            }
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            new DataOutputStream(payload).writeUTF(qid);
+            synchronized (this) {
+                queries.remove(query.seq);
+                if (!closed) {
+                    append(SENT, query.seq, payload.toByteArray());
+                }
+                imageFile(query.seq).delete();
+            }
+        } catch (IOException e) {
+            // journal can't be written, the query stays as it is on disk
+            Log.e(TAG, "Can't write query journal", e);
+            synchronized (this) {
+                batchOffline = true;
+            }
+        } finally {
+            finished();
+        }
+    }
+
+
+    /**
+     * Puts back a query whose upload did not reach the server, and stops the batch after the running uploads.
+     */
+
+
+    private synchronized void retryLater(Query query) throws IOException {
+        batchOffline = true;
+        query.begun = false;
+        if (!closed) {
+            append(FAIL, query.seq, null);
+        }
+    }
+
+
+    /**
+     * Counts an upload of the batch as finished, starting the next batch after the last one.
+     */
+
+
+    private void finished() {
+        boolean next;
+        synchronized (this) {
+            if (--inFlight > 0 || closed) {
+                return;
+            }
+            next = !batchOffline && !queries.isEmpty();
+            if (queries.isEmpty() || journalLength() > MAX_JOURNAL_LENGTH) {
+                compact();
+            }
+        }
+        if (next) {
+            replay();
+        }
+    }
+
+
+    /**
+     * Appends a DROP record and deletes the image of a query already removed from the saved queries.
+     * Called with this locked.
+     */
+
+
+    private void drop(Query query) {
+        try {
+            if (!closed) {
+                append(DROP, query.seq, null);
+            }
+        } catch (IOException e) {
+            // the query is dropped when the journal is read back anyway, as its image is gone
+            Log.w(TAG, "Can't write query journal", e);
+        }
+        imageFile(query.seq).delete();
+    }
+
+
+    /**
+     * Writes a record at the end of the journal and waits for it to be on disk. Called with this locked.
+     */
+
+
+    private void append(byte type, long seq, byte[] payload) throws IOException {
+        journal.write(encode(type, seq, payload));
+        journal.getFD().sync();
+    }
+
+
+    private long journalLength() {
+        try {
+            return journal.length();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Rewrites the journal with ADD records of the saved queries only. Called with this locked,
+     * when no upload is running.
+     */
+
+
+    private void compact() {
+        try {
+            journal.close();
+            writeJournal();
+            journal = openJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't compact query journal", e);
+            try {
+                journal = openJournal();
+            } catch (IOException e2) {
+                // appends fail until next run, which reads back what is on disk
+                Log.e(TAG, "Can't reopen query journal", e2);
+            }
+        }
+    }
+
+
+    private void writeJournal() throws IOException {
+        File tmp = new File(dir, JOURNAL_NAME + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            for (Query query : queries.values()) {
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(payload);
+                out.writeLong(query.created);
+                out.writeUTF(query.deviceId != null ? query.deviceId : "");
+                os.write(encode(ADD, query.seq, payload.toByteArray()));
+            }
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(journalFile)) {
+            tmp.delete();
+            throw new IOException("Can't write " + journalFile);
+        }
+    }
+
+
+    private RandomAccessFile openJournal() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        raf.seek(raf.length());
+        return raf;
+    }
+
+
+    /**
+     * Reads the journal back up to its first damaged record, keeps the queries worth replaying,
+     * deletes the files of the others and rewrites the journal.
+     */
+
+
+    private void recover() throws IOException {
+        if (journalFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            try {
+                readJournal(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Query> it = queries.values().iterator();
+        while (it.hasNext()) {
+            Query query = it.next();
+            if (query.begun) {
+                Log.w(TAG, "Upload of saved query " + query.seq + " was interrupted, dropping it");
+                it.remove();
+            } else if (now - query.created > MAX_AGE || !imageFile(query.seq).isFile()) {
+                it.remove();
+            }
+        }
+
+        Set<String> kept = new HashSet<String>();
+        kept.add(JOURNAL_NAME);
+        for (Query query : queries.values()) {
+            kept.add(imageFile(query.seq).getName());
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!kept.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+
+        writeJournal();
+        journal = openJournal();
+        if (!queries.isEmpty()) {
+            Log.i(TAG, queries.size() + " saved queries to replay");
+        }
+    }
+
+
+    private void readJournal(DataInputStream in) throws IOException {
+        try {
+            for (;;) {
+                int type = in.read();
+                if (type < 0) {
+                    return;
+                }
+                long seq = in.readLong();
+                byte[] payload = new byte[in.readUnsignedShort()];
+                in.readFully(payload);
+                int crc = in.readInt();
+                if (crc != crc(encode((byte) type, seq, payload))) {
+                    Log.w(TAG, "Query journal is damaged, reading stops at record " + seq);
+                    return;
+                }
+                nextSeq = Math.max(nextSeq, seq + 1);
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                Query query = queries.get(seq);
+                switch (type) {
+                case ADD:
+                    long created = record.readLong();
+                    String deviceId = record.readUTF();
+                    queries.put(seq, new Query(seq, created, deviceId.length() > 0 ? deviceId : null, null));
+                    break;
+                case BEGIN:
+                    if (query != null) {
+                        query.begun = true;
+                    }
+                    break;
+                case FAIL:
+                    if (query != null) {
+                        query.begun = false;
+                    }
+                    break;
+                case SENT:
+                case DROP:
+                    queries.remove(seq);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown query journal record " + type);
+                    return;
+                }
+            }
+        } catch (EOFException e) {
+            // torn record at the end
+        }
+    }
+
+
+    /**
+     * @return a record: type, sequence number, payload length and payload, followed by the CRC32 of them.
+     */
+
+
+    private static byte[] encode(byte type, long seq, byte[] payload) {
+        int length = payload != null ? payload.length : 0;
+        byte[] record = new byte[1 + 8 + 2 + length + 4];
+        record[0] = type;
+        for (int i = 0; i < 8; ++i) {
+            record[1 + i] = (byte) (seq >>> (56 - 8 * i));
+        }
+        record[9] = (byte) (length >>> 8);
+        record[10] = (byte) length;
+        if (length > 0) {
+            System.arraycopy(payload, 0, record, 11, length);
+        }
+        int crc = crc(record);
+        int end = record.length - 4;
+        record[end] = (byte) (crc >>> 24);
+        record[end + 1] = (byte) (crc >>> 16);
+        record[end + 2] = (byte) (crc >>> 8);
+        record[end + 3] = (byte) crc;
+        return record;
+    }
+
+
+    /**
+     * @return the CRC32 of a record, its last 4 bytes left out.
+     */
+
+
+    private static int crc(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length - 4);
+        return (int) crc.getValue();
+    }
+
+
+    private File imageFile(long seq) {
+        return new File(dir, seq + ".jpg");
+    }
+
+
+    /**
+     * Copies a file and waits for the copy to be on disk. The copy only appears once complete.
+     */
+
+
+    private static void copy(File from, File to) throws IOException {
+        File tmp = new File(to.getPath() + ".tmp");
+        InputStream is = new FileInputStream(from);
+        try {
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = is.read(buf)) > 0) {
+                    os.write(buf, 0, len);
+                }
+                os.getFD().sync();
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        if (!tmp.renameTo(to)) {
+            tmp.delete();
+            throw new IOException("Can't write " + to);
+        }
+    }
+}
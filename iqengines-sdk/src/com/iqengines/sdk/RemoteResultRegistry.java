@@ -0,0 +1,228 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.iqengines.sdk.IQE.OnResultCallback;
+
+/**
+ * Pairs remote query callbacks with the results delivered by the update-API.
+ * The server may answer before the callback for its qid is registered, so whichever
+ * side arrives second completes the delivery. Entries left without a partner expire.
+ */
+class RemoteResultRegistry {
+
+    /**
+     * Time a result waits for its callback to be registered (milliseconds).
+     */
+    static final long RESULT_TTL = 60 * 1000;
+    /**
+     * Time a callback waits for its result to come back from the server (milliseconds).
+     */
+    static final long CALLBACK_TTL = 10 * 60 * 1000;
+
+    private static String TAG = RemoteResultRegistry.class.getName();
+
+    /**
+     * Either a registered callback or a result nobody has asked for yet.
+     */
+    private static final class Entry {
+        final OnResultCallback callback;
+        final SearchResult.Timing timing;
+        final String labels;
+        final String meta;
+        final long created = SystemClock.elapsedRealtime();
+
+        Entry(OnResultCallback callback, SearchResult.Timing timing) {
+            this.callback = callback;
+            this.timing = timing;
+            this.labels = null;
+            this.meta = null;
+        }
+
+        Entry(String labels, String meta) {
+            this.callback = null;
+            this.timing = null;
+            this.labels = labels;
+            this.meta = meta;
+        }
+
+        boolean isResult() {
+            return callback == null;
+        }
+    }
+
+    /**
+     * Callback swallowing results of queries nobody waits for anymore.
+     */
+    private static final OnResultCallback DISCARD = new OnResultCallback() {
+        @Override
+        public void onQueryIdAssigned(String queryId, File imgFile) {
+        }
+
+        @Override
+        public void onResult(String queryId, String objId, String objName, String objMeta,
+                boolean remoteMatch, Exception e) {
+        }
+    };
+
+    private final ConcurrentHashMap<String, Entry> pending = new ConcurrentHashMap<String, Entry>();
+
+    private final SearchMetrics metrics;
+
+    private final SearchRouter router;
+
+
+    /**
+     * Constructor
+     *
+     * @param metrics
+     *        The {@link SearchMetrics} recording how long results take and how long callbacks run.
+     * @param router
+     *        The {@link SearchRouter} recording round trips to the server.
+     */
+
+
+    RemoteResultRegistry(SearchMetrics metrics, SearchRouter router) {
+        this.metrics = metrics;
+        this.router = router;
+    }
+
+
+    /**
+     * Registers the callback waiting for the result of a remote query.
+     * The callback is called right away if the result has already arrived.
+     *
+     * @param qid
+     *        A {@link String} giving the query ID of the remote query.
+     * @param onResultCallback
+     *        An {@link OnResultCallback} object to be called when result is found.
+     * @param timing
+     *        The {@link SearchResult.Timing} of the search the query belongs to.
+     */
+
+
+    void register(String qid, OnResultCallback onResultCallback, SearchResult.Timing timing) {
+        final Entry mine = new Entry(onResultCallback, timing);
+        for (;;) {
+            Entry other = pending.putIfAbsent(qid, mine);
+            if (other == null) {
+                return;
+            }
+            if (other.isResult()) {
+                if (pending.remove(qid, other)) {
+                    // the result came back before its qid was registered
+                    dispatch(qid, mine, other.labels, other.meta, 0);
+                    return;
+                }
+            } else if (pending.replace(qid, other, mine)) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Drops the result of a remote query, whether it has already arrived or not.
+     *
+     * @param qid
+     *        A {@link String} giving the query ID of the remote query.
+     */
+
+
+    void discard(String qid) {
+        register(qid, DISCARD, null);
+    }
+
+
+    /**
+     * Delivers a result received from the server.
+     * The result is kept until its callback is registered if it has not been yet.
+     *
+     * @param qid
+     *        A {@link String} giving the query ID of the remote query.
+     * @param labels
+     *        A {@link String} which is the object name (label) of the match.
+     * @param meta
+     *        A {@link String} which are object meta information of the match.
+     */
+
+
+    void deliver(String qid, String labels, String meta) {
+        final Entry mine = new Entry(labels, meta);
+        for (;;) {
+            Entry other = pending.putIfAbsent(qid, mine);
+            if (other == null) {
+                return;
+            }
+            if (!other.isResult()) {
+                if (pending.remove(qid, other)) {
+                    dispatch(qid, other, labels, meta, SystemClock.elapsedRealtime() - other.created);
+                    return;
+                }
+            } else if (pending.replace(qid, other, mine)) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Drops callbacks and results which waited longer than their time to live.
+     *
+     * @return the number of dropped entries.
+     */
+
+
+    int expire() {
+        final long now = SystemClock.elapsedRealtime();
+        int expired = 0;
+
+        Iterator<Map.Entry<String, Entry>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            Entry entry = e.getValue();
+            long ttl = entry.isResult() ? RESULT_TTL : CALLBACK_TTL;
+
+            if (now - entry.created > ttl && pending.remove(e.getKey(), entry)) {
+                if (entry.callback != DISCARD) {
+                    Log.w(TAG, (entry.isResult() ? "OnResultCallback is null for qid: "
+                            : "No result received for qid: ") + e.getKey());
+                }
+                ++expired;
+            }
+        }
+        return expired;
+    }
+
+
+    /**
+     * Drops all pending callbacks and results.
+     */
+
+
+    void clear() {
+        pending.clear();
+    }
+
+
+    private void dispatch(String qid, Entry waiting, String labels, String meta, long waitedMillis) {
+        if (waiting.callback == DISCARD) {
+            return;
+        }
+        metrics.record(SearchMetrics.Stage.FIRST_RESULT, waitedMillis * 1000000L);
+        metrics.increment(SearchMetrics.Counter.REMOTE_RESULTS);
+        if (waiting.timing.uploadNanos >= 0) {
+            router.recordRoundTrip(waiting.timing.uploadNanos + waitedMillis * 1000000L);
+        }
+        SearchResult result = new SearchResult(qid, labels, meta, null, waiting.timing, waitedMillis * 1000000L);
+        long start = System.nanoTime();
+        result.deliverTo(waiting.callback);
+        metrics.recordSince(SearchMetrics.Stage.CALLBACK, start);
+    }
+}
@@ -0,0 +1,228 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Signs IQ Engines API calls and formats their time stamps.
+ * Every thread keeps its own initialized {@link Mac} and scratch buffers,
+ * so the only allocations per call are the returned strings.
+ */
+final class RequestSigner {
+
+    private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Per-thread signing state.
+     */
+    private static final class State {
+        Mac mac;
+        byte[] digest;
+        char[] hex;
+        byte[] raw = new byte[256];
+        final char[] timeStamp = new char[14];
+    }
+
+    private final SecretKeySpec secretKey;
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>();
+
+
+    /**
+     * Constructor
+     *
+     * @param secret
+     *            A non-<code>null</code> {@link String} : Your API secret.
+     */
+
+
+    RequestSigner(String secret) {
+        secretKey = new SecretKeySpec(secret.getBytes(), HMAC_SHA1_ALGORITHM);
+    }
+
+
+    /**
+     * Computes the signature of the API call: the hex encoded HMAC-SHA1 of the
+     * concatenated keys and values, only file names being kept for images.
+     *
+     * @param fields
+     *            A non-<code>null</code> {@link TreeMap} that contains the
+     *            arguments of the request.
+     * @return A non-<code>null</code> {@link String} : The message
+     *         authentication code
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+
+
+    String sign(TreeMap<String, String> fields) throws NoSuchAlgorithmException, InvalidKeyException {
+        State state = getState();
+        Mac mac = getMac(state);
+        int len = 0;
+
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            String key = field.getKey();
+            String value = field.getValue();
+            if (key.equals("img")) {
+                len = append(state, len, "img", 0);
+                len = append(state, len, value, value.lastIndexOf(File.separatorChar) + 1);
+            } else if (key.startsWith("images")) {
+                len = append(state, len, "images", 0);
+                len = append(state, len, value, value.lastIndexOf(File.separatorChar) + 1);
+            } else {
+                len = append(state, len, key, 0);
+                len = append(state, len, value, 0);
+            }
+        }
+
+        mac.update(state.raw, 0, len);
+        try {
+            mac.doFinal(state.digest, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final byte[] digest = state.digest;
+        final char[] hex = state.hex;
+        for (int i = 0; i < digest.length; ++i) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+
+    /**
+     * Formats a time stamp as "yyyyMMddkkmmss" in UTC, hours running from 1 to 24
+     * as they always did with {@link java.text.SimpleDateFormat}.
+     *
+     * @param millis
+     *            Milliseconds since the epoch.
+     * @return a non null {@link String}
+     */
+
+
+    String timeStamp(long millis) {
+        final char[] out = getState().timeStamp;
+
+        long days = millis / MILLIS_PER_DAY;
+        long millisOfDay = millis % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            millisOfDay += MILLIS_PER_DAY;
+            --days;
+        }
+        int secondOfDay = (int) (millisOfDay / 1000);
+
+        // civil date from days since 1970-01-01, proleptic Gregorian calendar
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        int hour = secondOfDay / 3600;
+        int minute = (secondOfDay / 60) % 60;
+        int second = secondOfDay % 60;
+
+        writeDigits(out, 0, year, 4);
+        writeDigits(out, 4, month, 2);
+        writeDigits(out, 6, day, 2);
+        writeDigits(out, 8, hour == 0 ? 24 : hour, 2);
+        writeDigits(out, 10, minute, 2);
+        writeDigits(out, 12, second, 2);
+        return new String(out);
+    }
+
+
+    private State getState() {
+        State state = states.get();
+        if (state == null) {
+            state = new State();
+            states.set(state);
+        }
+        return state;
+    }
+
+
+    private Mac getMac(State state) throws NoSuchAlgorithmException, InvalidKeyException {
+        if (state.mac == null) {
+            Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
+            mac.init(secretKey);
+            state.digest = new byte[mac.getMacLength()];
+            state.hex = new char[2 * state.digest.length];
+            state.mac = mac;
+        }
+        return state.mac;
+    }
+
+
+    /**
+     * Appends the UTF-8 encoding of s, from index start, to the raw buffer.
+     *
+     * @return the new length of the raw buffer.
+     */
+
+
+    private static int append(State state, int len, String s, int start) {
+        final int n = s.length();
+        // worst case is 3 bytes per char
+        ensureCapacity(state, len + 3 * (n - start));
+        final byte[] raw = state.raw;
+
+        for (int i = start; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                raw[len++] = (byte) c;
+            } else if (c < 0x800) {
+                raw[len++] = (byte) (0xc0 | (c >> 6));
+                raw[len++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                raw[len++] = (byte) (0xf0 | (cp >> 18));
+                raw[len++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                raw[len++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                raw[len++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= '\uD800' && c <= '\uDFFF') {
+                // unpaired surrogate, encoded as '?' like String.getBytes does
+                raw[len++] = (byte) '?';
+            } else {
+                raw[len++] = (byte) (0xe0 | (c >> 12));
+                raw[len++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                raw[len++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return len;
+    }
+
+
+    private static void ensureCapacity(State state, int capacity) {
+        if (state.raw.length < capacity) {
+            byte[] raw = new byte[Math.max(capacity, 2 * state.raw.length)];
+            System.arraycopy(state.raw, 0, raw, 0, state.raw.length);
+            state.raw = raw;
+        }
+    }
+
+
+    private static void writeDigits(char[] out, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; --i) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+import com.iqengines.sdk.IQE.OnResultCallback;
+import com.iqengines.sdk.IQE.OnSearchResultCallback;
+
+/**
+ * Recent matches keyed by a perceptual hash of their query image, so that pointing the camera
+ * at the same object again is answered without matching nor asking the server.
+ * Hashes are 64 bit difference hashes, see {@link Mat#dHash()}: an image is looked up by
+ * Hamming distance to the cached hashes. Entries are evicted least recently used first and
+ * after a time to live. Only matches are cached, so that a better shot of an unknown object
+ * is still searched.
+ */
+final class ResultCache {
+
+    /**
+     * Hash telling that the image could not be hashed. Flat images hash to it too, and are never cached.
+     */
+    static final long NO_HASH = 0;
+
+    /**
+     * Maximum number of differing bits for two images to be considered the same, out of 64.
+     */
+    static final int MAX_DISTANCE = 6;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static String TAG = ResultCache.class.getName();
+
+    /**
+     * A cached match.
+     */
+    static final class Entry {
+        final long hash;
+        final long created;
+        final boolean remoteMatch;
+        final String objId;
+        final String objName;
+        final String objMeta;
+
+        Entry(long hash, long created, boolean remoteMatch, String objId, String objName, String objMeta) {
+            this.hash = hash;
+            this.created = created;
+            this.remoteMatch = remoteMatch;
+            this.objId = objId;
+            this.objName = objName;
+            this.objMeta = objMeta;
+        }
+    }
+
+    private final long ttl;
+
+    /** Entries by hash, least recently used first. Guarded by this. */
+    private final LinkedHashMap<Long, Entry> entries;
+
+    /** Whether entries changed since the cache was loaded or saved */
+    private boolean dirty;
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity
+     *        The maximum number of cached matches.
+     * @param ttl
+     *        The time a match stays cached (milliseconds).
+     */
+
+
+    ResultCache(final int capacity, long ttl) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.ttl = ttl;
+        entries = new LinkedHashMap<Long, Entry>(capacity * 4 / 3 + 1, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, ResultCache.Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /**
+     * Looks up the match of the cached image closest to a hash.
+     *
+     * @param hash
+     *        The hash of the query image.
+     * @return the closest {@link Entry} at most {@link #MAX_DISTANCE} bits away, null if none.
+     */
+
+
+    synchronized Entry get(long hash) {
+        if (hash == NO_HASH) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry best = null;
+        int bestDistance = MAX_DISTANCE + 1;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.created > ttl) {
+                it.remove();
+                dirty = true;
+                continue;
+            }
+            int distance = Long.bitCount(entry.hash ^ hash);
+            if (distance < bestDistance) {
+                best = entry;
+                bestDistance = distance;
+            }
+        }
+        if (best != null) {
+            // most recently used
+            entries.get(best.hash);
+        }
+        return best;
+    }
+
+
+    /**
+     * Caches a result if it is a match.
+     *
+     * @param hash
+     *        The hash of the query image.
+     * @param result
+     *        The {@link SearchResult} of the query.
+     */
+
+
+    void put(long hash, SearchResult result) {
+        if (hash == NO_HASH || result.getException() != null || !result.isMatch()) {
+            return;
+        }
+        Entry entry = new Entry(hash, System.currentTimeMillis(), result.isRemoteMatch(),
+                result.getObjId(), result.getObjName(), result.getObjMeta());
+        synchronized (this) {
+            entries.put(hash, entry);
+            dirty = true;
+        }
+    }
+
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+
+    synchronized void clear() {
+        dirty |= !entries.isEmpty();
+        entries.clear();
+    }
+
+
+    /**
+     * Wraps the callback of a search so that the match it gets is cached under the hash of the query image.
+     *
+     * @param hash
+     *        The hash of the query image.
+     * @param onResultCallback
+     *        The {@link OnResultCallback} of the search.
+     * @return an {@link OnSearchResultCallback} handing results to onResultCallback.
+     */
+
+
+    OnSearchResultCallback caching(final long hash, final OnResultCallback onResultCallback) {
+        return new Caching(hash, onResultCallback);
+    }
+
+
+    /**
+     * Tells if a callback was returned by {@link #caching(long, OnResultCallback)},
+     * meaning the search was already looked up in the cache.
+     */
+
+
+    static boolean isCaching(OnResultCallback onResultCallback) {
+        return onResultCallback instanceof Caching;
+    }
+
+
+    private final class Caching implements OnSearchResultCallback {
+        private final long hash;
+        private final OnResultCallback target;
+
+        Caching(long hash, OnResultCallback target) {
+            this.hash = hash;
+            this.target = target;
+        }
+
+        @Override
+        public void onQueryIdAssigned(String queryId, File imgFile) {
+            target.onQueryIdAssigned(queryId, imgFile);
+        }
+
+        @Override
+        public void onSearchResult(SearchResult result) {
+            put(hash, result);
+            result.deliverTo(target);
+        }
+
+        @Override
+        public void onResult(String queryId, String objId, String objName, String objMeta,
+                boolean remoteMatch, Exception e) {
+            target.onResult(queryId, objId, objName, objMeta, remoteMatch, e);
+        }
+    }
+
+
+    /**
+     * Difference hash of the centered square of an image, computed like {@link Mat#dHash()}:
+     * the square is averaged down to 9x8 gray cells.
+     *
+     * @param argb
+     *        The pixels of the square, row by row.
+     * @param side
+     *        The side of the square, at least 9.
+     * @return the hash.
+     */
+
+
+    static long dHash(int[] argb, int side) {
+        long[] cells = new long[9 * 8];
+        for (int cy = 0; cy < 8; ++cy) {
+            int y0 = cy * side / 8;
+            int y1 = (cy + 1) * side / 8;
+            for (int cx = 0; cx < 9; ++cx) {
+                int x0 = cx * side / 9;
+                int x1 = (cx + 1) * side / 9;
+                long sum = 0;
+                for (int y = y0; y < y1; ++y) {
+                    for (int i = y * side + x0, end = y * side + x1; i < end; ++i) {
+                        int p = argb[i];
+                        sum += (((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29) >> 8;
+                    }
+                }
+                int count = (y1 - y0) * (x1 - x0);
+                cells[cy * 9 + cx] = count > 0 ? sum * 256 / count : 0;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < 8; ++y) {
+            for (int x = 0; x < 8; ++x) {
+                if (cells[y * 9 + x] < cells[y * 9 + x + 1]) {
+                    hash |= 1L << (8 * y + x);
+                }
+            }
+        }
+        return hash;
+    }
+
+
+    /**
+     * Reads back entries saved by {@link #save(File)}, keeping those still alive.
+     * A missing or unreadable file leaves the cache empty.
+     *
+     * @param file
+     *        The cache file.
+     */
+
+
+    synchronized void load(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(readFile(file));
+            if (json.getInt("version") != FORMAT_VERSION) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            JSONArray array = json.getJSONArray("entries");
+            // saved least recently used first, so that access order is kept
+            for (int i = 0, lim = array.length(); i < lim; ++i) {
+                JSONObject obj = array.getJSONObject(i);
+                long created = obj.getLong("created");
+                if (now - created > ttl) {
+                    continue;
+                }
+                long hash = Long.parseLong(obj.getString("hash"), 16);
+                entries.put(hash, new Entry(hash, created, obj.getBoolean("remote"),
+                        obj.optString("id", null), obj.optString("name", null), obj.optString("meta", null)));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read result cache", e);
+        } catch (JSONException e) {
+            Log.w(TAG, "Can't read result cache", e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Can't read result cache", e);
+        }
+        dirty = false;
+    }
+
+
+    /**
+     * Saves the entries if they changed since they were loaded or last saved.
+     *
+     * @param file
+     *        The cache file.
+     */
+
+
+    synchronized void save(File file) {
+        if (!dirty) {
+            return;
+        }
+        try {
+            JSONArray array = new JSONArray();
+            for (Entry entry : entries.values()) {
+                JSONObject obj = new JSONObject();
+                // unsigned, as Long.toHexString writes it
+                obj.put("hash", Long.toHexString(entry.hash));
+                obj.put("created", entry.created);
+                obj.put("remote", entry.remoteMatch);
+                obj.put("id", entry.objId);
+                obj.put("name", entry.objName);
+                obj.put("meta", entry.objMeta);
+                array.put(obj);
+            }
+            JSONObject json = new JSONObject();
+            json.put("version", FORMAT_VERSION);
+            json.put("entries", array);
+            writeFile(file, json.toString());
+            dirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't save result cache", e);
+        } catch (JSONException e) {
+            Log.w(TAG, "Can't save result cache", e);
+        }
+    }
+
+
+    private static String readFile(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[(int) file.length()];
+            int off = 0;
+            int len;
+            while (off < buf.length && (len = is.read(buf, off, buf.length - off)) > 0) {
+                off += len;
+            }
+            return new String(buf, 0, off, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+
+    private static void writeFile(File file, String content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(content.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Can't write " + file);
+        }
+    }
+}
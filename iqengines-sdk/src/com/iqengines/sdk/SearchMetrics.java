@@ -0,0 +1,340 @@
+package com.iqengines.sdk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the stages of a search and counters of their outcomes.
+ * Recording is lock free and cheap enough for every query; readers pull a {@link Snapshot}
+ * whenever they want to export figures. Latencies are kept in log-linear buckets of
+ * microseconds, so that percentiles are within 1/8 of the actual value.
+ */
+public final class SearchMetrics {
+
+    /**
+     * Stages of a search.
+     */
+    public enum Stage {
+        /** Cropping and scaling a Bitmap or camera frame */
+        CROP,
+        /** Compressing a picture to JPEG, file writes excluded */
+        JPEG_COMPRESS,
+        /** Writing a JPEG file */
+        FILE_WRITE,
+        /** Reading an image file or converting a camera frame to a {@link Mat} */
+        MAT_LOAD,
+        /** Matching in local index */
+        LOCAL_MATCH,
+        /** Submitting a query to IQ Engines server */
+        UPLOAD,
+        /** From the query id assigned by the server to the result delivered by the update-API */
+        FIRST_RESULT,
+        /** Running {@link IQE.OnResultCallback#onResult} */
+        CALLBACK
+    }
+
+    /**
+     * Outcomes counted across searches.
+     */
+    public enum Counter {
+        /** Searches answered by local index */
+        LOCAL_HITS,
+        /** Local searches without a match reported */
+        LOCAL_MISSES,
+        /** Queries submitted to server */
+        REMOTE_QUERIES,
+        /** Queries which could not be submitted to server */
+        REMOTE_ERRORS,
+        /** Results delivered by the update-API to a waiting callback */
+        REMOTE_RESULTS,
+        /** Searches answered from the cache of recent matches */
+        CACHE_HITS
+    }
+
+    /** Buckets per power of two */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Up to 2^40 microseconds, about 12 days */
+    private static final int BUCKETS = (40 + 1) * SUB_BUCKETS;
+
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    private volatile long startMillis = System.currentTimeMillis();
+
+
+    public SearchMetrics() {
+        for (int i = 0; i < histograms.length; ++i) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+
+    /**
+     * Records the duration of a stage.
+     *
+     * @param stage
+     *        The {@link Stage}.
+     * @param nanos
+     *        The duration in nanoseconds.
+     */
+
+
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(Math.max(0, nanos / 1000));
+    }
+
+
+    /**
+     * Records the duration of a stage started at startNanos, as given by {@link System#nanoTime()}.
+     */
+
+
+    public void recordSince(Stage stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+
+    /**
+     * @return the figures recorded since the metrics were created or last reset.
+     *         Stages are read one after the other while recording goes on, so figures
+     *         of different stages may be a few samples apart.
+     */
+
+
+    public Snapshot snapshot() {
+        StageStats[] stages = new StageStats[histograms.length];
+        for (int i = 0; i < histograms.length; ++i) {
+            stages[i] = histograms[i].stats();
+        }
+        long[] counts = new long[counters.length()];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = counters.get(i);
+        }
+        return new Snapshot(startMillis, System.currentTimeMillis(), stages, counts);
+    }
+
+
+    /**
+     * Restarts every histogram and counter from zero.
+     */
+
+
+    public void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < counters.length(); ++i) {
+            counters.set(i, 0);
+        }
+        startMillis = System.currentTimeMillis();
+    }
+
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int mantissa = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa);
+    }
+
+
+    /**
+     * @return the smallest value of a bucket in microseconds.
+     */
+
+
+    static long bucketFloor(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+    }
+
+
+    private static final class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long micros) {
+            buckets.incrementAndGet(bucketOf(micros));
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            long max;
+            while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+                // retry
+            }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            totalMicros.set(0);
+            maxMicros.set(0);
+        }
+
+        StageStats stats() {
+            long[] counts = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            long max = maxMicros.get();
+            return new StageStats(n, totalMicros.get(), max,
+                    percentile(counts, n, 0.50, max), percentile(counts, n, 0.95, max), percentile(counts, n, 0.99, max));
+        }
+
+        /**
+         * @return the middle of the bucket holding the percentile, at most max.
+         */
+        static long percentile(long[] counts, long n, double p, long max) {
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * n);
+            long seen = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    long floor = bucketFloor(i);
+                    long ceiling = i + 1 < BUCKETS ? bucketFloor(i + 1) : floor;
+                    return Math.min(max, (floor + ceiling) / 2);
+                }
+            }
+            return max;
+        }
+    }
+
+
+    /**
+     * Figures of one stage. Durations are in milliseconds.
+     */
+    public static final class StageStats {
+        private final long count;
+        private final long totalMicros;
+        private final long maxMicros;
+        private final long p50Micros;
+        private final long p95Micros;
+        private final long p99Micros;
+
+        StageStats(long count, long totalMicros, long maxMicros, long p50Micros, long p95Micros, long p99Micros) {
+            this.count = count;
+            this.totalMicros = totalMicros;
+            this.maxMicros = maxMicros;
+            this.p50Micros = p50Micros;
+            this.p95Micros = p95Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getTotalMillis() {
+            return totalMicros / 1000.0;
+        }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : totalMicros / 1000.0 / count;
+        }
+
+        public double getMaxMillis() {
+            return maxMicros / 1000.0;
+        }
+
+        public double getP50Millis() {
+            return p50Micros / 1000.0;
+        }
+
+        public double getP95Millis() {
+            return p95Micros / 1000.0;
+        }
+
+        public double getP99Millis() {
+            return p99Micros / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + getMeanMillis() + " p50=" + getP50Millis()
+                    + " p95=" + getP95Millis() + " p99=" + getP99Millis() + " max=" + getMaxMillis();
+        }
+    }
+
+
+    /**
+     * Figures of every stage and counter at a point in time.
+     */
+    public static final class Snapshot {
+        private final long startMillis;
+        private final long endMillis;
+        private final StageStats[] stages;
+        private final long[] counters;
+
+        Snapshot(long startMillis, long endMillis, StageStats[] stages, long[] counters) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.stages = stages;
+            this.counters = counters;
+        }
+
+        /**
+         * @return the time figures were recorded from, as given by {@link System#currentTimeMillis()}.
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return the time of the snapshot, as given by {@link System#currentTimeMillis()}.
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public StageStats getStage(Stage stage) {
+            return stages[stage.ordinal()];
+        }
+
+        public long getCounter(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        /**
+         * @return the number of times a stage ran per second between start and snapshot.
+         */
+        public double getThroughput(Stage stage) {
+            long elapsed = endMillis - startMillis;
+            return elapsed <= 0 ? 0 : getStage(stage).getCount() * 1000.0 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("SearchMetrics[");
+            for (Stage stage : Stage.values()) {
+                sb.append(stage).append(": ").append(getStage(stage)).append("; ");
+            }
+            for (Counter counter : Counter.values()) {
+                sb.append(counter).append('=').append(getCounter(counter)).append(' ');
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package com.iqengines.sdk;
+
+import com.iqengines.sdk.IQE.OnResultCallback;
+import com.iqengines.sdk.IQE.OnSearchResultCallback;
+
+/**
+ * Outcome of a search, local or remote, with its score and how long its stages took.
+ * A local result only holds the object index of the match and the objects of the index as
+ * they were matched against: its id, name and meta information are looked up in them the first
+ * time they are asked for, so results dropped unread, as most are in continuous mode, cost no
+ * lookups nor Strings, and results read late are not affected by objects added, removed or
+ * retrained nor shards loaded meanwhile.
+ * Results are immutable apart from that caching and can be read from any thread.
+ */
+public final class SearchResult {
+
+    /**
+     * Times of a search being run, filled in by its stages.
+     */
+    static final class Timing {
+        final long startNanos = System.nanoTime();
+        /** Written by the upload thread in {@link IQE.SearchMode#RACE} mode */
+        volatile long localMatchNanos = -1;
+        volatile long uploadNanos = -1;
+    }
+
+    private final String queryId;
+
+    private final boolean remoteMatch;
+
+    /** Whether the result was answered from the {@link ResultCache} */
+    private final boolean cached;
+
+    private final Exception exception;
+
+    /** Objects of the index the local match was found in, null for remote results */
+    private final ObjectTable objects;
+
+    /** Index of the local match in objects */
+    private final int tableIdx;
+
+    /** Index the local match was found in, if it does not tell its objects */
+    private final IQLocalApi index;
+
+    private final int objIdx;
+
+    private final float score;
+
+    private final int inliers;
+
+    private final long localMatchNanos;
+
+    private final long uploadNanos;
+
+    private final long serverNanos;
+
+    private final long totalNanos;
+
+    /** Set once objId, objName and objMeta have been read */
+    private volatile boolean decoded;
+
+    private String objId;
+
+    private String objName;
+
+    private String objMeta;
+
+
+    /**
+     * Constructor of a local result.
+     *
+     * @param queryId
+     *        The query id.
+     * @param index
+     *        The {@link IQLocalApi} the image was matched in.
+     * @param objIdx
+     *        The object index of the match, {@link MatchResult#NO_MATCH} if none.
+     * @param candidates
+     *        The {@link MatchResult} the match was picked from, to read its score from.
+     * @param timing
+     *        The {@link Timing} of the search.
+     */
+
+
+    SearchResult(String queryId, IQLocalApi index, int objIdx, MatchResult candidates, Timing timing) {
+        this.queryId = queryId;
+        this.remoteMatch = false;
+        this.cached = false;
+        this.exception = null;
+        this.objIdx = objIdx;
+
+        int t = objIdx >= 0 && candidates != null ? candidates.tableOf(objIdx) : -1;
+        if (t >= 0) {
+            this.objects = candidates.tables[t];
+            this.tableIdx = objIdx - candidates.tableOffsets[t];
+            this.index = null;
+        } else {
+            // ids stay valid when indices change, names and meta information are looked up by id
+            this.objects = null;
+            this.tableIdx = -1;
+            this.index = objIdx >= 0 ? index : null;
+            this.objId = objIdx >= 0 ? index.getObjId(objIdx) : null;
+        }
+
+        float candidateScore = Float.NaN;
+        int candidateInliers = -1;
+        if (objIdx >= 0 && candidates != null) {
+            for (int i = 0, lim = candidates.size(); i < lim; ++i) {
+                if (candidates.objIdx[i] == objIdx) {
+                    candidateScore = candidates.scores[i];
+                    candidateInliers = candidates.inliers[i];
+                    break;
+                }
+            }
+        }
+        this.score = candidateScore;
+        this.inliers = candidateInliers;
+
+        this.localMatchNanos = timing.localMatchNanos;
+        this.uploadNanos = timing.uploadNanos;
+        this.serverNanos = -1;
+        this.totalNanos = System.nanoTime() - timing.startNanos;
+    }
+
+
+    /**
+     * Constructor of a remote result, or of a remote search which failed.
+     *
+     * @param queryId
+     *        The query id assigned by the server, null if the query could not be submitted.
+     * @param labels
+     *        The labels of the match, {@link UpdateParser#NO_MATCH_FOUND} if none, null on failure.
+     * @param meta
+     *        The meta information of the match, possibly null.
+     * @param exception
+     *        The {@link Exception} the search failed with, null if none.
+     * @param timing
+     *        The {@link Timing} of the search.
+     * @param serverNanos
+     *        The time the result took to come back once the query was submitted, -1 if unknown.
+     */
+
+
+    SearchResult(String queryId, String labels, String meta, Exception exception, Timing timing, long serverNanos) {
+        this.queryId = queryId;
+        this.remoteMatch = true;
+        this.cached = false;
+        this.exception = exception;
+        this.objects = null;
+        this.tableIdx = -1;
+        this.index = null;
+        this.objIdx = MatchResult.NO_MATCH;
+        this.score = Float.NaN;
+        this.inliers = -1;
+        this.objName = labels;
+        this.objMeta = meta;
+        this.decoded = true;
+
+        this.localMatchNanos = timing.localMatchNanos;
+        this.uploadNanos = timing.uploadNanos;
+        this.serverNanos = serverNanos;
+        this.totalNanos = System.nanoTime() - timing.startNanos;
+    }
+
+
+    /**
+     * Constructor of a search which failed before its image could be searched.
+     *
+     * @param exception
+     *        The {@link Exception} the search failed with.
+     * @param remote
+     *        Whether the search would have been remote.
+     * @param timing
+     *        The {@link Timing} of the search.
+     */
+
+
+    SearchResult(Exception exception, boolean remote, Timing timing) {
+        this.queryId = null;
+        this.remoteMatch = remote;
+        this.cached = false;
+        this.exception = exception;
+        this.objects = null;
+        this.tableIdx = -1;
+        this.index = null;
+        this.objIdx = MatchResult.NO_MATCH;
+        this.score = Float.NaN;
+        this.inliers = -1;
+        this.decoded = true;
+
+        this.localMatchNanos = -1;
+        this.uploadNanos = -1;
+        this.serverNanos = -1;
+        this.totalNanos = System.nanoTime() - timing.startNanos;
+    }
+
+
+    /**
+     * Constructor of a result answered from the {@link ResultCache}.
+     *
+     * @param queryId
+     *        The query id.
+     * @param entry
+     *        The cached {@link ResultCache.Entry} the query image matched.
+     * @param timing
+     *        The {@link Timing} of the search.
+     */
+
+
+    SearchResult(String queryId, ResultCache.Entry entry, Timing timing) {
+        this.queryId = queryId;
+        this.remoteMatch = entry.remoteMatch;
+        this.cached = true;
+        this.exception = null;
+        this.objects = null;
+        this.tableIdx = -1;
+        this.index = null;
+        this.objIdx = MatchResult.NO_MATCH;
+        this.score = Float.NaN;
+        this.inliers = -1;
+        this.objId = entry.objId;
+        this.objName = entry.objName;
+        this.objMeta = entry.objMeta;
+        this.decoded = true;
+
+        this.localMatchNanos = -1;
+        this.uploadNanos = -1;
+        this.serverNanos = -1;
+        this.totalNanos = System.nanoTime() - timing.startNanos;
+    }
+
+
+    /**
+     * Hands the result to a callback, as a {@link SearchResult} if it takes one,
+     * as Strings otherwise.
+     */
+
+
+    void deliverTo(OnResultCallback onResultCallback) {
+        if (onResultCallback instanceof OnSearchResultCallback) {
+            ((OnSearchResultCallback) onResultCallback).onSearchResult(this);
+        } else {
+            onResultCallback.onResult(queryId, getObjId(), getObjName(), getObjMeta(), remoteMatch, exception);
+        }
+    }
+
+
+    /**
+     * @return the query id, null if a remote query could not be submitted.
+     */
+
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+
+    /**
+     * @return true if the result comes from IQ Engines server, false if from local index.
+     */
+
+
+    public boolean isRemoteMatch() {
+        return remoteMatch;
+    }
+
+
+    /**
+     * @return the {@link Exception} the search failed with, null if none.
+     */
+
+
+    public Exception getException() {
+        return exception;
+    }
+
+
+    /**
+     * @return true if an object was found.
+     */
+
+
+    public boolean isMatch() {
+        if (cached) {
+            // only matches are cached
+            return true;
+        }
+        if (!remoteMatch) {
+            return objIdx >= 0;
+        }
+        return objName != null && !UpdateParser.NO_MATCH_FOUND.equals(objName);
+    }
+
+
+    /**
+     * @return true if the result was answered from the cache of recent matches, without searching.
+     */
+
+
+    public boolean isCached() {
+        return cached;
+    }
+
+
+    /**
+     * @return the index of the local match in {@link IQLocalApi#getObjIds()},
+     *         {@link MatchResult#NO_MATCH} if none or if the result is remote or cached.
+     */
+
+
+    public int getObjIndex() {
+        return objIdx;
+    }
+
+
+    /**
+     * @return the object id of the local match, null if none or if the result is remote.
+     */
+
+
+    public String getObjId() {
+        decode();
+        return objId;
+    }
+
+
+    /**
+     * @return the object name (label) of the match, null if no local match was found.
+     */
+
+
+    public String getObjName() {
+        decode();
+        return objName;
+    }
+
+
+    /**
+     * @return the meta information of the match, null if none.
+     */
+
+
+    public String getObjMeta() {
+        decode();
+        return objMeta;
+    }
+
+
+    /**
+     * @return the share of query features which are inliers for the local match, between 0 and 1.
+     *         NaN if the match was not scored, as remote matches and unverified local ones.
+     */
+
+
+    public float getScore() {
+        return score;
+    }
+
+
+    /**
+     * @return the number of inliers of the local match, -1 if it was not scored.
+     */
+
+
+    public int getInliers() {
+        return inliers;
+    }
+
+
+    /**
+     * @return the time spent matching in local index (milliseconds), -1 if the search was remote only.
+     */
+
+
+    public double getLocalMatchMillis() {
+        return toMillis(localMatchNanos);
+    }
+
+
+    /**
+     * @return the time spent submitting the query to the server (milliseconds), -1 if it was not submitted.
+     */
+
+
+    public double getUploadMillis() {
+        return toMillis(uploadNanos);
+    }
+
+
+    /**
+     * @return the time from query submission to the result coming back through the update-API
+     *         (milliseconds), -1 for local results.
+     */
+
+
+    public double getServerMillis() {
+        return toMillis(serverNanos);
+    }
+
+
+    /**
+     * @return the time from the start of the search to the result (milliseconds).
+     */
+
+
+    public double getTotalMillis() {
+        return toMillis(totalNanos);
+    }
+
+
+    private void decode() {
+        if (decoded) {
+            return;
+        }
+        // racing readers look up the same Strings, so no lock is needed
+        if (objects != null) {
+            String id = objects.getId(tableIdx);
+            objName = objects.getName(id);
+            objMeta = objects.getMeta(id);
+            objId = id;
+        } else if (index != null) {
+            objName = index.getObjName(objId);
+            objMeta = index.getObjMeta(objId);
+        }
+        decoded = true;
+    }
+
+
+    private static double toMillis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000.0;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SearchResult[queryId=").append(queryId)
+                .append(remoteMatch ? ", remote" : ", local");
+        if (cached) {
+            sb.append(", cached, name=").append(objName);
+        } else if (exception != null) {
+            sb.append(", exception=").append(exception);
+        } else if (remoteMatch) {
+            sb.append(", labels=").append(objName);
+        } else {
+            sb.append(", objIdx=").append(objIdx);
+            if (objIdx >= 0) {
+                sb.append(", score=").append(score).append(", inliers=").append(inliers);
+            }
+        }
+        return sb.append(", totalMillis=").append(getTotalMillis()).append(']').toString();
+    }
+}
@@ -0,0 +1,168 @@
+package com.iqengines.sdk;
+
+import android.os.SystemClock;
+
+import com.iqengines.sdk.IQE.SearchMode;
+
+/**
+ * Picks how each search combines local and remote search in {@link SearchMode#ADAPTIVE} mode,
+ * from rolling averages of what recent searches cost and found:
+ * <ul>
+ * <li>the server is left out while queries fail to reach it, and asked again after a while;</li>
+ * <li>queries are raced when local search is slow compared to the round trip to the server
+ * and seldom finds a match, so that waiting for it before uploading is mostly wasted;</li>
+ * <li>otherwise local search goes first, saving uploads.</li>
+ * </ul>
+ * Averages are exponentially weighted, so that they follow the load of the device and the
+ * network as they change.
+ */
+final class SearchRouter {
+
+    /**
+     * Weight of a new sample in the averages, about the last 10 searches are accounted for.
+     */
+    static final double SMOOTHING = 0.1;
+
+    /**
+     * Share of the expected time of a search that racing must save to be worth an upload per search.
+     */
+    static final double MIN_RACE_SAVING = 0.2;
+
+    /**
+     * Rate of failed uploads above which the server is considered unreachable.
+     */
+    static final double MAX_REMOTE_FAILURE_RATE = 0.5;
+
+    /**
+     * Time after which an unreachable server is asked again (milliseconds).
+     */
+    static final long REMOTE_RETRY_INTERVAL = 30 * 1000;
+
+    /**
+     * Local searches averaged before racing is considered.
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    /** Averages, -1 until a sample is recorded. Guarded by this. */
+    private double localNanos = -1;
+
+    private double localHitRate = -1;
+
+    private double remoteNanos = -1;
+
+    private double remoteFailureRate = 0;
+
+    private int localSamples;
+
+    private long lastRemoteAttempt;
+
+
+    /**
+     * Records the time a local match took, as a measure of the load of the device.
+     */
+
+
+    synchronized void recordLocalMatch(long nanos) {
+        localNanos = average(localNanos, nanos);
+        ++localSamples;
+    }
+
+
+    /**
+     * Records whether local search answered a search which could have gone to the server,
+     * either with a match or by telling the image is not worth a query.
+     */
+
+
+    synchronized void recordLocalOutcome(boolean answered) {
+        localHitRate = average(localHitRate, answered ? 1 : 0);
+    }
+
+
+    /**
+     * Records a query submitted to the server.
+     */
+
+
+    synchronized void recordUpload() {
+        remoteFailureRate = average(remoteFailureRate, 0);
+        lastRemoteAttempt = SystemClock.elapsedRealtime();
+    }
+
+
+    /**
+     * Records a query which failed to reach the server.
+     */
+
+
+    synchronized void recordUploadFailure() {
+        remoteFailureRate = average(remoteFailureRate, 1);
+        lastRemoteAttempt = SystemClock.elapsedRealtime();
+    }
+
+
+    /**
+     * Records the time from the upload of a query to its result coming back.
+     */
+
+
+    synchronized void recordRoundTrip(long nanos) {
+        remoteNanos = average(remoteNanos, nanos);
+    }
+
+
+    /**
+     * @return the {@link SearchMode} of the next search, one of {@link SearchMode#LOCAL_ONLY},
+     *         {@link SearchMode#LOCAL_THEN_REMOTE} and {@link SearchMode#RACE}.
+     */
+
+
+    synchronized SearchMode route() {
+        if (remoteFailureRate > MAX_REMOTE_FAILURE_RATE) {
+            if (SystemClock.elapsedRealtime() - lastRemoteAttempt < REMOTE_RETRY_INTERVAL) {
+                return SearchMode.LOCAL_ONLY;
+            }
+            // probe whether the server can be reached again
+            lastRemoteAttempt = SystemClock.elapsedRealtime();
+            return SearchMode.LOCAL_THEN_REMOTE;
+        }
+        if (localSamples < MIN_SAMPLES || localHitRate < 0 || remoteNanos < 0) {
+            return SearchMode.LOCAL_THEN_REMOTE;
+        }
+
+        // local search first waits for local search on every miss, racing saves that wait
+        double missRate = 1 - localHitRate;
+        double sequentialNanos = localNanos + missRate * remoteNanos;
+        double savedNanos = missRate * localNanos;
+        return savedNanos > MIN_RACE_SAVING * sequentialNanos ? SearchMode.RACE : SearchMode.LOCAL_THEN_REMOTE;
+    }
+
+
+    /**
+     * Forgets the averages, e.g. after the local index changed.
+     */
+
+
+    synchronized void reset() {
+        localNanos = -1;
+        localHitRate = -1;
+        remoteNanos = -1;
+        remoteFailureRate = 0;
+        localSamples = 0;
+        lastRemoteAttempt = 0;
+    }
+
+
+    private static double average(double average, double sample) {
+        return average < 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return "SearchRouter[localMillis=" + (localNanos < 0 ? -1 : localNanos / 1000000)
+                + ", localHitRate=" + localHitRate
+                + ", remoteMillis=" + (remoteNanos < 0 ? -1 : remoteNanos / 1000000)
+                + ", remoteFailureRate=" + remoteFailureRate + "]";
+    }
+}
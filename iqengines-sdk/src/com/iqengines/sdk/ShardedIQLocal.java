@@ -0,0 +1,922 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+import com.iqengines.sdk.IQLocal.OnReady;
+
+/**
+ * {@link IQLocalApi} over a catalog split into shards, one per collection, so that only the
+ * collections in use take memory. Each shard is a catalog of its own in the assets, under
+ * {@link #SHARDS_ASSET_PATH}/&lt;shard name&gt;, and is unpacked, loaded and trained when it is loaded.
+ * Catalogs outside of the assets are loaded as shards with {@link #load(String, String)}.
+ * Matches fan out across the loaded shards.
+ * <p>
+ * Object indices number the objects of the loaded shards in loading order, as listed by {@link #getObjIds()}.
+ * They are only valid until a shard is loaded or unloaded, or an object added,
+ * whereas a {@link SearchResult} keeps the objects it was matched against.
+ */
+public class ShardedIQLocal implements IQLocalApi {
+
+    public static final String TAG = ShardedIQLocal.class.getSimpleName();
+
+    /**
+     * Asset directory holding one catalog directory per shard.
+     */
+    public static final String SHARDS_ASSET_PATH = "iqeshards";
+
+    /**
+     * Default number of workers matching concurrently in each shard.
+     * Each holds its own trained copy of the shard, see {@link IQLocalPool}.
+     */
+    public static final int DEFAULT_MATCHERS_PER_SHARD = 1;
+
+    /** Object index telling that several shards matched, never returned */
+    private static final int AMBIGUOUS = -2;
+
+    private final int matchersPerShard;
+
+    private final ReadWriteLock shardsLock = new ReentrantReadWriteLock();
+
+    /** Loaded shards by name, in loading order, guarded by shardsLock */
+    private final LinkedHashMap<String, IQLocalPool> shards = new LinkedHashMap<String, IQLocalPool>();
+
+    private volatile Resources res;
+
+    private volatile File appDataDir;
+
+    private volatile long assetsVersion;
+
+    private final List<String> initialShards;
+
+    /** Matches on several shards at once */
+    private final ExecutorService executor;
+
+    /** Runs the asynchronous API, apart from executor so that asynchronous calls can wait for it */
+    private final ExecutorService asyncExecutor;
+
+    /**
+     * Work done on each shard of a match.
+     */
+    private interface ShardTask<T> {
+        T run(IQLocalPool shard);
+    }
+
+
+    /**
+     * Constructor, with {@link #DEFAULT_MATCHERS_PER_SHARD} workers per shard.
+     *
+     * @param initialShards
+     *        Names of the shards loaded by init.
+     */
+
+
+    public ShardedIQLocal(String... initialShards) {
+        this(DEFAULT_MATCHERS_PER_SHARD, initialShards);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param matchersPerShard
+     *        The number of workers matching concurrently in each shard, see {@link IQLocalPool}.
+     * @param initialShards
+     *        Names of the shards loaded by init.
+     */
+
+
+    public ShardedIQLocal(int matchersPerShard, String... initialShards) {
+        if (matchersPerShard <= 0) {
+            throw new IllegalArgumentException("matchersPerShard must be positive");
+        }
+        this.matchersPerShard = matchersPerShard;
+        this.initialShards = Arrays.asList(initialShards);
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ShardedIQLocal-" + threadCount.incrementAndGet());
+            }
+        };
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threadFactory);
+        asyncExecutor = Executors.newCachedThreadPool(threadFactory);
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#setAssetsVersion(long)
+     */
+    @Override
+    public void setAssetsVersion(long assetsVersion) {
+        this.assetsVersion = assetsVersion;
+    }
+
+
+    /**
+     * @return the names of the shards shipped in the assets.
+     * @throws IllegalStateException if init was not called.
+     */
+
+
+    public List<String> getAvailableShards() {
+        checkInitialized();
+        try {
+            String[] names = res.getAssets().list(SHARDS_ASSET_PATH);
+            return names == null ? Collections.<String>emptyList() : Arrays.asList(names);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't list shards", e);
+            return Collections.emptyList();
+        }
+    }
+
+
+    /**
+     * @return the names of the loaded shards, in loading order.
+     */
+
+
+    public List<String> getLoadedShards() {
+        shardsLock.readLock().lock();
+        try {
+            return new ArrayList<String>(shards.keySet());
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Unpacks, loads and trains a shard. Blocks until the shard can be matched, other shards are matched meanwhile.
+     *
+     * @param name
+     *        The name of the shard.
+     * @return false if the shard is already loaded.
+     * @throws IllegalStateException if init was not called.
+     */
+
+
+    public boolean loadShard(String name) {
+        checkInitialized();
+        if (isLoaded(name)) {
+            return false;
+        }
+
+        // trained outside the lock, matching goes on in loaded shards
+        IQLocalPool shard = new IQLocalPool(matchersPerShard, SHARDS_ASSET_PATH + "/" + name);
+        shard.setAssetsVersion(assetsVersion);
+        shard.init(res, appDataDir);
+        return addShard(name, shard);
+    }
+
+
+    /**
+     * Tells if a shard is loaded.
+     */
+
+
+    private boolean isLoaded(String name) {
+        shardsLock.readLock().lock();
+        try {
+            return shards.containsKey(name);
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds a trained shard, or destroys it if a shard of the same name was loaded meanwhile.
+     *
+     * @return false if the shard was already loaded.
+     */
+
+
+    private boolean addShard(String name, IQLocalPool shard) {
+        shardsLock.writeLock().lock();
+        try {
+            if (!shards.containsKey(name)) {
+                shards.put(name, shard);
+                shard = null;
+            }
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+        if (shard != null) {
+            // loaded concurrently by another caller
+            shard.destroy();
+            return false;
+        }
+        Log.d(TAG, "Shard " + name + " loaded");
+        return true;
+    }
+
+
+    /**
+     * Unloads a shard, releasing its memory.
+     *
+     * @param name
+     *        The name of the shard.
+     * @return false if the shard was not loaded.
+     */
+
+
+    public boolean unloadShard(String name) {
+        IQLocalPool shard;
+        shardsLock.writeLock().lock();
+        try {
+            shard = shards.remove(name);
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+        if (shard == null) {
+            return false;
+        }
+        shard.destroy();
+        Log.d(TAG, "Shard " + name + " unloaded");
+        return true;
+    }
+
+
+    private void checkInitialized() {
+        if (res == null) {
+            throw new IllegalStateException("init was not called");
+        }
+    }
+
+
+    /**
+     * Returns the first index of each shard in the global numbering. Called with shardsLock held.
+     */
+
+
+    private int[] offsets(List<IQLocalPool> loaded) {
+        int[] offsets = new int[loaded.size()];
+        int offset = 0;
+        for (int i = 0; i < loaded.size(); ++i) {
+            offsets[i] = offset;
+            offset += loaded.get(i).getObjCount();
+        }
+        return offsets;
+    }
+
+
+    /**
+     * Matches in every loaded shard. When several shards match, the query is scored against their
+     * matches so that the one with the most inliers wins, see {@link #match(Mat, MatchResult)}.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat)
+     */
+    @Override
+    public int match(final Mat img) {
+        shardsLock.readLock().lock();
+        try {
+            List<IQLocalPool> loaded = new ArrayList<IQLocalPool>(shards.values());
+            List<Integer> hits = fanOut(loaded, new ShardTask<Integer>() {
+                @Override
+                public Integer run(IQLocalPool shard) {
+                    return shard.match(img);
+                }
+            });
+            if (hits == null) {
+                return MatchResult.NO_MATCH;
+            }
+            int[] offsets = offsets(loaded);
+            int[] shardHits = new int[hits.size()];
+            for (int i = 0; i < shardHits.length; ++i) {
+                shardHits[i] = hits.get(i);
+            }
+            int objIdx = pick(shardHits, offsets);
+            if (objIdx != AMBIGUOUS) {
+                return objIdx;
+            }
+            MatchResult result = new MatchResult(1);
+            match(img, result);
+            return result.getIndexMatch();
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Matches the batch in every loaded shard at once. Images several shards match are scored
+     * one by one, as in {@link #match(Mat)}.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat[])
+     */
+    @Override
+    public int[] match(final Mat[] imgs) {
+        int[] results = new int[imgs.length];
+        Arrays.fill(results, MatchResult.NO_MATCH);
+        shardsLock.readLock().lock();
+        try {
+            List<IQLocalPool> loaded = new ArrayList<IQLocalPool>(shards.values());
+            List<int[]> hits = fanOut(loaded, new ShardTask<int[]>() {
+                @Override
+                public int[] run(IQLocalPool shard) {
+                    return shard.match(imgs);
+                }
+            });
+            if (hits == null) {
+                return results;
+            }
+            int[] offsets = offsets(loaded);
+            int[] shardHits = new int[hits.size()];
+            MatchResult result = null;
+            for (int i = 0; i < imgs.length; ++i) {
+                for (int s = 0; s < shardHits.length; ++s) {
+                    shardHits[s] = hits.get(s)[i];
+                }
+                results[i] = pick(shardHits, offsets);
+                if (results[i] == AMBIGUOUS) {
+                    if (result == null) {
+                        result = new MatchResult(1);
+                    }
+                    match(imgs[i], result);
+                    results[i] = result.getIndexMatch();
+                }
+            }
+            return results;
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * @return the object index matched by the only shard which matched, {@link MatchResult#NO_MATCH}
+     *         if none did, {@link #AMBIGUOUS} if several did.
+     */
+
+
+    private static int pick(int[] shardHits, int[] offsets) {
+        int objIdx = MatchResult.NO_MATCH;
+        for (int i = 0; i < shardHits.length; ++i) {
+            if (shardHits[i] >= 0) {
+                if (objIdx >= 0) {
+                    return AMBIGUOUS;
+                }
+                objIdx = offsets[i] + shardHits[i];
+            }
+        }
+        return objIdx;
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, int)
+     */
+    @Override
+    public MatchResult match(Mat img, int k) {
+        MatchResult result = new MatchResult(k);
+        match(img, result);
+        return result;
+    }
+
+
+    /**
+     * Matches in every loaded shard and merges candidates by number of inliers.
+     * The index match is the one of the shard whose best candidate has the most inliers.
+     * If the index match is not scored and several shards match, their matches are scored to tell them apart.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, com.iqengines.sdk.MatchResult)
+     */
+    @Override
+    public void match(final Mat img, MatchResult result) {
+        result.clear();
+        shardsLock.readLock().lock();
+        try {
+            List<IQLocalPool> loaded = new ArrayList<IQLocalPool>(shards.values());
+            if (loaded.isEmpty()) {
+                return;
+            }
+            final int k = result.capacity();
+            final boolean scoreIndexMatch = result.scoreIndexMatch;
+            List<MatchResult> results = fanOut(loaded, new ShardTask<MatchResult>() {
+                @Override
+                public MatchResult run(IQLocalPool shard) {
+                    MatchResult r = new MatchResult(k);
+                    r.setScoreIndexMatch(scoreIndexMatch);
+                    shard.match(img, r);
+                    return r;
+                }
+            });
+            if (results == null) {
+                return;
+            }
+
+            if (!scoreIndexMatch) {
+                int hits = 0;
+                for (MatchResult r : results) {
+                    if (r.getIndexMatch() >= 0) {
+                        ++hits;
+                    }
+                }
+                for (int i = 0; hits > 1 && i < results.size(); ++i) {
+                    if (results.get(i).getIndexMatch() >= 0) {
+                        results.set(i, loaded.get(i).match(img, k));
+                    }
+                }
+            }
+            merge(results.toArray(new MatchResult[results.size()]), offsets(loaded), result);
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Runs a task on every shard, on executor if there are several.
+     *
+     * @return the results of the shards, in order, null if the caller was interrupted.
+     */
+
+
+    private <T> List<T> fanOut(List<IQLocalPool> loaded, final ShardTask<T> task) {
+        List<T> results = new ArrayList<T>(loaded.size());
+        if (loaded.size() == 1) {
+            results.add(task.run(loaded.get(0)));
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(loaded.size());
+        for (final IQLocalPool shard : loaded) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return task.run(shard);
+                }
+            }));
+        }
+        for (Future<T> future : futures) {
+            T result = await(future);
+            if (result == null) {
+                for (Future<T> f : futures) {
+                    f.cancel(true);
+                }
+                return null;
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+
+    /**
+     * @return the result, null if the caller was interrupted.
+     */
+
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+
+    private static void merge(MatchResult[] results, int[] offsets, MatchResult merged) {
+        int[] next = new int[results.length];
+        int bestShard = -1;
+        int queryFeatures = 0;
+        boolean verified = false;
+
+        for (int i = 0; i < results.length; ++i) {
+            MatchResult r = results[i];
+            queryFeatures = Math.max(queryFeatures, r.getQueryFeatures());
+            verified |= r.isVerified();
+            if (r.getIndexMatch() >= 0 && (bestShard < 0 || topInliers(r) > topInliers(results[bestShard]))) {
+                bestShard = i;
+            }
+        }
+
+        // k-way merge of candidates ordered by inliers
+        while (merged.size < merged.capacity()) {
+            int shard = -1;
+            for (int i = 0; i < results.length; ++i) {
+                if (next[i] < results[i].size
+                        && (shard < 0 || results[i].inliers[next[i]] > results[shard].inliers[next[shard]])) {
+                    shard = i;
+                }
+            }
+            if (shard < 0) {
+                break;
+            }
+            int j = next[shard]++;
+            merged.objIdx[merged.size] = offsets[shard] + results[shard].objIdx[j];
+            merged.scores[merged.size] = results[shard].scores[j];
+            merged.inliers[merged.size] = results[shard].inliers[j];
+            ++merged.size;
+        }
+
+        merged.info[0] = bestShard < 0 ? MatchResult.NO_MATCH : offsets[bestShard] + results[bestShard].getIndexMatch();
+        merged.info[1] = queryFeatures;
+        merged.info[2] = verified ? 1 : 0;
+
+        // objects of every shard, numbered as merged
+        int tableCount = 0;
+        for (MatchResult r : results) {
+            tableCount += r.tables.length;
+        }
+        merged.tables = new ObjectTable[tableCount];
+        merged.tableOffsets = new int[tableCount];
+        int n = 0;
+        for (int i = 0; i < results.length; ++i) {
+            for (int t = 0; t < results[i].tables.length; ++t, ++n) {
+                merged.tables[n] = results[i].tables[t];
+                merged.tableOffsets[n] = offsets[i] + results[i].tableOffsets[t];
+            }
+        }
+    }
+
+
+    private static int topInliers(MatchResult r) {
+        return r.size > 0 ? r.inliers[0] : 0;
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#match(com.iqengines.sdk.Mat, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void match(final Mat img, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(match(img));
+            }
+        });
+    }
+
+
+    /**
+     * Computes in every loaded shard.
+     *
+     * @return the result of the first shard, -1 if no shard is loaded.
+     * @see com.iqengines.sdk.IQLocalApi#compute(com.iqengines.sdk.Mat, java.lang.String, java.lang.String)
+     */
+    @Override
+    public int compute(Mat img, String arg1, String arg2) {
+        shardsLock.writeLock().lock();
+        try {
+            int result = -1;
+            boolean first = true;
+            for (IQLocalPool shard : shards.values()) {
+                int r = shard.compute(img, arg1, arg2);
+                if (first) {
+                    result = r;
+                    first = false;
+                }
+            }
+            return result;
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#compute(com.iqengines.sdk.Mat, java.lang.String, java.lang.String, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void compute(final Mat img, final String arg1, final String arg2, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(compute(img, arg1, arg2));
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.ShardedIQLocal#load(java.lang.String, java.lang.String)
+     */
+    @Override
+    public int load(File index, File images) {
+        return load(index.getPath(), images.getPath());
+    }
+
+
+    /**
+     * Loads and trains the catalog of a data directory as a shard named after the directory,
+     * e.g. a collection downloaded rather than shipped in the assets. Unload it with {@link #unloadShard(String)}.
+     *
+     * @return the result code of the load, -1 if a shard of that name is already loaded.
+     * @see com.iqengines.sdk.IQLocalApi#load(java.lang.String, java.lang.String)
+     */
+    @Override
+    public int load(String indexPath, String imagesPath) {
+        String name = new File(imagesPath).getName();
+        if (isLoaded(name)) {
+            return -1;
+        }
+
+        // trained outside the lock, matching goes on in loaded shards
+        IQLocalPool shard = new IQLocalPool(matchersPerShard);
+        int resultCode = shard.load(indexPath, imagesPath);
+        shard.train();
+        return addShard(name, shard) ? resultCode : -1;
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.ShardedIQLocal#load(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void load(File index, File images, OnReady callback) {
+        load(index.getPath(), images.getPath(), callback);
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.ShardedIQLocal#load(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void load(final String indexPath, final String imagesPath, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(load(indexPath, imagesPath));
+            }
+        });
+    }
+
+
+    /**
+     * Retrains every loaded shard.
+     *
+     * @return the result of the first shard, -1 if no shard is loaded.
+     * @see com.iqengines.sdk.IQLocalApi#train()
+     */
+    @Override
+    public int train() {
+        shardsLock.writeLock().lock();
+        try {
+            int result = -1;
+            boolean first = true;
+            for (IQLocalPool shard : shards.values()) {
+                int r = shard.train();
+                if (first) {
+                    result = r;
+                    first = false;
+                }
+            }
+            return result;
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#train(com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void train(final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(train());
+            }
+        });
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#init(android.content.res.Resources, java.io.File, com.iqengines.sdk.IQLocal.OnReady)
+     */
+    @Override
+    public void init(final Resources res, final File appDataDir, final OnReady callback) {
+        if (callback == null)
+            throw new IllegalArgumentException();
+
+        asyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    init(res, appDataDir);
+                    callback.onReady(0);
+                } catch (Exception e) {
+                    callback.onReady(-1);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Loads the initial shards.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#init(android.content.res.Resources, java.io.File)
+     */
+    @Override
+    public void init(Resources res, File appDataDir) {
+        this.appDataDir = appDataDir;
+        this.res = res;
+        for (String name : initialShards) {
+            loadShard(name);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjName(java.lang.String)
+     */
+    @Override
+    public String getObjName(String objId) {
+        shardsLock.readLock().lock();
+        try {
+            for (IQLocalPool shard : shards.values()) {
+                String name = shard.getObjName(objId);
+                if (name != null) {
+                    return name;
+                }
+            }
+            return null;
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjMeta(java.lang.String)
+     */
+    @Override
+    public String getObjMeta(String objId) {
+        shardsLock.readLock().lock();
+        try {
+            for (IQLocalPool shard : shards.values()) {
+                String meta = shard.getObjMeta(objId);
+                if (meta != null) {
+                    return meta;
+                }
+            }
+            return null;
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjId(int)
+     */
+    @Override
+    public String getObjId(int objIdx) {
+        shardsLock.readLock().lock();
+        try {
+            int offset = 0;
+            for (IQLocalPool shard : shards.values()) {
+                int count = shard.getObjCount();
+                if (objIdx >= offset && objIdx < offset + count) {
+                    return shard.getObjId(objIdx - offset);
+                }
+                offset += count;
+            }
+            throw new IndexOutOfBoundsException("index " + objIdx + ", size " + offset);
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#getObjIds()
+     */
+    @Override
+    public List<String> getObjIds() {
+        shardsLock.readLock().lock();
+        try {
+            List<String> ids = new ArrayList<String>();
+            for (IQLocalPool shard : shards.values()) {
+                ids.addAll(shard.getObjIds());
+            }
+            return ids;
+        } finally {
+            shardsLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds an object to the first loaded shard.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#addObject(java.lang.String, java.lang.String, java.lang.String, java.util.List)
+     */
+    @Override
+    public int addObject(String objId, String objName, String objMeta, List<File> images) {
+        shardsLock.writeLock().lock();
+        try {
+            if (shards.isEmpty()) {
+                throw new IllegalStateException("no shard is loaded");
+            }
+            return addObject(shards.keySet().iterator().next(), objId, objName, objMeta, images);
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds an object to a loaded shard.
+     *
+     * @param shardName
+     *        The name of the shard.
+     * @see com.iqengines.sdk.IQLocalApi#addObject(java.lang.String, java.lang.String, java.lang.String, java.util.List)
+     */
+
+
+    public int addObject(String shardName, String objId, String objName, String objMeta, List<File> images) {
+        shardsLock.writeLock().lock();
+        try {
+            IQLocalPool shard = shards.get(shardName);
+            if (shard == null) {
+                throw new IllegalStateException("shard " + shardName + " is not loaded");
+            }
+            return shard.addObject(objId, objName, objMeta, images);
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes an object from every loaded shard.
+     *
+     * @see com.iqengines.sdk.IQLocalApi#removeObject(java.lang.String)
+     */
+    @Override
+    public boolean removeObject(String objId) {
+        shardsLock.writeLock().lock();
+        try {
+            boolean removed = false;
+            for (IQLocalPool shard : shards.values()) {
+                removed |= shard.removeObject(objId);
+            }
+            return removed;
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see com.iqengines.sdk.IQLocalApi#destroy()
+     */
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+        asyncExecutor.shutdownNow();
+        shardsLock.writeLock().lock();
+        try {
+            for (IQLocalPool shard : shards.values()) {
+                shard.destroy();
+            }
+            shards.clear();
+        } finally {
+            shardsLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.iqengines.sdk;
+
+import java.io.File;
+
+/**
+ * Bounded ring of snapshot files, so that concurrent queries never write over
+ * an image another query is still reading or uploading.
+ * A slot is handed out again only after every holder has released it.
+ */
+class SnapshotPool {
+
+    /**
+     * A snapshot file reserved by one query.
+     */
+    class Snapshot {
+
+        private final File file;
+
+        private int refCount;
+
+        private Snapshot(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return the {@link File} to write the query image to.
+         */
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * Gives the slot back to the pool once the last holder is done with it.
+         */
+        void release() {
+            synchronized (SnapshotPool.this) {
+                if (refCount <= 0) {
+                    throw new IllegalStateException("snapshot is not in use");
+                }
+                if (--refCount == 0) {
+                    SnapshotPool.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    private final Snapshot[] slots;
+
+    private int next;
+
+
+    /**
+     * Constructor
+     *
+     * @param dir
+     *        The directory holding the snapshot files.
+     * @param size
+     *        The number of snapshot files.
+     */
+
+
+    SnapshotPool(File dir, int size) {
+        slots = new Snapshot[size];
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Snapshot(new File(dir, "snapshot-" + i + ".jpg"));
+        }
+    }
+
+
+    /**
+     * Reserves a free snapshot file, waiting for one to be released if all are in use.
+     * The wait is bounded, so that a slot leaked by a holder does not hang every later query.
+     *
+     * @param timeoutMillis
+     *        The longest time to wait for a slot (milliseconds).
+     * @return A {@link Snapshot} held once, to be released by the caller. null if no slot was released in time.
+     * @throws InterruptedException
+     */
+
+
+    synchronized Snapshot acquire(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (;;) {
+            for (int i = 0; i < slots.length; ++i) {
+                Snapshot snapshot = slots[next];
+                next = (next + 1) % slots.length;
+                if (snapshot.refCount == 0) {
+                    snapshot.refCount = 1;
+                    return snapshot;
+                }
+            }
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return null;
+            }
+            wait(left);
+        }
+    }
+
+
+    /**
+     * Takes one more hold on the snapshot written to a file.
+     *
+     * @param file
+     *        A {@link File} possibly belonging to this pool.
+     * @return The {@link Snapshot} to be released by the caller, null if the file is not an in-use snapshot of this pool.
+     */
+
+
+    synchronized Snapshot retain(File file) {
+        if (file == null) {
+            return null;
+        }
+        for (Snapshot snapshot : slots) {
+            if (snapshot.refCount > 0 && snapshot.file.equals(file)) {
+                ++snapshot.refCount;
+                return snapshot;
+            }
+        }
+        return null;
+    }
+}
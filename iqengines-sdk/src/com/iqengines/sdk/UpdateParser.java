@@ -0,0 +1,545 @@
+package com.iqengines.sdk;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.json.JSONException;
+
+/**
+ * Reads the results of remote queries out of an update-API response:
+ * <pre>
+ * {"data": {"error": 0, "results": [{"qid": "...", "qid_data": {"labels": "...", "meta": "..."}}, ...]}}
+ * </pre>
+ * A result whose qid_data is empty is a query the server found no match for.
+ * The response is decoded as it is read, one token at a time: only the qid, labels and meta
+ * of each result are turned into Strings, everything else is skipped without being kept.
+ */
+final class UpdateParser {
+
+    /**
+     * Receives the results found in a response.
+     */
+    interface Sink {
+        void onResult(String qid, String labels, String meta);
+    }
+
+    /**
+     * Labels given to queries the server found no match for.
+     */
+    static final String NO_MATCH_FOUND = "no match found";
+
+
+    private UpdateParser() {
+    }
+
+
+    /**
+     * Parses an update-API response held in a String.
+     *
+     * @see #parse(Reader, Sink)
+     */
+
+
+    static int parse(String response, Sink sink) throws JSONException {
+        try {
+            return parse(new StringReader(response), sink);
+        } catch (IOException e) {
+            throw new JSONException(e.toString());
+        }
+    }
+
+
+    /**
+     * Parses an update-API response and hands every result to sink, in order.
+     * Results are delivered while the response is read, unless the server error code comes
+     * after them, in which case they are held until it is known.
+     *
+     * @param in
+     *        The JSON response. It is read up to the end of the top-level object and not closed.
+     * @param sink
+     *        The {@link Sink} receiving results.
+     * @return the error code returned by the server, 0 if none. No result is delivered if it is not 0.
+     * @throws IOException
+     *         if the response can't be read.
+     * @throws JSONException
+     *         if the response is not a valid update-API response.
+     */
+
+
+    static int parse(Reader in, Sink sink) throws IOException, JSONException {
+        Lexer lexer = new Lexer(in);
+        int error = 0;
+        if (lexer.beginObject()) {
+            do {
+                lexer.nextName();
+                if (lexer.nameIs("data")) {
+                    error = parseData(lexer, sink);
+                } else {
+                    lexer.skipValue();
+                }
+            } while (lexer.nextMember());
+        }
+        return error;
+    }
+
+
+    private static int parseData(Lexer lexer, Sink sink) throws IOException, JSONException {
+        int error = 0;
+        boolean errorSeen = false;
+        boolean resultsSeen = false;
+        // results read before the error code, as qid, labels, meta triples
+        ArrayList<String> pending = null;
+
+        if (lexer.beginObject()) {
+            do {
+                lexer.nextName();
+                if (lexer.nameIs("error")) {
+                    error = lexer.nextInt();
+                    errorSeen = true;
+                    if (error != 0) {
+                        pending = null;
+                    } else if (pending != null) {
+                        flush(pending, sink);
+                        pending = null;
+                    }
+                } else if (lexer.nameIs("results") && !(errorSeen && error != 0)) {
+                    if (!errorSeen) {
+                        pending = new ArrayList<String>();
+                    }
+                    parseResults(lexer, errorSeen ? sink : null, pending);
+                    resultsSeen = true;
+                } else {
+                    lexer.skipValue();
+                }
+            } while (lexer.nextMember());
+        }
+
+        if (error != 0) {
+            return error;
+        }
+        if (!resultsSeen) {
+            throw lexer.syntaxError("no results");
+        }
+        if (pending != null) {
+            flush(pending, sink);
+        }
+        return 0;
+    }
+
+
+    /**
+     * Reads the results array, handing results to sink or, if it is null, adding them to pending.
+     */
+
+
+    private static void parseResults(Lexer lexer, Sink sink, ArrayList<String> pending)
+            throws IOException, JSONException {
+        if (!lexer.beginArray()) {
+            return;
+        }
+        do {
+            String qid = null;
+            String labels = null;
+            String meta = null;
+            boolean qidDataSeen = false;
+            boolean matched = false;
+
+            if (lexer.beginObject()) {
+                do {
+                    lexer.nextName();
+                    if (lexer.nameIs("qid")) {
+                        qid = lexer.nextString();
+                    } else if (lexer.nameIs("qid_data")) {
+                        qidDataSeen = true;
+                        if (lexer.beginObject()) {
+                            matched = true;
+                            do {
+                                lexer.nextName();
+                                if (lexer.nameIs("labels")) {
+                                    labels = lexer.nextString();
+                                } else if (lexer.nameIs("meta")) {
+                                    meta = lexer.nextString();
+                                } else {
+                                    lexer.skipValue();
+                                }
+                            } while (lexer.nextMember());
+                        }
+                    } else {
+                        lexer.skipValue();
+                    }
+                } while (lexer.nextMember());
+            }
+
+            if (qid == null) {
+                continue;
+            }
+            if (!qidDataSeen) {
+                throw lexer.syntaxError("no qid_data for " + qid);
+            }
+            if (!matched) {
+                labels = NO_MATCH_FOUND;
+                meta = null;
+            }
+            if (sink != null) {
+                sink.onResult(qid, labels, meta);
+            } else {
+                pending.add(qid);
+                pending.add(labels);
+                pending.add(meta);
+            }
+        } while (lexer.nextElement());
+    }
+
+
+    private static void flush(ArrayList<String> pending, Sink sink) {
+        for (int i = 0, lim = pending.size(); i < lim; i += 3) {
+            sink.onResult(pending.get(i), pending.get(i + 1), pending.get(i + 2));
+        }
+    }
+
+
+    /**
+     * Pull tokenizer over a JSON text. Member names are kept in a reused buffer and compared
+     * in place, values are only turned into Strings when asked for.
+     */
+    private static final class Lexer {
+        private final Reader in;
+        private final char[] buf = new char[1024];
+        private int pos;
+        private int limit;
+        /** Offset in the text of buf[0], for error messages */
+        private long offset;
+        /** Last member name read */
+        private final StringBuilder name = new StringBuilder();
+        /** Text of the value being read, if it is kept */
+        private final StringBuilder value = new StringBuilder();
+
+        Lexer(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads '{' and tells whether the object has members.
+         */
+        boolean beginObject() throws IOException, JSONException {
+            expect('{');
+            return !consume('}');
+        }
+
+        /**
+         * Reads ',' or '}' after an object member and tells whether another member follows.
+         */
+        boolean nextMember() throws IOException, JSONException {
+            if (consume(',')) {
+                return true;
+            }
+            expect('}');
+            return false;
+        }
+
+        /**
+         * Reads '[' and tells whether the array has elements.
+         */
+        boolean beginArray() throws IOException, JSONException {
+            expect('[');
+            return !consume(']');
+        }
+
+        /**
+         * Reads ',' or ']' after an array element and tells whether another element follows.
+         */
+        boolean nextElement() throws IOException, JSONException {
+            if (consume(',')) {
+                return true;
+            }
+            expect(']');
+            return false;
+        }
+
+        /**
+         * Reads a member name and the following ':'. Compare it with {@link #nameIs(String)}.
+         */
+        void nextName() throws IOException, JSONException {
+            expect('"');
+            name.setLength(0);
+            readString(name);
+            expect(':');
+        }
+
+        boolean nameIs(String s) {
+            int len = s.length();
+            if (name.length() != len) {
+                return false;
+            }
+            for (int i = 0; i < len; ++i) {
+                if (name.charAt(i) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads a value as a String: strings are unescaped, null gives null and
+         * other values give their JSON text.
+         */
+        String nextString() throws IOException, JSONException {
+            int c = peek();
+            value.setLength(0);
+            if (c == '"') {
+                ++pos;
+                readString(value);
+                return value.toString();
+            }
+            if (c == '{' || c == '[') {
+                skipValue(value);
+                return value.toString();
+            }
+            readLiteral(value);
+            return "null".contentEquals(value) ? null : value.toString();
+        }
+
+        /**
+         * Reads a number, or a string holding one, as an int.
+         */
+        int nextInt() throws IOException, JSONException {
+            String s = nextString();
+            if (s != null) {
+                try {
+                    return Integer.parseInt(s);
+                } catch (NumberFormatException e) {
+                    try {
+                        return (int) Double.parseDouble(s);
+                    } catch (NumberFormatException e2) {
+                        // reported below
+                    }
+                }
+            }
+            throw syntaxError("not a number: " + s);
+        }
+
+        void skipValue() throws IOException, JSONException {
+            skipValue(null);
+        }
+
+        /**
+         * Skips a value, appending its text to out unless it is null.
+         */
+        private void skipValue(StringBuilder out) throws IOException, JSONException {
+            int c = peek();
+            if (c == '"') {
+                ++pos;
+                if (out != null) {
+                    out.append('"');
+                    readRawString(out);
+                } else {
+                    readString(null);
+                }
+            } else if (c == '{') {
+                if (out != null) {
+                    out.append('{');
+                }
+                if (beginObject()) {
+                    do {
+                        skipValue(out);
+                        expect(':');
+                        if (out != null) {
+                            out.append(':');
+                        }
+                        skipValue(out);
+                        if (out != null && peek() == ',') {
+                            out.append(',');
+                        }
+                    } while (nextMember());
+                }
+                if (out != null) {
+                    out.append('}');
+                }
+            } else if (c == '[') {
+                if (out != null) {
+                    out.append('[');
+                }
+                if (beginArray()) {
+                    do {
+                        skipValue(out);
+                        if (out != null && peek() == ',') {
+                            out.append(',');
+                        }
+                    } while (nextElement());
+                }
+                if (out != null) {
+                    out.append(']');
+                }
+            } else {
+                readLiteral(out);
+            }
+        }
+
+        /**
+         * Reads a number, true, false or null.
+         */
+        private void readLiteral(StringBuilder out) throws IOException, JSONException {
+            int length = 0;
+            while (true) {
+                if (pos == limit && !fill()) {
+                    break;
+                }
+                char c = buf[pos];
+                if (c == ',' || c == '}' || c == ']' || c == ':' || c == '"' || c == '{' || c == '['
+                        || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                    break;
+                }
+                if (out != null) {
+                    out.append(c);
+                }
+                ++pos;
+                ++length;
+            }
+            if (length == 0) {
+                throw syntaxError("value expected");
+            }
+        }
+
+        /**
+         * Reads the rest of a string whose opening quote was read, unescaping it into out
+         * unless it is null.
+         */
+        private void readString(StringBuilder out) throws IOException, JSONException {
+            while (true) {
+                if (pos == limit && !fill()) {
+                    throw syntaxError("unterminated string");
+                }
+                // copy runs of plain characters at once
+                int start = pos;
+                while (pos < limit) {
+                    char c = buf[pos];
+                    if (c == '"' || c == '\\') {
+                        break;
+                    }
+                    ++pos;
+                }
+                if (out != null) {
+                    out.append(buf, start, pos - start);
+                }
+                if (pos == limit) {
+                    continue;
+                }
+                char c = buf[pos++];
+                if (c == '"') {
+                    return;
+                }
+                char escaped = readEscape();
+                if (out != null) {
+                    out.append(escaped);
+                }
+            }
+        }
+
+        /**
+         * Reads the rest of a string whose opening quote was read, appending it to out as is.
+         */
+        private void readRawString(StringBuilder out) throws IOException, JSONException {
+            while (true) {
+                if (pos == limit && !fill()) {
+                    throw syntaxError("unterminated string");
+                }
+                char c = buf[pos++];
+                out.append(c);
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    if (pos == limit && !fill()) {
+                        throw syntaxError("unterminated string");
+                    }
+                    out.append(buf[pos++]);
+                }
+            }
+        }
+
+        private char readEscape() throws IOException, JSONException {
+            if (pos == limit && !fill()) {
+                throw syntaxError("unterminated escape");
+            }
+            char c = buf[pos++];
+            switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; ++i) {
+                    if (pos == limit && !fill()) {
+                        throw syntaxError("unterminated escape");
+                    }
+                    int digit = Character.digit(buf[pos++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("bad unicode escape");
+                    }
+                    code = (code << 4) | digit;
+                }
+                return (char) code;
+            default:
+                // '"', '\\', '/' and anything else stand for themselves
+                return c;
+            }
+        }
+
+        /**
+         * @return the next character which is not white space, without consuming it, -1 at end of text.
+         */
+        private int peek() throws IOException {
+            while (true) {
+                if (pos == limit && !fill()) {
+                    return -1;
+                }
+                char c = buf[pos];
+                if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                    return c;
+                }
+                ++pos;
+            }
+        }
+
+        private boolean consume(char expected) throws IOException {
+            if (peek() == expected) {
+                ++pos;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char expected) throws IOException, JSONException {
+            if (!consume(expected)) {
+                int c = peek();
+                throw syntaxError("expected '" + expected + "' but found "
+                        + (c < 0 ? "end of text" : "'" + (char) c + "'"));
+            }
+        }
+
+        private boolean fill() throws IOException {
+            offset += limit;
+            pos = 0;
+            limit = 0;
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) {
+                return false;
+            }
+            limit = n;
+            return true;
+        }
+
+        JSONException syntaxError(String message) {
+            return new JSONException(message + " at character " + (offset + pos));
+        }
+    }
+}
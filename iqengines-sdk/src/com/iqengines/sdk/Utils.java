@@ -6,8 +6,10 @@ import java.io.IOException;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Matrix;
 import android.graphics.Bitmap.CompressFormat;
+import android.graphics.ImageFormat;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
 import android.net.wifi.WifiManager;
@@ -18,6 +20,9 @@ import android.util.Log;
 public class Utils {
     private static String TAG = Utils.class.getName();
     private static boolean DEBUG = true;
+    
+    /** Smallest side images are decoded at to be hashed */
+    private static final int HASH_DECODE_SIZE = 64;
 
     
     /**
@@ -80,27 +85,97 @@ public class Utils {
      */
    
     public static File cropYuv(YuvImage origYuv, int targetSize, Context ctx) {
+        return cropYuv(origYuv, targetSize, snapshotFile(ctx));
+    }
+    
+    
+    /**
+     * Method used to crop a YUV picture into a given file.
+     * 
+     * @param origBmp 
+     * 		  The {@link YuvImage} to be cropped.
+     * 
+     * @param targetSize 
+     * 		  An {@link Integer} The size required. 
+     * 
+     * @param of
+     * 		  The {@link File} to write the JPEG to.
+     * 
+     * @return A {@link File} representing the cropped YUV compressed to JPEG.
+     */
+   
+    public static File cropYuv(YuvImage origYuv, int targetSize, File of) {
+        return cropYuv(origYuv, targetSize, targetSize, 100, of);
+    }
+    
+    
+    /**
+     * Method used to crop a YUV picture, scale it down and compress it into a given file.
+     * NV21 pictures are cropped and scaled in a single pass into a buffer reused by the calling thread,
+     * so that only the smaller picture is compressed.
+     * 
+     * @param origYuv 
+     * 		  The {@link YuvImage} to be cropped.
+     * 
+     * @param targetSize 
+     * 		  An {@link Integer} The size of the centered region to keep. 
+     * 
+     * @param outSize
+     * 		  An {@link Integer} The maximum size of the compressed picture.
+     * 
+     * @param quality
+     * 		  An {@link Integer} The JPEG quality, between 0 and 100.
+     * 
+     * @param of
+     * 		  The {@link File} to write the JPEG to.
+     * 
+     * @return A {@link File} representing the cropped YUV compressed to JPEG.
+     */
+   
+    public static File cropYuv(YuvImage origYuv, int targetSize, int outSize, int quality, File of) {
+        return cropYuv(origYuv, targetSize, outSize, quality, of, null);
+    }
+    
+    
+    /**
+     * {@link #cropYuv(YuvImage, int, int, int, File)} recording the time spent cropping, compressing and writing.
+     */
+    
+    static File cropYuv(YuvImage origYuv, int targetSize, int outSize, int quality, File of, SearchMetrics metrics) {
     	
     	int w = origYuv.getWidth();
     	int h = origYuv.getHeight();
     	
-    	int left = (int)(targetSize >= w ? 0 : (float)( (w-targetSize)/2 ) );
-    	int right = (int)(targetSize >= w ? w : targetSize + (float)( (w-targetSize)/2 ) );
-    	int top = (int)(targetSize >= h ? 0 : (float)( (h-targetSize)/2 ) );
-    	int bottom = (int)(targetSize >= h ? h : targetSize + (float)( (w-targetSize)/2 ) );
+    	YuvImage yuv;
+    	Rect rect;
+    	if (isPackedNv21(origYuv)) {
+    	    long start = System.nanoTime();
+    	    Nv21Scaler scaler = SCALERS.get();
+    	    byte[] scaled = scaler.cropScale(origYuv.getYuvData(), w, h, targetSize, outSize, 0);
+    	    yuv = new YuvImage(scaled, ImageFormat.NV21, scaler.getWidth(), scaler.getHeight(), null);
+    	    rect = new Rect(0, 0, scaler.getWidth(), scaler.getHeight());
+    	    if (metrics != null) {
+    	        metrics.recordSince(SearchMetrics.Stage.CROP, start);
+    	    }
+    	} else {
+    	    int left = targetSize >= w ? 0 : (w - targetSize) / 2;
+    	    int top = targetSize >= h ? 0 : (h - targetSize) / 2;
+    	    yuv = origYuv;
+    	    rect = new Rect(left, top, Math.min(w, left + targetSize), Math.min(h, top + targetSize));
+    	}
     	
-    	File dir = ctx.getDir("snapshots", Context.MODE_PRIVATE);
-        File of = new File(dir, "snapshot.jpg");
         try {
-            FileOutputStream fo = new FileOutputStream(of);
+            TimedFileOutputStream fo = new TimedFileOutputStream(of);
+            long start = System.nanoTime();
             
             try {
             	Log.d(TAG, "START COMPRESSION PICTURE YUVFILE");
-                origYuv.compressToJpeg(new Rect(left, top, right, bottom), 100, fo);
+                yuv.compressToJpeg(rect, quality, fo);
                 Log.d(TAG,"END COMPRESSION PICTURE YUVFILE");
             }finally {
                 fo.close();
             }
+            fo.record(metrics, start);
             
         }catch (IOException e) {	
         	Log.e(TAG, "Can't store picture", e);
@@ -110,9 +185,119 @@ public class Utils {
         return of;
 
     }    
+    
+    
+    /**
+     * One {@link Nv21Scaler} per thread, so that concurrent searches each reuse their own buffers.
+     */
+    private static final ThreadLocal<Nv21Scaler> SCALERS = new ThreadLocal<Nv21Scaler>() {
+        @Override
+        protected Nv21Scaler initialValue() {
+            return new Nv21Scaler();
+        }
+    };
+    
+    
+    private static boolean isPackedNv21(YuvImage yuv) {
+        if (yuv.getYuvFormat() != ImageFormat.NV21) {
+            return false;
+        }
+        int[] strides = yuv.getStrides();
+        return strides == null || (strides[0] == yuv.getWidth() && strides[1] == yuv.getWidth());
+    }
   
    
     
+    /**
+     * Converts a YUV picture straight to a {@link Mat}, without compressing it to a JPEG file.
+     * 
+     * @param yuv
+     * 		  The {@link YuvImage} to be converted.
+     * 
+     * @return The {@link Mat}, null if the picture is not a tightly packed NV21 frame.
+     */
+    
+    
+    public static Mat yuvToMat(YuvImage yuv) {
+        final int w = yuv.getWidth();
+        final int h = yuv.getHeight();
+        
+        if (!isPackedNv21(yuv)) {
+            return null;
+        }
+        
+        return new Mat(yuv.getYuvData(), w, h);
+    }
+    
+    
+    /**
+     * Crops the centered part of a {@link Mat}, at most targetSize wide and high, without scaling it.
+     * The returned {@link Mat} shares pixels with the original one.
+     * 
+     * @param mat
+     * 		  The {@link Mat} to be cropped.
+     * @param targetSize
+     * 		  An {@link Integer} The size required. 
+     * 
+     * @return The cropped {@link Mat}.
+     */
+    
+    
+    public static Mat cropMat(Mat mat, int targetSize) {
+        final int w = mat.cols();
+        final int h = mat.rows();
+        final int cw = Math.min(targetSize, w);
+        final int ch = Math.min(targetSize, h);
+        
+        if (cw == w && ch == h) {
+            return mat;
+        }
+        return mat.submat((w - cw) / 2, (h - ch) / 2, cw, ch);
+    }
+    
+    
+    /**
+     * Difference hash of an image file, computed like {@link Mat#dHash()} on its centered square.
+     * The file is decoded at a reduced resolution, which is all the 9x8 cells of the hash need.
+     * 
+     * @param imgFile
+     *        The {@link File} of the image.
+     * 
+     * @return The hash, {@link ResultCache#NO_HASH} if the file can't be decoded.
+     */
+    
+    
+    static long dHash(File imgFile) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imgFile.getPath(), options);
+        int side = Math.min(options.outWidth, options.outHeight);
+        if (side < 9) {
+            return ResultCache.NO_HASH;
+        }
+        
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (side / (2 * options.inSampleSize) >= HASH_DECODE_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bmp = BitmapFactory.decodeFile(imgFile.getPath(), options);
+        if (bmp == null) {
+            return ResultCache.NO_HASH;
+        }
+        try {
+            final int w = bmp.getWidth();
+            final int h = bmp.getHeight();
+            final int s = Math.min(w, h);
+            int[] pixels = new int[s * s];
+            bmp.getPixels(pixels, 0, s, (w - s) / 2, (h - s) / 2, s, s);
+            return ResultCache.dHash(pixels, s);
+        } finally {
+            bmp.recycle();
+        }
+    }
+    
+    
     /**
     * Transform a {@link Bitmap} picture into a {@link File} to be analyzed.
     * Pictures are first compressed to a JPEG format.
@@ -129,10 +314,37 @@ public class Utils {
 
     
     public static File saveBmpToFile(Context ctx, Bitmap bmp) {
-    	File dir = ctx.getDir("snapshots", Context.MODE_PRIVATE);
-        File of = new File(dir, "snapshot.jpg");
+        return saveBmpToFile(bmp, snapshotFile(ctx));
+    }
+    
+    
+    /**
+    * Compresses a {@link Bitmap} picture to JPEG into a given file.
+    * 
+    * @param bmp
+    * 		 The {@link Bitmap} to be converted.
+    * @param of
+    * 		 The {@link File} to write the JPEG to.
+    * 
+    * @return The {@link File} object.
+    * 
+    * @throws RuntimeException
+    **/
+
+    
+    public static File saveBmpToFile(Bitmap bmp, File of) {
+        return saveBmpToFile(bmp, of, null);
+    }
+    
+    
+    /**
+     * {@link #saveBmpToFile(Bitmap, File)} recording the time spent compressing and writing.
+     */
+    
+    static File saveBmpToFile(Bitmap bmp, File of, SearchMetrics metrics) {
         try {
-            FileOutputStream fo = new FileOutputStream(of);
+            TimedFileOutputStream fo = new TimedFileOutputStream(of);
+            long start = System.nanoTime();
             
             try {
             	Log.d(TAG, "START COMPRESSION PICTURE BMPFILE");
@@ -141,6 +353,7 @@ public class Utils {
             }finally {
             	fo.close();
             }
+            fo.record(metrics, start);
             
         } 
         catch (IOException e) {
@@ -168,10 +381,37 @@ public class Utils {
     
     
     public static File saveYuvToFile(Context ctx, YuvImage yuv) {
-        File dir = ctx.getDir("snapshots", Context.MODE_PRIVATE);
-        File of = new File(dir, "snapshot.jpg");
+        return saveYuvToFile(yuv, snapshotFile(ctx));
+    }
+    
+    
+    /**
+    * Compresses a YUV picture to JPEG into a given file.
+    * 
+    * @param yuv
+    * 		 The {@link YuvImage} to be converted.
+    * @param of
+    * 		 The {@link File} to write the JPEG to.
+    * 
+    * @return The {@link File} object.
+    * 
+    * @throws RuntimeException
+    **/
+    
+    
+    public static File saveYuvToFile(YuvImage yuv, File of) {
+        return saveYuvToFile(yuv, of, null);
+    }
+    
+    
+    /**
+     * {@link #saveYuvToFile(YuvImage, File)} recording the time spent compressing and writing.
+     */
+    
+    static File saveYuvToFile(YuvImage yuv, File of, SearchMetrics metrics) {
         try {
-            FileOutputStream fo = new FileOutputStream(of);
+            TimedFileOutputStream fo = new TimedFileOutputStream(of);
+            long start = System.nanoTime();
             
             try {
             	Log.d(TAG, "START COMPRESSION PICTURE YUVFILE");
@@ -180,6 +420,7 @@ public class Utils {
             }finally {
                 fo.close();
             }
+            fo.record(metrics, start);
             
         }catch (IOException e) {	
         	Log.e(TAG, "Can't store picture", e);
@@ -190,6 +431,68 @@ public class Utils {
     }
     
     
+    /**
+     * @param ctx
+     * 		  The {@link context}.
+     * 
+     * @return The directory holding query snapshots.
+     */
+    
+    
+    public static File getSnapshotDir(Context ctx) {
+        return ctx.getDir("snapshots", Context.MODE_PRIVATE);
+    }
+    
+    
+    /**
+     * File stream keeping track of the time spent writing, so that compression and file writes are told apart.
+     */
+    private static final class TimedFileOutputStream extends FileOutputStream {
+        private long writeNanos;
+        
+        TimedFileOutputStream(File file) throws IOException {
+            super(file);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            super.write(b, off, len);
+            writeNanos += System.nanoTime() - start;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            super.write(b);
+            writeNanos += System.nanoTime() - start;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            super.close();
+            writeNanos += System.nanoTime() - start;
+        }
+        
+        /**
+         * Records compression and writes since start, the stream being closed.
+         */
+        void record(SearchMetrics metrics, long start) {
+            if (metrics != null) {
+                long total = System.nanoTime() - start;
+                metrics.record(SearchMetrics.Stage.FILE_WRITE, writeNanos);
+                metrics.record(SearchMetrics.Stage.JPEG_COMPRESS, total - writeNanos);
+            }
+        }
+    }
+    
+    
+    private static File snapshotFile(Context ctx) {
+        return new File(getSnapshotDir(ctx), "snapshot.jpg");
+    }
+    
+    
     /**
      * @param ctx
      * 		  The {@link context}.